@@ -52,7 +52,7 @@ public class AlgorithmComparisonDef {
 			Map<String, String> customAlgorithms) {
 		Collection<DrugResistanceAlgorithm<VirusT>> algorithms = virusIns.getDrugResistAlgorithms(algorithmNames); 
 		customAlgorithms.entrySet().stream().forEach(e -> {
-			algorithms.add(new DrugResistanceAlgorithm<>(
+			algorithms.add(CustomAlgorithmCache.get(
 				/* name =      */ e.getKey(),
 				/* virus =     */ virusIns,
 				/* xmlText =   */ e.getValue()));
@@ -0,0 +1,249 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import edu.stanford.hivdb.genotypes.GenotypeReference;
+import edu.stanford.hivdb.graphql.StageMetrics.Stage;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.NucAminoAligner;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Strain;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Server-wide cache of alignment results.
+ *
+ * Entries are keyed by virus, data version and a hash of the normalized
+ * sequence. Headers are not part of the key: a cached or freshly aligned
+ * result is rebound to the input sequence of each request, so clones and
+ * replicates under different headers share one alignment. The data
+ * version is a fingerprint of the program version, the latest HIVDB
+ * algorithm, the NucAmino profiles, the gene references and the genotype
+ * references, so upgrading hivfacts invalidates the cached alignments.
+ *
+ * Entries are weighted by the characters they retain: the input sequence,
+ * the aligned NAs of every gene and a fixed {@value #MUTATION_WEIGHT} per
+ * mutation.
+ *
+ * Replicates within a batch (same key) are aligned only once and the
+ * result is rebound to every copy.
+ *
+ * Set ALIGNED_SEQUENCE_CACHE_MAX_WEIGHT to 0 to disable the cache.
+ */
+public class AlignedSequenceCache {
+
+	private static final int MUTATION_WEIGHT = 64;
+
+	private static final long MAX_WEIGHT;
+	private static final String PROGRAM_VERSION;
+	private static final Map<String, String> DATA_VERSIONS = new ConcurrentHashMap<>();
+	private static final Cache<String, AlignedSequence<?>> CACHE;
+	private static final AtomicLong NUM_ALIGNED = new AtomicLong();
+	private static final AtomicLong NUM_DEDUPLICATED = new AtomicLong();
+	private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+
+	static {
+		String maxWeight = System.getenv("ALIGNED_SEQUENCE_CACHE_MAX_WEIGHT");
+		if (maxWeight == null) {
+			maxWeight = "20000000";
+		}
+		MAX_WEIGHT = Long.parseLong(maxWeight);
+		PROGRAM_VERSION = loadProgramVersion();
+		CACHE = CacheBuilder.newBuilder()
+			.maximumWeight(MAX_WEIGHT)
+			.<String, AlignedSequence<?>>weigher((key, alignedSeq) -> weigh(alignedSeq))
+			.recordStats()
+			.build();
+	}
+
+	private static int weigh(AlignedSequence<?> alignedSeq) {
+		long weight = alignedSeq.getInputSequence().getLength();
+		for (AlignedGeneSeq<?> geneSeq : alignedSeq.getAlignedGeneSequences()) {
+			weight += geneSeq.getAlignedNAs().length();
+			weight += (long) geneSeq.getMutations().size() * MUTATION_WEIGHT;
+		}
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(1, weight));
+	}
+
+	private static String loadProgramVersion() {
+		Properties prop = new Properties();
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		try (InputStream stream = loader.getResourceAsStream("version.properties")) {
+			if (stream != null) {
+				prop.load(stream);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return prop.getProperty("version", "unknown");
+	}
+
+	private static <VirusT extends Virus<VirusT>> String getDataVersion(VirusT virusIns) {
+		return DATA_VERSIONS.computeIfAbsent(virusIns.getName(), name -> {
+			Hasher hasher = Hashing.sha256().newHasher();
+			hasher.putString(PROGRAM_VERSION, StandardCharsets.UTF_8);
+			hasher.putString(virusIns.getLatestDrugResistAlgorithm("HIVDB").getName(), StandardCharsets.UTF_8);
+			for (Strain<VirusT> strain : virusIns.getStrains()) {
+				hasher.putString(strain.getName(), StandardCharsets.UTF_8);
+				hasher.putString(strain.getNucaminoProfile(), StandardCharsets.UTF_8);
+				for (Gene<VirusT> gene : strain.getGenes()) {
+					hasher.putString(gene.getName(), StandardCharsets.UTF_8);
+					hasher.putString(gene.getRefSequence(), StandardCharsets.UTF_8);
+				}
+			}
+			for (GenotypeReference<VirusT> ref : virusIns.getGenotypeReferences()) {
+				hasher.putString(ref.getSequence(), StandardCharsets.UTF_8);
+			}
+			return hasher.hash().toString();
+		});
+	}
+
+	private static <VirusT extends Virus<VirusT>> String makeKey(VirusT virusIns, Sequence sequence) {
+		String normalized = WHITESPACES.matcher(sequence.getSequence()).replaceAll("").toUpperCase();
+		return String.join(
+			"\u0000",
+			virusIns.getName(),
+			getDataVersion(virusIns),
+			Hashing.sha256().hashString(normalized, StandardCharsets.UTF_8).toString());
+	}
+
+	/**
+	 * Binds an alignment of the same sequence to the given input sequence.
+	 */
+	private static <VirusT extends Virus<VirusT>> AlignedSequence<VirusT> rebind(
+		AlignedSequence<VirusT> alignedSeq, Sequence sequence
+	) {
+		Sequence inputSeq = alignedSeq.getInputSequence();
+		if (inputSeq == sequence || (
+			Objects.equals(inputSeq.getHeader(), sequence.getHeader()) &&
+			inputSeq.getSequence().equals(sequence.getSequence())
+		)) {
+			return alignedSeq;
+		}
+		return new AlignedSequence<>(
+			alignedSeq.getStrain(),
+			sequence,
+			alignedSeq.getAlignedGeneSequenceMap(),
+			alignedSeq.getDiscardedGenes(),
+			alignedSeq.isReverseComplement());
+	}
+
+	/**
+	 * Same as {@link NucAminoAligner#parallelAlign} but only sends distinct
+	 * cache misses to the aligner.
+	 *
+	 * @param virusIns virus instance
+	 * @param sequences input sequences
+	 * @return aligned sequences, in the same order as the input
+	 */
+	@SuppressWarnings("unchecked")
+	public static <VirusT extends Virus<VirusT>> List<AlignedSequence<VirusT>> parallelAlign(
+		VirusT virusIns, List<Sequence> sequences
+	) {
+		boolean useCache = MAX_WEIGHT > 0;
+		List<String> keys = new ArrayList<>(sequences.size());
+		List<AlignedSequence<VirusT>> results = new ArrayList<>(sequences.size());
+		Map<String, Sequence> misses = new LinkedHashMap<>();
+		int numMisses = 0;
+		for (Sequence sequence : sequences) {
+			String key = makeKey(virusIns, sequence);
+			AlignedSequence<?> alignedSeq = useCache ? CACHE.getIfPresent(key) : null;
+			if (alignedSeq == null) {
+				misses.putIfAbsent(key, sequence);
+				numMisses ++;
+			}
+			keys.add(key);
+			results.add((AlignedSequence<VirusT>) alignedSeq);
+		}
+		Map<String, AlignedSequence<VirusT>> aligned = new HashMap<>();
+		if (!misses.isEmpty()) {
+			NUM_DEDUPLICATED.addAndGet(numMisses - misses.size());
+			NUM_ALIGNED.addAndGet(misses.size());
+
+			List<Sequence> distinctMisses = new ArrayList<>(misses.values());
+			List<AlignedSequence<VirusT>> alignedSeqs = StageMetrics.time(
+				Stage.ALIGNMENT, virusIns.getName(), null, distinctMisses.size(),
+				() -> NucAminoAligner.getInstance(virusIns).parallelAlign(distinctMisses));
+			for (AlignedSequence<VirusT> alignedSeq : alignedSeqs) {
+				String key = makeKey(virusIns, alignedSeq.getInputSequence());
+				aligned.put(key, alignedSeq);
+				if (useCache) {
+					CACHE.put(key, alignedSeq);
+				}
+			}
+		}
+		for (int i = 0; i < results.size(); i ++) {
+			AlignedSequence<VirusT> alignedSeq = results.get(i);
+			if (alignedSeq == null) {
+				alignedSeq = aligned.get(keys.get(i));
+			}
+			results.set(i, rebind(alignedSeq, sequences.get(i)));
+		}
+		return results;
+	}
+
+	public static CacheStats getStats() {
+		return CACHE.stats();
+	}
+
+	/**
+	 * @return number of distinct sequences sent to the aligner
+	 */
+	public static long getNumAligned() {
+		return NUM_ALIGNED.get();
+	}
+
+	/**
+	 * @return number of replicate sequences that were not sent to the aligner
+	 */
+	public static long getNumDeduplicated() {
+		return NUM_DEDUPLICATED.get();
+	}
+
+	public static long getSize() {
+		return CACHE.size();
+	}
+
+	public static void invalidateAll() {
+		CACHE.invalidateAll();
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+import edu.stanford.hivdb.graphql.StageMetrics.Stage;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.viruses.Virus;
+import graphql.schema.DataFetchingFieldSelectionSet;
+
+/**
+ * Analysis stages requested by the selection set of a sequenceAnalysis
+ * field.
+ *
+ * AlignedSequence computes genotype and validation results lazily on first
+ * access, and list elements are resolved one after another. The plan runs
+ * the requested stages for all sequences right after the alignment, in
+ * parallel on the fetcher pool of the request's {@link RequestContext};
+ * stages that are not requested are never triggered.
+ */
+public class AnalysisPlan {
+
+	private final boolean genotype;
+	private final boolean validation;
+
+	private AnalysisPlan(boolean genotype, boolean validation) {
+		this.genotype = genotype;
+		this.validation = validation;
+	}
+
+	public static AnalysisPlan fromSelectionSet(DataFetchingFieldSelectionSet selectionSet) {
+		return new AnalysisPlan(
+			selectionSet.contains("subtypesV2") ||
+			selectionSet.contains("bestMatchingSubtype") ||
+			selectionSet.contains("genotypes") ||
+			selectionSet.contains("bestMatchingGenotype") ||
+			selectionSet.contains("subtypes") ||
+			selectionSet.contains("subtypeText"),
+			selectionSet.contains("validationResults")
+		);
+	}
+
+	public boolean needsGenotype() {
+		return genotype;
+	}
+
+	public boolean needsValidation() {
+		return validation;
+	}
+
+	/**
+	 * Runs the action for every item on the fetcher pool under the
+	 * request's parallelism cap, or one after another when the execution
+	 * has no RequestContext.
+	 */
+	private static <T> void forEach(Object context, List<T> items, Consumer<T> action) {
+		if (!(context instanceof RequestContext)) {
+			items.forEach(action);
+			return;
+		}
+		RequestContext requestContext = (RequestContext) context;
+		CompletableFuture<?>[] futures = items
+			.stream()
+			.map(item -> requestContext.supplyAsync(() -> {
+				action.accept(item);
+				return null;
+			}))
+			.toArray(CompletableFuture<?>[]::new);
+		try {
+			CompletableFuture.allOf(futures).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public <VirusT extends Virus<VirusT>> void prefetch(
+		Object context, VirusT virusIns, List<AlignedSequence<VirusT>> alignedSeqs
+	) {
+		if (genotype) {
+			StageMetrics.time(
+				Stage.GENOTYPE, virusIns.getName(), null, alignedSeqs.size(),
+				() -> {
+					forEach(context, alignedSeqs, AlignedSequence::getGenotypeResult);
+					return null;
+				});
+		}
+		if (validation) {
+			forEach(context, alignedSeqs, AlignedSequence::getValidationResults);
+		}
+	}
+
+}
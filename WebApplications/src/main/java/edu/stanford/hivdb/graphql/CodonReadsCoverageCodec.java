@@ -0,0 +1,188 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.hivdb.seqreads.OneCodonReadsCoverage;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Compact columnar encoding of codon reads coverage, served as the
+ * binaryCodonReadsCoverage field.
+ *
+ * The field value is standard base64 (with padding) of this byte layout.
+ * "varint" is an unsigned LEB128 integer: 7 bits per byte, least
+ * significant group first, high bit set on every byte but the last.
+ *
+ * <pre>
+ *   u8       version, currently 1
+ *   varint   number of genes G
+ *   G times  varint byte length, then the UTF-8 gene name (e.g. "HIV1RT")
+ *   varint   number of records N
+ *   N varints  gene column: index into the gene names above
+ *   N varints  position column: zigzag-encoded difference from the
+ *              previous record's position (the first from 0);
+ *              zigzag maps 0, -1, 1, -2, ... to 0, 1, 2, 3, ...
+ *   N varints  totalReads column
+ *   ceil(N / 8) bytes  isTrimmed bitmap: record i is bit (i % 8) of
+ *              byte (i / 8), least significant bit first
+ * </pre>
+ *
+ * A client decodes by reading the columns in order and zipping them by
+ * record index; {@link #decode} is the reference implementation.
+ */
+public class CodonReadsCoverageCodec {
+
+	public static final int VERSION = 1;
+
+	public static String encode(List<? extends OneCodonReadsCoverage<?>> coverage) {
+		int numRecords = coverage.size();
+		Map<String, Integer> geneIndices = new LinkedHashMap<>();
+		int[] geneColumn = new int[numRecords];
+		for (int i = 0; i < numRecords; i ++) {
+			String geneName = coverage.get(i).getGene().getName();
+			Integer index = geneIndices.get(geneName);
+			if (index == null) {
+				index = geneIndices.size();
+				geneIndices.put(geneName, index);
+			}
+			geneColumn[i] = index;
+		}
+
+		// about three bytes per record for typical depths
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 + numRecords * 4);
+		out.write(VERSION);
+		writeVarint(out, geneIndices.size());
+		for (String geneName : geneIndices.keySet()) {
+			byte[] nameBytes = geneName.getBytes(StandardCharsets.UTF_8);
+			writeVarint(out, nameBytes.length);
+			out.write(nameBytes, 0, nameBytes.length);
+		}
+		writeVarint(out, numRecords);
+		for (int geneIndex : geneColumn) {
+			writeVarint(out, geneIndex);
+		}
+		long prevPosition = 0;
+		for (OneCodonReadsCoverage<?> rc : coverage) {
+			long position = rc.getPosition();
+			long delta = position - prevPosition;
+			writeVarint(out, (delta << 1) ^ (delta >> 63));
+			prevPosition = position;
+		}
+		for (OneCodonReadsCoverage<?> rc : coverage) {
+			writeVarint(out, rc.getTotalReads());
+		}
+		byte[] bitmap = new byte[(numRecords + 7) / 8];
+		for (int i = 0; i < numRecords; i ++) {
+			if (coverage.get(i).isTrimmed()) {
+				bitmap[i >> 3] |= 1 << (i & 7);
+			}
+		}
+		out.write(bitmap, 0, bitmap.length);
+		return Base64.getEncoder().encodeToString(out.toByteArray());
+	}
+
+	public static <VirusT extends Virus<VirusT>> List<OneCodonReadsCoverage<VirusT>> decode(
+		VirusT virusIns, String encoded
+	) {
+		Reader reader = new Reader(Base64.getDecoder().decode(encoded));
+		int version = reader.readByte();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported codon reads coverage version: " + version);
+		}
+		int numGenes = (int) reader.readVarint();
+		List<Gene<VirusT>> genes = new ArrayList<>();
+		for (int i = 0; i < numGenes; i ++) {
+			int length = (int) reader.readVarint();
+			genes.add(virusIns.getGene(reader.readString(length)));
+		}
+		int numRecords = (int) reader.readVarint();
+		int[] geneColumn = new int[numRecords];
+		for (int i = 0; i < numRecords; i ++) {
+			geneColumn[i] = (int) reader.readVarint();
+		}
+		long[] positionColumn = new long[numRecords];
+		long position = 0;
+		for (int i = 0; i < numRecords; i ++) {
+			long zigzag = reader.readVarint();
+			position += (zigzag >>> 1) ^ -(zigzag & 1);
+			positionColumn[i] = position;
+		}
+		long[] totalReadsColumn = new long[numRecords];
+		for (int i = 0; i < numRecords; i ++) {
+			totalReadsColumn[i] = reader.readVarint();
+		}
+		List<OneCodonReadsCoverage<VirusT>> coverage = new ArrayList<>(numRecords);
+		int bitmapOffset = reader.offset;
+		for (int i = 0; i < numRecords; i ++) {
+			boolean isTrimmed = (reader.bytes[bitmapOffset + (i >> 3)] & (1 << (i & 7))) != 0;
+			coverage.add(new OneCodonReadsCoverage<>(
+				genes.get(geneColumn[i]), positionColumn[i], totalReadsColumn[i], isTrimmed));
+		}
+		return coverage;
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static class Reader {
+		private final byte[] bytes;
+		private int offset;
+
+		private Reader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private int readByte() {
+			return bytes[offset ++] & 0xff;
+		}
+
+		private long readVarint() {
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		private String readString(int length) {
+			String str = new String(bytes, offset, length, StandardCharsets.UTF_8);
+			offset += length;
+			return str;
+		}
+	}
+
+}
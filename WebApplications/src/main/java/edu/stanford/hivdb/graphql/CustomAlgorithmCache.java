@@ -0,0 +1,188 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Server-wide cache of compiled custom ASI algorithms, shared by the REST
+ * and GraphQL services.
+ *
+ * Entries are keyed by virus, algorithm name and a SHA-256 hash of the XML
+ * text. To keep one-off algorithms from flushing the ones sent repeatedly,
+ * an algorithm is only cached the second time its key is seen; the first
+ * sighting is remembered in a small doorkeeper of keys. XML longer than
+ * CUSTOM_ALGORITHM_CACHE_MAX_XML_LENGTH is always compiled and never
+ * cached.
+ *
+ * Set CUSTOM_ALGORITHM_CACHE_MAX_ENTRIES to 0 to disable the cache.
+ */
+public class CustomAlgorithmCache {
+
+	/**
+	 * Admission rules and storage of the cache, constructed with explicit
+	 * limits so they can be tested apart from the environment.
+	 */
+	static class Admission<T> {
+		private final long maxEntries;
+		private final int maxXmlLength;
+		private final Cache<String, T> cache;
+		private final Cache<String, Boolean> doorkeeper;
+		private final AtomicLong numUncached = new AtomicLong();
+
+		Admission(long maxEntries, int maxXmlLength, long expireMinutes) {
+			this.maxEntries = maxEntries;
+			this.maxXmlLength = maxXmlLength;
+			this.cache = CacheBuilder.newBuilder()
+				.maximumSize(Math.max(0, maxEntries))
+				.expireAfterAccess(expireMinutes, TimeUnit.MINUTES)
+				.recordStats()
+				.build();
+			this.doorkeeper = CacheBuilder.newBuilder()
+				.maximumSize(Math.max(1, maxEntries * 4))
+				.expireAfterWrite(1, TimeUnit.HOURS)
+				.build();
+		}
+
+		T get(String name, Virus<?> virusIns, String xmlText, Supplier<T> compiler) {
+			if (maxEntries <= 0 || xmlText == null || xmlText.length() > maxXmlLength) {
+				numUncached.incrementAndGet();
+				return compiler.get();
+			}
+			String key = makeKey(name, virusIns, xmlText);
+			T compiled = cache.getIfPresent(key);
+			if (compiled != null) {
+				return compiled;
+			}
+			if (doorkeeper.asMap().putIfAbsent(key, Boolean.TRUE) == null) {
+				// first sighting
+				numUncached.incrementAndGet();
+				return compiler.get();
+			}
+			try {
+				// concurrent requests of the same key wait for one compilation
+				return cache.get(key, compiler::get);
+			} catch (UncheckedExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		CacheStats getStats() {
+			return cache.stats();
+		}
+
+		long getNumUncached() {
+			return numUncached.get();
+		}
+
+		long getSize() {
+			return cache.size();
+		}
+
+		void invalidateAll() {
+			cache.invalidateAll();
+			doorkeeper.invalidateAll();
+		}
+	}
+
+	private static final Admission<DrugResistanceAlgorithm<?>> ALGORITHMS;
+
+	static {
+		String maxEntries = System.getenv("CUSTOM_ALGORITHM_CACHE_MAX_ENTRIES");
+		if (maxEntries == null) {
+			maxEntries = "64";
+		}
+		String maxXmlLength = System.getenv("CUSTOM_ALGORITHM_CACHE_MAX_XML_LENGTH");
+		if (maxXmlLength == null) {
+			maxXmlLength = "1000000";
+		}
+		String expireMinutes = System.getenv("CUSTOM_ALGORITHM_CACHE_EXPIRE_MINUTES");
+		if (expireMinutes == null) {
+			expireMinutes = "1440";
+		}
+		ALGORITHMS = new Admission<>(
+			Long.parseLong(maxEntries),
+			Integer.parseInt(maxXmlLength),
+			Long.parseLong(expireMinutes));
+	}
+
+	private static String makeKey(String name, Virus<?> virusIns, String xmlText) {
+		return String.join(
+			"\u0000",
+			virusIns.getName(),
+			name,
+			Hashing.sha256().hashString(xmlText, StandardCharsets.UTF_8).toString());
+	}
+
+	/**
+	 * Returns the compiled algorithm of the given XML text, compiling it on
+	 * a cache miss.
+	 *
+	 * @param name algorithm name
+	 * @param virusIns virus instance
+	 * @param xmlText ASI XML text
+	 * @return compiled algorithm
+	 */
+	@SuppressWarnings("unchecked")
+	public static <VirusT extends Virus<VirusT>> DrugResistanceAlgorithm<VirusT> get(
+		String name, VirusT virusIns, String xmlText
+	) {
+		return (DrugResistanceAlgorithm<VirusT>) ALGORITHMS.get(
+			name, virusIns, xmlText,
+			() -> new DrugResistanceAlgorithm<>(name, virusIns, xmlText));
+	}
+
+	public static CacheStats getStats() {
+		return ALGORITHMS.getStats();
+	}
+
+	/**
+	 * @return number of algorithms compiled without being cached
+	 */
+	public static long getNumUncached() {
+		return ALGORITHMS.getNumUncached();
+	}
+
+	public static long getSize() {
+		return ALGORITHMS.getSize();
+	}
+
+	public static void invalidateAll() {
+		ALGORITHMS.invalidateAll();
+	}
+
+}
@@ -18,14 +18,16 @@
 
 package edu.stanford.hivdb.graphql;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Field;
+import static graphql.Scalars.GraphQLBoolean;
+
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Set;
 
 import graphql.schema.DataFetcher;
 import graphql.schema.DataFetchingEnvironment;
+import graphql.schema.GraphQLNonNull;
+import graphql.schema.GraphQLType;
 import graphql.schema.PropertyDataFetcher;
 
 public class ExtGraphQL {
@@ -34,6 +36,12 @@ public class ExtGraphQL {
 		return env.getSource();
 	};
 	
+	/**
+	 * Resolves a property from a Map key, a getter ("is"/"get" prefix), a
+	 * field, a method named after the property, toString() for "text", or
+	 * a public field, in that order. Accessors are resolved once per (class,
+	 * property) by {@link PropertyAccessors}.
+	 */
 	public static class ExtPropertyDataFetcher<T> extends PropertyDataFetcher<T> {
 
 		private final String propertyName;
@@ -46,20 +54,38 @@ public class ExtGraphQL {
 		@SuppressWarnings("unchecked")
 		@Override
 		public T get(DataFetchingEnvironment environment) {
-			T result = super.get(environment);
+			Object source = environment.getSource();
+			if (source == null) return null;
+			Object result;
+			if (source instanceof Map) {
+				result = ((Map<?, ?>) source).get(propertyName);
+			}
+			else {
+				result = PropertyAccessors
+					.getBeanAccessor(source.getClass(), propertyName, isBooleanField(environment))
+					.apply(source);
+			}
 			if (result == null) {
-				Object source = environment.getSource();
-		        if (source == null) return null;
-		        result = (T) getPropertyViaMethod(source, propertyName);
+				result = PropertyAccessors
+					.getMethodAccessor(source.getClass(), propertyName)
+					.apply(source);
 			}
-			result = postProcess(result, environment);
+			result = postProcess((T) result, environment);
 			if (result instanceof Set) {
 				// cast all set to list
-				result = (T) new ArrayList<>((Set<?>) result);
+				result = new ArrayList<>((Set<?>) result);
 			}
 			return (T) result;
 		}
 
+		private static boolean isBooleanField(DataFetchingEnvironment environment) {
+			GraphQLType fieldType = environment.getFieldType();
+			if (fieldType instanceof GraphQLNonNull) {
+				fieldType = ((GraphQLNonNull) fieldType).getWrappedType();
+			}
+			return fieldType == GraphQLBoolean;
+		}
+
 		/**
 		 * This protected method provide subclasses ability to process
 		 * the fetched object.
@@ -69,33 +95,6 @@ public class ExtGraphQL {
 		protected T postProcess(T object, DataFetchingEnvironment environment) {
 			return object;
 		}
-
-		private Object getPropertyViaMethod(Object object, String propertyName) {
-	        try {
-	            Method method = object.getClass().getMethod(propertyName);
-	            return method.invoke(object);
-	        } catch (NoSuchMethodException e) {
-	        	if (propertyName == "text") {
-	        		return getPropertyViaMethod(object, "toString");
-	        	}
-	            return getPropertyViaField(object, propertyName);
-	        } catch (IllegalAccessException e) {
-	            throw new RuntimeException(e);
-	        } catch (InvocationTargetException e) {
-	            throw new RuntimeException(e);
-	        }
-	    }
-
-		private Object getPropertyViaField(Object object, String propertyName) {
-			try {
-				Field field = object.getClass().getField(propertyName);
-				return field.get(object);
-			} catch (NoSuchFieldException e) {
-				return null;
-	        } catch (IllegalAccessException e) {
-	            throw new RuntimeException(e);
-	        }
-		}
 	}
 
 }
@@ -0,0 +1,164 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.dataloader.DataLoader;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.graphql.StageMetrics.Stage;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Per-request batch loader of GeneDR objects.
+ *
+ * Keys of one execution level are grouped by (gene, algorithm). Identical
+ * mutation sets are evaluated once, and every group is evaluated by one
+ * GeneDR.newFromMutationSets call on the request's fetcher pool.
+ */
+public class GeneDRLoader {
+
+	public static final String NAME = "geneDR";
+
+	private static class Key {
+		private final String virusName;
+		private final Gene<?> gene;
+		private final MutationSet<?> mutations;
+		private final DrugResistanceAlgorithm<?> algorithm;
+
+		private Key(
+			String virusName, Gene<?> gene,
+			MutationSet<?> mutations, DrugResistanceAlgorithm<?> algorithm
+		) {
+			this.virusName = virusName;
+			this.gene = gene;
+			this.mutations = mutations;
+			this.algorithm = algorithm;
+		}
+
+		private List<Object> getGroup() {
+			return Arrays.asList(virusName, gene, algorithm);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) { return true; }
+			if (!(o instanceof Key)) { return false; }
+			Key other = (Key) o;
+			return (
+				virusName.equals(other.virusName) &&
+				gene.equals(other.gene) &&
+				mutations.equals(other.mutations) &&
+				algorithm.equals(other.algorithm)
+			);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(virusName, gene, mutations, algorithm);
+		}
+	}
+
+	protected static DataLoader<Object, Object> newDataLoader(RequestContext context) {
+		return DataLoader.newDataLoader(keys -> {
+			Map<List<Object>, Set<MutationSet<?>>> groups = new LinkedHashMap<>();
+			for (Object obj : keys) {
+				Key key = (Key) obj;
+				groups
+					.computeIfAbsent(key.getGroup(), g -> new LinkedHashSet<>())
+					.add(key.mutations);
+			}
+			Map<List<Object>, CompletableFuture<Map<MutationSet<?>, GeneDR<?>>>> results = new HashMap<>();
+			for (Map.Entry<List<Object>, Set<MutationSet<?>>> group : groups.entrySet()) {
+				results.put(
+					group.getKey(),
+					context.supplyAsync(() -> evaluate(group.getKey(), group.getValue())));
+			}
+			return CompletableFuture
+				.allOf(results.values().toArray(new CompletableFuture<?>[0]))
+				.thenApply(v -> keys
+					.stream()
+					.map(obj -> {
+						Key key = (Key) obj;
+						return (Object) results.get(key.getGroup()).join().get(key.mutations);
+					})
+					.collect(Collectors.toList()));
+		});
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Map<MutationSet<?>, GeneDR<?>> evaluate(List<Object> group, Set<MutationSet<?>> mutationSets) {
+		String virusName = (String) group.get(0);
+		Gene gene = (Gene) group.get(1);
+		DrugResistanceAlgorithm alg = (DrugResistanceAlgorithm) group.get(2);
+		Map<MutationSet<?>, GeneDR<?>> geneDRs = new HashMap<>(StageMetrics.time(
+			Stage.DRUG_RESISTANCE, virusName, alg.getName(), mutationSets.size(),
+			() -> GeneDR.newFromMutationSets(gene, (Set) mutationSets, alg)));
+		for (MutationSet<?> mutations : mutationSets) {
+			geneDRs.computeIfAbsent(mutations, muts -> new GeneDR(gene, muts, alg));
+		}
+		return geneDRs;
+	}
+
+	/**
+	 * Loads GeneDR of each gene through the request's loader, or evaluates
+	 * them directly when the execution has no RequestContext.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <VirusT extends Virus<VirusT>> CompletableFuture<List<GeneDR<VirusT>>> loadMany(
+		Object context, VirusT virusIns,
+		Map<Gene<VirusT>, MutationSet<VirusT>> mutationsByGene,
+		DrugResistanceAlgorithm<VirusT> alg
+	) {
+		if (!(context instanceof RequestContext)) {
+			return CompletableFuture.completedFuture(
+				mutationsByGene
+				.entrySet()
+				.stream()
+				.map(e -> new GeneDR<>(e.getKey(), e.getValue(), alg))
+				.collect(Collectors.toList()));
+		}
+		DataLoader<Object, Object> loader = ((RequestContext) context).getDataLoaderRegistry().getDataLoader(NAME);
+		List<Object> keys = new ArrayList<>();
+		for (Map.Entry<Gene<VirusT>, MutationSet<VirusT>> e : mutationsByGene.entrySet()) {
+			keys.add(new Key(virusIns.getName(), e.getKey(), e.getValue(), alg));
+		}
+		return loader
+			.loadMany(keys)
+			.thenApply(geneDRs -> geneDRs
+				.stream()
+				.map(geneDR -> (GeneDR<VirusT>) geneDR)
+				.collect(Collectors.toList()));
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-spaced (1-2.5-5) buckets from
+ * 0.5ms to 100s. Recording costs a binary search and two adds, so it can
+ * stay enabled in production.
+ */
+public class LatencyHistogram {
+
+	private static final long[] BOUNDS_NANOS;
+	private static final String[] BOUND_LABELS;
+
+	static {
+		double[] boundsSeconds = {
+			0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+			0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100
+		};
+		BOUNDS_NANOS = new long[boundsSeconds.length];
+		BOUND_LABELS = new String[boundsSeconds.length];
+		for (int i = 0; i < boundsSeconds.length; i ++) {
+			BOUNDS_NANOS[i] = (long) (boundsSeconds[i] * 1e9);
+			// plain notation, e.g. 0.0005 instead of 5.0E-4
+			BOUND_LABELS[i] = BigDecimal.valueOf(boundsSeconds[i]).toPlainString();
+		}
+	}
+
+	private final LongAdder[] buckets;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+
+	public LatencyHistogram() {
+		// the last bucket holds everything above the largest bound
+		buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+		for (int i = 0; i < buckets.length; i ++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		int idx = Arrays.binarySearch(BOUNDS_NANOS, nanos);
+		if (idx < 0) {
+			idx = -idx - 1;
+		}
+		buckets[idx].increment();
+		count.increment();
+		sumNanos.add(nanos);
+	}
+
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Writes the samples of this histogram in Prometheus text format.
+	 *
+	 * @param output output buffer
+	 * @param name metric name, without suffix
+	 * @param labels label pairs without braces, e.g. `lane="bulk"`; can be empty
+	 */
+	public void writeSamples(StringBuilder output, String name, String labels) {
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		long cumulative = 0;
+		for (int i = 0; i < BOUNDS_NANOS.length; i ++) {
+			cumulative += buckets[i].sum();
+			output
+				.append(name).append("_bucket{").append(prefix)
+				.append("le=\"").append(BOUND_LABELS[i]).append("\"} ")
+				.append(cumulative).append('\n');
+		}
+		cumulative += buckets[BOUNDS_NANOS.length].sum();
+		output
+			.append(name).append("_bucket{").append(prefix)
+			.append("le=\"+Inf\"} ").append(cumulative).append('\n');
+		String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+		output
+			.append(name).append("_sum").append(braced).append(' ')
+			.append(sumNanos.sum() / 1e9).append('\n');
+		output
+			.append(name).append("_count").append(braced).append(' ')
+			.append(cumulative).append('\n');
+	}
+
+}
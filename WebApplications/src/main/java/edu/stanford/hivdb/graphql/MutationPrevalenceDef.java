@@ -25,13 +25,18 @@ import static graphql.schema.GraphQLCodeRegistry.newCodeRegistry;
 import static graphql.schema.FieldCoordinates.coordinates;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationPrevalence;
 import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.utilities.SimpleMemoizer;
 import edu.stanford.hivdb.viruses.Gene;
@@ -43,48 +48,124 @@ import static edu.stanford.hivdb.graphql.MutationDef.*;
 
 public class MutationPrevalenceDef {
 
+	private static final long PREVALENCE_INDEX_MAX_ENTRIES;
+
+	static {
+		String maxEntries = System.getenv("MUTATION_PREVALENCE_INDEX_MAX_ENTRIES");
+		if (maxEntries == null) {
+			maxEntries = "200000";
+		}
+		PREVALENCE_INDEX_MAX_ENTRIES = Long.parseLong(maxEntries);
+	}
+
+	/**
+	 * Pre-assembled "matched" and "others" lists of a mutation. Shared by
+	 * all requests, so the lists and their records are immutable.
+	 */
+	private static class IndexedPrevalence {
+		private final List<Map<String, Object>> matched;
+		private final List<Map<String, Object>> others;
+
+		private IndexedPrevalence(List<Map<String, Object>> matched, List<Map<String, Object>> others) {
+			this.matched = matched;
+			this.others = others;
+		}
+	}
+
+	// marks mutations that MutationSet.getPrevalences() leaves out
+	private static final IndexedPrevalence ABSENT = new IndexedPrevalence(null, null);
+
+	/**
+	 * Index from (gene, position, AAs) to the assembled prevalence lists.
+	 *
+	 * The prevalence tables come with the hivfacts release and never change
+	 * at runtime, so an entry is assembled from getPrevalences() the first
+	 * time its key is seen and reused afterwards.
+	 */
+	private static final Cache<List<Object>, IndexedPrevalence> PREVALENCE_INDEX = (
+		CacheBuilder.newBuilder().maximumSize(PREVALENCE_INDEX_MAX_ENTRIES).build());
+
+	protected static void invalidatePrevalenceIndex() {
+		PREVALENCE_INDEX.invalidateAll();
+	}
+
+	private static List<Object> makeIndexKey(Mutation<?> mut) {
+		return Arrays.asList(mut.getGene(), mut.getPosition(), mut.getAAs());
+	}
+
+	private static Map<String, Object> newAARecord(String aa, List<?> subtypes) {
+		Map<String, Object> r = new HashMap<>();
+		r.put("AA", aa);
+		r.put("subtypes", subtypes);
+		return Collections.unmodifiableMap(r);
+	}
+
+	private static <VirusT extends Virus<VirusT>> IndexedPrevalence assemble(
+		Mutation<VirusT> mainMut, List<MutationPrevalence<VirusT>> prevalences
+	) {
+		Map<Mutation<VirusT>, Map<String, Object>> allResults = (
+			prevalences
+			.stream()
+			.collect(Collectors.groupingBy(mp -> mp.getMutation()))
+			.entrySet().stream()
+			.collect(Collectors.toMap(
+				f -> f.getKey(),
+				f -> newAARecord(
+					f.getKey().getDisplayAAs(),
+					Collections.unmodifiableList(f.getValue()))
+			))
+		);
+		List<Map<String, Object>> mainResults = new ArrayList<>();
+		for (Mutation<VirusT> singleAA : mainMut.split()) {
+			Map<String, Object> r = allResults.remove(singleAA);
+			if (r == null) {
+				r = newAARecord(singleAA.getAAs(), Collections.emptyList());
+			}
+			mainResults.add(r);
+		}
+		return new IndexedPrevalence(
+			Collections.unmodifiableList(mainResults),
+			Collections.unmodifiableList(new ArrayList<>(allResults.values())));
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
 	public static List<Map<String, Object>>
 			getBoundMutationPrevalenceList(MutationSet<?> mutations) {
-		return mutations.getPrevalences()
-			.entrySet()
-			.stream()
-			.map(e -> {
-				Mutation<?> mainMut = e.getKey();
-				Map<Mutation<?>, Map<String, Object>>	allResults = (
-					e.getValue()
-					.stream()
-					.collect(Collectors.groupingBy(mp -> mp.getMutation()))
-					.entrySet().stream()
-					.collect(Collectors.toMap(
-						f -> f.getKey(),
-						f -> {
-							Map<String, Object> r = new HashMap<>();
-							r.put("AA", f.getKey().getDisplayAAs());
-							r.put("subtypes", f.getValue());
-							return r;
-						}
-		))
-	);
+		Map<Mutation<?>, IndexedPrevalence> indexed = new HashMap<>();
+		List<Mutation<?>> missed = new ArrayList<>();
+		for (Mutation<?> mut : mutations) {
+			IndexedPrevalence prevalence = PREVALENCE_INDEX.getIfPresent(makeIndexKey(mut));
+			if (prevalence == null) {
+				missed.add(mut);
+			}
+			else {
+				indexed.put(mut, prevalence);
+			}
+		}
+		if (!missed.isEmpty()) {
+			Map<Mutation, List<MutationPrevalence>> newPrevalences = (
+				new MutationSet(missed).getPrevalences());
+			for (Mutation mut : missed) {
+				List<MutationPrevalence> prevalences = newPrevalences.get(mut);
+				IndexedPrevalence prevalence = prevalences == null ? ABSENT : assemble(mut, (List) prevalences);
+				PREVALENCE_INDEX.put(makeIndexKey(mut), prevalence);
+				indexed.put(mut, prevalence);
+			}
+		}
 
-				List<Map<String, Object>> mainResults = new ArrayList<>();
-				for (Mutation<?> singleAA : mainMut.split()) {
-					Map<String, Object> r = allResults.remove(singleAA);
-					if (r == null) {
-						r = new HashMap<>();
-						r.put("AA", singleAA.getAAs());
-						r.put("subtypes", Collections.emptyList());
-					}
-					mainResults.add(r);
-				}
-				List<Map<String, Object>>
-					otherResults = new ArrayList<>(allResults.values());
-				Map<String, Object> ret = new HashMap<>();
-				ret.put("boundMutation", mainMut);
-				ret.put("matched", mainResults);
-				ret.put("others", otherResults);
-				return ret;
-			})
-			.collect(Collectors.toList());
+		List<Map<String, Object>> results = new ArrayList<>();
+		for (Mutation<?> mut : mutations) {
+			IndexedPrevalence prevalence = indexed.get(mut);
+			if (prevalence == ABSENT) {
+				continue;
+			}
+			Map<String, Object> ret = new HashMap<>();
+			ret.put("boundMutation", mut);
+			ret.put("matched", prevalence.matched);
+			ret.put("others", prevalence.others);
+			results.add(ret);
+		}
+		return results;
 	}
 
 	private static <VirusT extends Virus<VirusT>> DataFetcher<List<Map<String, Object>>> makeSubtypeStatsDataFetcher(VirusT virusIns) {
@@ -23,9 +23,20 @@ import static graphql.Scalars.*;
 import graphql.schema.GraphQLFieldDefinition.Builder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import edu.stanford.hivdb.drugs.DrugClass;
+import edu.stanford.hivdb.mutations.Mutation;
 import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.mutations.MutationType;
 import edu.stanford.hivdb.viruses.Gene;
 import edu.stanford.hivdb.viruses.Virus;
 import edu.stanford.hivdb.viruses.WithGene;
@@ -35,7 +46,7 @@ import static edu.stanford.hivdb.graphql.ExtGraphQL.*;
 
 public class MutationSetDef {
 
-	private enum mutsFilterOption {
+	enum mutsFilterOption {
 		APOBEC, APOBEC_DRM,
 		DRM, notDRM, PI_DRM, NRTI_DRM, NNRTI_DRM, INSTI_DRM,
 		SDRM, notSDRM, PI_SDRM, NRTI_SDRM, NNRTI_SDRM, INSTI_SDRM,
@@ -153,122 +164,240 @@ public class MutationSetDef {
 		@Override
 		protected MutationSet<VirusT> postProcess(MutationSet<VirusT> mutations, DataFetchingEnvironment environment) {
 			List<?> filterOptions = environment.getArgument("filterOptions");
-			if (filterOptions == null) { filterOptions = new ArrayList<>(); }
+			if (filterOptions == null || filterOptions.isEmpty()) {
+				return mutations;
+			}
+			Gene<VirusT> gene = null;
+			if (WithGene.class.isInstance(environment.getSource())) {
+				WithGene<VirusT> source = environment.getSource();
+				gene = source.getGene();
+			}
+			return CompiledFilter.get(virusIns, filterOptions).apply(
+				mutations, gene, environment.getArgument("customList"));
+		}
+	}
+
+	/**
+	 * The filterOptions of a field compiled into a single pass.
+	 *
+	 * Each distinct option is a Mutation predicate with one bit. The
+	 * options reduce to required and forbidden bit masks, and each mutation
+	 * is tested against the masks in one walk over the source set.
+	 *
+	 * APOBEC, APOBEC_DRM and UNUSUAL split mixtures into one mutation per
+	 * amino acid. From the first of them on, the options are tested on each
+	 * amino acid of a mutation instead of on the mutation, as the chained
+	 * MutationSet operations did. CUSTOMLIST is intersected last. Compiled
+	 * filters are cached by virus and option list.
+	 */
+	static class CompiledFilter<VirusT extends Virus<VirusT>> {
+
+		private static final Cache<List<Object>, CompiledFilter<?>> CACHE = (
+			CacheBuilder.newBuilder().maximumSize(256).build());
+
+		private final VirusT virusIns;
+		private final Map<mutsFilterOption, Integer> bitIndices = new EnumMap<>(mutsFilterOption.class);
+		private final List<Predicate<Mutation<VirusT>>> predicates = new ArrayList<>();
+		private long required;
+		private long forbidden;
+		private long aaRequired;
+		private long aaForbidden;
+		private boolean splits;
+		private boolean hasCustomList;
+
+		@SuppressWarnings("unchecked")
+		static <VirusT extends Virus<VirusT>> CompiledFilter<VirusT> get(
+			VirusT virusIns, List<?> filterOptions
+		) {
+			List<Object> key = Arrays.asList(virusIns.getName(), new ArrayList<>(filterOptions));
+			CompiledFilter<?> filter = CACHE.getIfPresent(key);
+			if (filter == null) {
+				filter = new CompiledFilter<>(virusIns, filterOptions);
+				CACHE.put(key, filter);
+			}
+			return (CompiledFilter<VirusT>) filter;
+		}
+
+		private CompiledFilter(VirusT virusIns, List<?> filterOptions) {
+			this.virusIns = virusIns;
 			for (Object filterOption : filterOptions) {
-				switch((mutsFilterOption) filterOption) {
+				mutsFilterOption option = (mutsFilterOption) filterOption;
+				switch (option) {
 				case APOBEC:
-					mutations = mutations.getApobecMutations();
-					break;
 				case APOBEC_DRM:
-					mutations = mutations.getApobecDRMs();
-					break;
-				case DRM:
-					mutations = mutations.getDRMs();
+				case UNUSUAL:
+					splits = true;
+					aaRequired |= getBit(option);
 					break;
-				case DRP:
-					mutations = mutations.getAtDRPMutations();
 				case notDRM:
-					mutations = mutations.subtractsBy(mutations.getDRMs());
-					break;
-				case PI_DRM:
-					mutations = mutations.getDRMs(virusIns.getDrugClass("PI"));
-					break;
-				case NRTI_DRM:
-					mutations = mutations.getDRMs(virusIns.getDrugClass("NRTI"));
-					break;
-				case NNRTI_DRM:
-					mutations = mutations.getDRMs(virusIns.getDrugClass("NNRTI"));
-					break;
-				case INSTI_DRM:
-					mutations = mutations.getDRMs(virusIns.getDrugClass("INSTI"));
-					break;
-				case SDRM:
-					mutations = mutations.getSDRMs();
+					addForbidden(mutsFilterOption.DRM);
 					break;
 				case notSDRM:
-					mutations = mutations.subtractsBy(mutations.getSDRMs());
-					break;
-				case PI_SDRM:
-					mutations = mutations.getSDRMs(virusIns.getDrugClass("PI"));
-					break;
-				case NRTI_SDRM:
-					mutations = mutations.getSDRMs(virusIns.getDrugClass("NRTI"));
-					break;
-				case NNRTI_SDRM:
-					mutations = mutations.getSDRMs(virusIns.getDrugClass("NNRTI"));
-					break;
-				case INSTI_SDRM:
-					mutations = mutations.getSDRMs(virusIns.getDrugClass("INSTI"));
-					break;
-				case TSM:
-					mutations = mutations.getTSMs();
+					addForbidden(mutsFilterOption.SDRM);
 					break;
 				case notTSM:
-					mutations = mutations.subtractsBy(mutations.getTSMs());
-					break;
-				case PI_TSM:
-					mutations = mutations.getTSMs(virusIns.getDrugClass("PI"));
-					break;
-				case NRTI_TSM:
-					mutations = mutations.getTSMs(virusIns.getDrugClass("NRTI"));
-					break;
-				case NNRTI_TSM:
-					mutations = mutations.getTSMs(virusIns.getDrugClass("NNRTI"));
-					break;
-				case INSTI_TSM:
-					mutations = mutations.getTSMs(virusIns.getDrugClass("INSTI"));
-					break;
-				case GENE_PR:
-					// TODO: HIV2 support
-					mutations = mutations.getGeneMutations(virusIns.getGene("HIV1PR"));
-					break;
-				case GENE_RT:
-					mutations = mutations.getGeneMutations(virusIns.getGene("HIV1RT"));
-					break;
-				case GENE_IN:
-					mutations = mutations.getGeneMutations(virusIns.getGene("HIV1IN"));
-					break;
-				case TYPE_MAJOR:
-					mutations = mutations.getByMutType(virusIns.getMutationType("Major"));
-					break;
-				case TYPE_ACCESSORY:
-					mutations = mutations.getByMutType(virusIns.getMutationType("Accessory"));
-					break;
-				case TYPE_NRTI:
-					mutations = mutations.getByMutType(virusIns.getMutationType("NRTI"));
-					break;
-				case TYPE_NNRTI:
-					mutations = mutations.getByMutType(virusIns.getMutationType("NNRTI"));
+					addForbidden(mutsFilterOption.TSM);
 					break;
-				case TYPE_OTHER:
-					mutations = mutations.getByMutType(virusIns.getMutationType("Other"));
-					break;
-				case DELETION:
-					mutations = mutations.getDeletions();
-					break;
-				case INSERTION:
-					mutations = mutations.getInsertions();
-					break;
-				case UNUSUAL:
-					mutations = mutations.getUnusualMutations();
-					break;
-				case AMBIGUOUS:
-					mutations = mutations.getAmbiguousCodons();
+				case CUSTOMLIST:
+					hasCustomList = true;
 					break;
-				case STOPCODON:
-					mutations = mutations.getStopCodons();
+				default:
+					addRequired(option);
 					break;
-				case CUSTOMLIST:
-					List<String> customList = environment.getArgument("customList");
-					Gene<VirusT> gene = null;
-					if (WithGene.class.isInstance(environment.getSource())) {
-						WithGene<VirusT> source = environment.getSource();
-						gene = source.getGene();
+				}
+			}
+		}
+
+		private void addRequired(mutsFilterOption option) {
+			if (splits) {
+				aaRequired |= getBit(option);
+			}
+			else {
+				required |= getBit(option);
+			}
+		}
+
+		private void addForbidden(mutsFilterOption option) {
+			if (splits) {
+				aaForbidden |= getBit(option);
+			}
+			else {
+				forbidden |= getBit(option);
+			}
+		}
+
+		private long getBit(mutsFilterOption option) {
+			Integer index = bitIndices.get(option);
+			if (index == null) {
+				index = predicates.size();
+				bitIndices.put(option, index);
+				predicates.add(makePredicate(option));
+			}
+			return 1L << index;
+		}
+
+		private Predicate<Mutation<VirusT>> makePredicate(mutsFilterOption option) {
+			switch (option) {
+			case APOBEC:
+				return Mutation::isApobecMutation;
+			case APOBEC_DRM:
+				return Mutation::isApobecDRM;
+			case DRM:
+				return Mutation::isDRM;
+			case DRP:
+				return Mutation::isAtDrugResistancePosition;
+			case PI_DRM:
+				return isDrugClass(Mutation::getDRMDrugClass, "PI");
+			case NRTI_DRM:
+				return isDrugClass(Mutation::getDRMDrugClass, "NRTI");
+			case NNRTI_DRM:
+				return isDrugClass(Mutation::getDRMDrugClass, "NNRTI");
+			case INSTI_DRM:
+				return isDrugClass(Mutation::getDRMDrugClass, "INSTI");
+			case SDRM:
+				return Mutation::isSDRM;
+			case PI_SDRM:
+				return isDrugClass(Mutation::getSDRMDrugClass, "PI");
+			case NRTI_SDRM:
+				return isDrugClass(Mutation::getSDRMDrugClass, "NRTI");
+			case NNRTI_SDRM:
+				return isDrugClass(Mutation::getSDRMDrugClass, "NNRTI");
+			case INSTI_SDRM:
+				return isDrugClass(Mutation::getSDRMDrugClass, "INSTI");
+			case TSM:
+				return Mutation::isTSM;
+			case PI_TSM:
+				return isDrugClass(Mutation::getTSMDrugClass, "PI");
+			case NRTI_TSM:
+				return isDrugClass(Mutation::getTSMDrugClass, "NRTI");
+			case NNRTI_TSM:
+				return isDrugClass(Mutation::getTSMDrugClass, "NNRTI");
+			case INSTI_TSM:
+				return isDrugClass(Mutation::getTSMDrugClass, "INSTI");
+			case GENE_PR:
+				// TODO: HIV2 support
+				return isGene("HIV1PR");
+			case GENE_RT:
+				return isGene("HIV1RT");
+			case GENE_IN:
+				return isGene("HIV1IN");
+			case TYPE_MAJOR:
+				return isMutType("Major");
+			case TYPE_ACCESSORY:
+				return isMutType("Accessory");
+			case TYPE_NRTI:
+				return isMutType("NRTI");
+			case TYPE_NNRTI:
+				return isMutType("NNRTI");
+			case TYPE_OTHER:
+				return isMutType("Other");
+			case DELETION:
+				return Mutation::isDeletion;
+			case INSERTION:
+				return Mutation::isInsertion;
+			case UNUSUAL:
+				return Mutation::isUnusual;
+			case AMBIGUOUS:
+				return Mutation::isAmbiguous;
+			case STOPCODON:
+				return Mutation::hasStop;
+			default:
+				throw new IllegalArgumentException("Not a classification: " + option);
+			}
+		}
+
+		private Predicate<Mutation<VirusT>> isDrugClass(
+			Function<Mutation<VirusT>, DrugClass<VirusT>> getDrugClass, String drugClassName
+		) {
+			DrugClass<VirusT> drugClass = virusIns.getDrugClass(drugClassName);
+			return mut -> drugClass.equals(getDrugClass.apply(mut));
+		}
+
+		private Predicate<Mutation<VirusT>> isGene(String geneName) {
+			Gene<VirusT> gene = virusIns.getGene(geneName);
+			return mut -> gene.equals(mut.getGene());
+		}
+
+		private Predicate<Mutation<VirusT>> isMutType(String mutTypeName) {
+			MutationType<VirusT> mutType = virusIns.getMutationType(mutTypeName);
+			return mut -> mutType.equals(mut.getPrimaryType());
+		}
+
+		private boolean matches(Mutation<VirusT> mut, long requiredBits, long forbiddenBits) {
+			long mask = requiredBits | forbiddenBits;
+			long bits = 0;
+			for (int i = 0; i < predicates.size(); i ++) {
+				if ((mask >>> i & 1) != 0 && predicates.get(i).test(mut)) {
+					bits |= 1L << i;
+				}
+			}
+			return (bits & requiredBits) == requiredBits && (bits & forbiddenBits) == 0;
+		}
+
+		MutationSet<VirusT> apply(MutationSet<VirusT> mutations, Gene<VirusT> gene, List<String> customList) {
+			if (!predicates.isEmpty()) {
+				List<Mutation<VirusT>> filtered = new ArrayList<>();
+				if ((required & forbidden) == 0 && (aaRequired & aaForbidden) == 0) {
+					for (Mutation<VirusT> mut : mutations) {
+						if (!matches(mut, required, forbidden)) {
+							continue;
+						}
+						if (!splits) {
+							filtered.add(mut);
+							continue;
+						}
+						for (Mutation<VirusT> aaMut : mut.split()) {
+							if (matches(aaMut, aaRequired, aaForbidden)) {
+								filtered.add(aaMut);
+							}
+						}
 					}
-					MutationSet<VirusT> filterSet = virusIns.newMutationSet(gene, customList);
-					mutations = mutations.intersectsWith(filterSet);
-					break;
 				}
+				mutations = new MutationSet<>(filtered);
+			}
+			if (hasCustomList) {
+				MutationSet<VirusT> filterSet = virusIns.newMutationSet(gene, customList);
+				mutations = mutations.intersectsWith(filterSet);
 			}
 			return mutations;
 		}
@@ -24,11 +24,13 @@ import static graphql.schema.GraphQLObjectType.newObject;
 import static graphql.schema.GraphQLCodeRegistry.newCodeRegistry;
 import static graphql.schema.FieldCoordinates.coordinates;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.tuple.Triple;
@@ -79,17 +81,13 @@ public class MutationsAnalysisDef {
 		return data.getRight();
 	};
 
-	private static <VirusT extends Virus<VirusT>> DataFetcher<List<GeneDR<VirusT>>> makeMutDRDataFetcher(VirusT virusIns) {
+	private static <VirusT extends Virus<VirusT>> DataFetcher<CompletableFuture<List<GeneDR<VirusT>>>> makeMutDRDataFetcher(VirusT virusIns) {
 		return env -> {
 			Map<Gene<VirusT>, MutationSet<VirusT>> mutationsByGene = getMutationsByGeneFromSource(env);
 			String algName = env.getArgument("algorithm");
-			return mutationsByGene
-				.entrySet()
-				.stream()
-				.map(e -> new GeneDR<>(
-					e.getKey(), e.getValue(), virusIns.getDrugResistAlgorithm(algName)
-				))
-				.collect(Collectors.toList());
+			return GeneDRLoader.loadMany(
+				env.getContext(), virusIns, mutationsByGene,
+				virusIns.getDrugResistAlgorithm(algName));
 		};
 	};
 	
@@ -120,7 +118,10 @@ public class MutationsAnalysisDef {
 					LinkedHashMap::new
 				));
 			MutationSet<VirusT> mutations = getMutationSetFromSource(env);
-			return fetchAlgorithmComparisonData(virusIns, mutations, asiAlgs, customAlgs2);
+			List<String> algNames = asiAlgs;
+			return RequestContext.memoize(
+				env, env.getSource(), Arrays.asList("algorithmComparison", algNames, customAlgs2),
+				() -> fetchAlgorithmComparisonData(virusIns, mutations, algNames, customAlgs2));
 		};
 	};
 
@@ -141,11 +142,11 @@ public class MutationsAnalysisDef {
 			)
 			.dataFetcher(
 				coordinates("MutationsAnalysis", "mutationPrevalences"),
-				mutMutPrevDataFetcher
+				RequestContext.async(mutMutPrevDataFetcher)
 			)
 			.dataFetcher(
 				coordinates("MutationsAnalysis", "algorithmComparison"),
-				makeMutAlgCmpDataFetcher(virusIns)
+				RequestContext.async(makeMutAlgCmpDataFetcher(virusIns))
 			)
 			.build()
 		);
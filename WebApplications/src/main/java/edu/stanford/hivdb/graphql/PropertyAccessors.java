@@ -0,0 +1,258 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Resolves (class, property) pairs once into cached accessor functions.
+ *
+ * Public methods of public classes are turned into a lambda through
+ * LambdaMetafactory, so they are called as fast as a direct call. Other
+ * methods and fields fall back to a MethodHandle.
+ *
+ * Like graphql-java's PropertyDataFetcher, bean properties fall back to
+ * non-public getters and fields through setAccessible.
+ */
+public class PropertyAccessors {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final Function<Object, Object> NOT_FOUND = source -> null;
+
+	private static final ClassValue<Map<String, Function<Object, Object>>> ACCESSORS =
+		new ClassValue<Map<String, Function<Object, Object>>>() {
+			@Override
+			protected Map<String, Function<Object, Object>> computeValue(Class<?> type) {
+				return new ConcurrentHashMap<>();
+			}
+		};
+
+	/**
+	 * Same lookup order as graphql-java's PropertyDataFetcher: public "is"
+	 * getter (boolean fields only) and "get" getter, the same getters
+	 * declared non-public in the class or a superclass, then public field
+	 * and field declared in the class itself.
+	 *
+	 * @return the accessor, returns null for every source when nothing matches
+	 */
+	public static Function<Object, Object> getBeanAccessor(
+		Class<?> type, String propertyName, boolean isBoolean
+	) {
+		String key = (isBoolean ? "bean?:" : "bean:") + propertyName;
+		return ACCESSORS.get(type).computeIfAbsent(key, k -> {
+			String capitalized = Character.toUpperCase(propertyName.charAt(0)) + propertyName.substring(1);
+			Function<Object, Object> accessor = null;
+			if (isBoolean) {
+				accessor = fromMethod(findMethod(type, "is" + capitalized));
+			}
+			if (accessor == null) {
+				accessor = fromMethod(findMethod(type, "get" + capitalized));
+			}
+			if (accessor == null && isBoolean) {
+				accessor = fromMethod(findDeclaredMethod(type, "is" + capitalized));
+			}
+			if (accessor == null) {
+				accessor = fromMethod(findDeclaredMethod(type, "get" + capitalized));
+			}
+			if (accessor == null) {
+				accessor = fromField(type, propertyName);
+			}
+			if (accessor == null) {
+				accessor = fromDeclaredField(type, propertyName);
+			}
+			return accessor == null ? NOT_FOUND : accessor;
+		});
+	}
+
+	/**
+	 * Lookup order of Sierra's own convention: a method named after the
+	 * property, toString() for "text", then public field.
+	 *
+	 * @return the accessor, returns null for every source when nothing matches
+	 */
+	public static Function<Object, Object> getMethodAccessor(Class<?> type, String propertyName) {
+		String key = "method:" + propertyName;
+		return ACCESSORS.get(type).computeIfAbsent(key, k -> {
+			Method method = findMethod(type, propertyName);
+			if (method == null && propertyName.equals("text")) {
+				method = findMethod(type, "toString");
+			}
+			Function<Object, Object> accessor = (
+				method == null ? fromField(type, propertyName) : fromMethod(method));
+			return accessor == null ? NOT_FOUND : accessor;
+		});
+	}
+
+	/**
+	 * Finds a public no-argument method, preferring a declaration in a
+	 * public class or interface so that it is callable without
+	 * setAccessible.
+	 */
+	private static Method findMethod(Class<?> type, String name) {
+		Method method;
+		try {
+			method = type.getMethod(name);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+		if (Modifier.isStatic(method.getModifiers())) {
+			return null;
+		}
+		if (Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+			return method;
+		}
+		Deque<Class<?>> queue = new ArrayDeque<>();
+		Set<Class<?>> visited = new HashSet<>();
+		queue.add(type);
+		while (!queue.isEmpty()) {
+			Class<?> current = queue.poll();
+			if (!visited.add(current)) {
+				continue;
+			}
+			if (Modifier.isPublic(current.getModifiers())) {
+				try {
+					return current.getMethod(name);
+				} catch (NoSuchMethodException e) {
+					// not declared on this branch
+				}
+			}
+			if (current.getSuperclass() != null) {
+				queue.add(current.getSuperclass());
+			}
+			for (Class<?> iface : current.getInterfaces()) {
+				queue.add(iface);
+			}
+		}
+		try {
+			method.setAccessible(true);
+			return method;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Finds a no-argument method declared in the class or a superclass
+	 * whatever its visibility, made accessible with setAccessible.
+	 */
+	private static Method findDeclaredMethod(Class<?> type, String name) {
+		for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+			for (Method method : current.getDeclaredMethods()) {
+				if (
+					method.getName().equals(name) &&
+					method.getParameterCount() == 0 &&
+					!Modifier.isStatic(method.getModifiers())
+				) {
+					try {
+						method.setAccessible(true);
+						return method;
+					} catch (RuntimeException e) {
+						return null;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Function<Object, Object> fromMethod(Method method) {
+		if (method == null || method.getReturnType() == void.class) {
+			return null;
+		}
+		MethodHandle handle;
+		try {
+			handle = LOOKUP.unreflect(method);
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+		if (
+			Modifier.isPublic(method.getModifiers()) &&
+			Modifier.isPublic(method.getDeclaringClass().getModifiers())
+		) {
+			try {
+				CallSite site = LambdaMetafactory.metafactory(
+					LOOKUP, "apply",
+					MethodType.methodType(Function.class),
+					MethodType.methodType(Object.class, Object.class),
+					handle,
+					MethodType.methodType(Object.class, method.getDeclaringClass()));
+				@SuppressWarnings("unchecked")
+				Function<Object, Object> function = (Function<Object, Object>) site.getTarget().invokeExact();
+				return function;
+			} catch (Throwable e) {
+				// e.g. class loader restrictions; use the method handle
+			}
+		}
+		return fromHandle(handle);
+	}
+
+	private static Function<Object, Object> fromField(Class<?> type, String name) {
+		Field field;
+		try {
+			field = type.getField(name);
+			if (Modifier.isStatic(field.getModifiers())) {
+				return null;
+			}
+			return fromHandle(LOOKUP.unreflectGetter(field));
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	private static Function<Object, Object> fromDeclaredField(Class<?> type, String name) {
+		try {
+			Field field = type.getDeclaredField(name);
+			if (Modifier.isStatic(field.getModifiers())) {
+				return null;
+			}
+			field.setAccessible(true);
+			return fromHandle(LOOKUP.unreflectGetter(field));
+		} catch (NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static Function<Object, Object> fromHandle(MethodHandle handle) {
+		MethodHandle generic = handle.asType(MethodType.methodType(Object.class, Object.class));
+		return source -> {
+			try {
+				return generic.invokeExact(source);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import graphql.ExecutionResult;
+import graphql.analysis.QueryTraverser;
+import graphql.analysis.QueryVisitorFieldEnvironment;
+import graphql.analysis.QueryVisitorStub;
+import graphql.execution.AbortExecutionException;
+import graphql.execution.ExecutionContext;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationExecuteOperationParameters;
+import graphql.language.Document;
+import graphql.schema.GraphQLFieldsContainer;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLTypeUtil;
+
+/**
+ * Static cost model of Sierra queries, evaluated before execution.
+ *
+ * The cost of a field is its weight plus the cost of its sub-selections,
+ * multiplied by the number of inputs of the list arguments (sequences,
+ * sequenceReads, patterns). Algorithms and mutation filters are charged
+ * per requested algorithm or filter option. Aliased fields are counted
+ * separately. Queries over GRAPHQL_MAX_QUERY_COST are rejected with an
+ * ExecutionAborted error.
+ *
+ * The default budget admits a few hundred sequences with the usual
+ * report fields, but not a hundred sequences compared across every
+ * built-in and several custom algorithms.
+ */
+public class QueryCostInstrumentation extends SimpleInstrumentation {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final long DEFAULT_MAX_COST;
+
+	private static final long ALIGNMENT = 100;
+	private static final long READS_PROCESSING = 50;
+	private static final long GENOTYPE = 20;
+	private static final long ASI_EVALUATION = 20;
+	private static final long CUSTOM_ALGORITHM = 200;
+	private static final long HISTOGRAM = 50;
+	private static final long CODON_READS_COVERAGE = 20;
+	private static final long MUTATION_PREVALENCE = 10;
+	private static final long MUTATION_FILTER = 5;
+
+	private static final Map<String, Long> FIELD_WEIGHTS = new HashMap<>();
+
+	static {
+		String maxCost = System.getenv("GRAPHQL_MAX_QUERY_COST");
+		if (maxCost == null) {
+			maxCost = "100000";
+		}
+		DEFAULT_MAX_COST = Long.parseLong(maxCost);
+
+		FIELD_WEIGHTS.put("sequenceAnalysis", ALIGNMENT);
+		FIELD_WEIGHTS.put("sequenceReadsAnalysis", READS_PROCESSING);
+		FIELD_WEIGHTS.put("subtypes", GENOTYPE);
+		FIELD_WEIGHTS.put("subtypesV2", GENOTYPE);
+		FIELD_WEIGHTS.put("genotypes", GENOTYPE);
+		FIELD_WEIGHTS.put("bestMatchingSubtype", GENOTYPE);
+		FIELD_WEIGHTS.put("bestMatchingGenotype", GENOTYPE);
+		FIELD_WEIGHTS.put("subtypeText", GENOTYPE);
+		FIELD_WEIGHTS.put("drugResistance", ASI_EVALUATION);
+		FIELD_WEIGHTS.put("histogram", HISTOGRAM);
+		FIELD_WEIGHTS.put("codonReadsCoverage", CODON_READS_COVERAGE);
+		FIELD_WEIGHTS.put("internalJsonCodonReadsCoverage", CODON_READS_COVERAGE);
+		FIELD_WEIGHTS.put("binaryCodonReadsCoverage", CODON_READS_COVERAGE);
+		FIELD_WEIGHTS.put("mutationPrevalences", MUTATION_PREVALENCE);
+	}
+
+	private final long maxCost;
+
+	public QueryCostInstrumentation() {
+		this(DEFAULT_MAX_COST);
+	}
+
+	public QueryCostInstrumentation(long maxCost) {
+		this.maxCost = maxCost;
+	}
+
+	@Override
+	public InstrumentationContext<ExecutionResult> beginExecuteOperation(
+		InstrumentationExecuteOperationParameters parameters
+	) {
+		ExecutionContext context = parameters.getExecutionContext();
+		long cost = calculate(
+			context.getGraphQLSchema(), context.getDocument(),
+			context.getOperationDefinition().getName(), context.getVariables());
+		// parameterized so that accepted queries skip the formatting
+		LOGGER.debug("GraphQL query cost: {} (budget {})", cost, maxCost);
+		if (cost > maxCost) {
+			LOGGER.info(String.format("Rejected GraphQL query of cost %d (budget %d)", cost, maxCost));
+			throw new AbortExecutionException(String.format(
+				"Query cost %d exceeds the budget %d. Split the input into smaller " +
+				"requests, or request fewer algorithms and aliased fields.",
+				cost, maxCost));
+		}
+		return super.beginExecuteOperation(parameters);
+	}
+
+	public static long calculate(
+		GraphQLSchema schema, Document document,
+		String operationName, Map<String, Object> variables
+	) {
+		Map<QueryVisitorFieldEnvironment, Long> costsByParent = new HashMap<>();
+		QueryTraverser
+			.newQueryTraverser()
+			.schema(schema)
+			.document(document)
+			.operationName(operationName)
+			.variables(variables)
+			.build()
+			.visitPostOrder(new QueryVisitorStub() {
+				@Override
+				public void visitField(QueryVisitorFieldEnvironment env) {
+					long cost = getFieldCost(env, costsByParent.getOrDefault(env, 0L));
+					costsByParent.merge(env.getParentEnvironment(), cost, QueryCostInstrumentation::saturatedAdd);
+				}
+			});
+		return costsByParent.getOrDefault(null, 0L);
+	}
+
+	private static long getFieldCost(QueryVisitorFieldEnvironment env, long childCost) {
+		String name = env.getField().getName();
+		Map<String, Object> args = env.getArguments();
+		long weight;
+		long multiplier = 1;
+		switch (name) {
+			case "sequenceAnalysis":
+				multiplier = size(args.get("sequences"));
+				break;
+			case "sequenceReadsAnalysis":
+				multiplier = size(args.get("sequenceReads"));
+				break;
+			case "patternAnalysis":
+				multiplier = size(args.get("patterns"));
+				break;
+			default:
+				break;
+		}
+		if (name.equals("algorithmComparison")) {
+			weight = (
+				ASI_EVALUATION * size(args.get("algorithms")) +
+				(ASI_EVALUATION + CUSTOM_ALGORITHM) * size(args.get("customAlgorithms"))
+			);
+		}
+		else if (args.get("filterOptions") != null || args.get("customList") != null) {
+			// mutation sets are filtered once per option
+			weight = 1 + MUTATION_FILTER * (
+				size(args.get("filterOptions")) +
+				(args.get("customList") == null ? 0 : 1)
+			);
+		}
+		else if (FIELD_WEIGHTS.containsKey(name)) {
+			weight = FIELD_WEIGHTS.get(name);
+		}
+		else {
+			// leaf fields are free, every object costs one
+			boolean isObject = GraphQLTypeUtil.unwrapAll(
+				env.getFieldDefinition().getType()) instanceof GraphQLFieldsContainer;
+			weight = isObject ? 1 : 0;
+		}
+		long cost = saturatedAdd(weight, childCost);
+		return multiplier > 0 && cost > Long.MAX_VALUE / multiplier ? Long.MAX_VALUE : cost * multiplier;
+	}
+
+	private static long size(Object value) {
+		return value instanceof Collection ? ((Collection<?>) value).size() : 0;
+	}
+
+	private static long saturatedAdd(long a, long b) {
+		long sum = a + b;
+		return sum < 0 ? Long.MAX_VALUE : sum;
+	}
+
+}
@@ -0,0 +1,230 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.dataloader.DataLoaderRegistry;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+
+/**
+ * Per-request state of a GraphQL execution, passed as the execution
+ * context.
+ *
+ * Heavy per-element fetchers wrapped by {@link #async} run on a shared
+ * bounded pool (GRAPHQL_FETCHER_THREADS), so fields of different list
+ * elements are resolved in parallel. A single request never runs more than
+ * GRAPHQL_MAX_PARALLELISM_PER_REQUEST of them at once.
+ *
+ * The context also holds the request's DataLoaderRegistry, which must be
+ * passed to the ExecutionInput as well, and a memo table for results that
+ * repeated or aliased fields would otherwise compute again.
+ */
+public class RequestContext {
+
+	private static final int MAX_PARALLELISM;
+	private static final ExecutorService EXECUTOR;
+
+	static {
+		int numProcessors = Runtime.getRuntime().availableProcessors();
+		String numThreads = System.getenv("GRAPHQL_FETCHER_THREADS");
+		if (numThreads == null) {
+			numThreads = String.valueOf(numProcessors);
+		}
+		String maxParallelism = System.getenv("GRAPHQL_MAX_PARALLELISM_PER_REQUEST");
+		if (maxParallelism == null) {
+			maxParallelism = String.valueOf(numProcessors);
+		}
+		MAX_PARALLELISM = Math.max(1, Integer.parseInt(maxParallelism));
+		EXECUTOR = Executors.newFixedThreadPool(
+			Integer.parseInt(numThreads),
+			new ThreadFactoryBuilder()
+			.setNameFormat("graphql-fetcher-%d")
+			.setDaemon(true)
+			.build());
+	}
+
+	private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger numRunning = new AtomicInteger();
+	private final DataLoaderRegistry dataLoaderRegistry = new DataLoaderRegistry();
+	private final ConcurrentMap<MemoKey, CompletableFuture<Object>> memo = new ConcurrentHashMap<>();
+
+	private static class MemoKey {
+		private final Object source;
+		private final List<?> keyParts;
+
+		private MemoKey(Object source, List<?> keyParts) {
+			this.source = source;
+			this.keyParts = keyParts;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) { return true; }
+			if (!(o instanceof MemoKey)) { return false; }
+			MemoKey other = (MemoKey) o;
+			return source == other.source && keyParts.equals(other.keyParts);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(source) + keyParts.hashCode();
+		}
+	}
+
+	public RequestContext() {
+		dataLoaderRegistry.register(GeneDRLoader.NAME, GeneDRLoader.newDataLoader(this));
+	}
+
+	public DataLoaderRegistry getDataLoaderRegistry() {
+		return dataLoaderRegistry;
+	}
+
+	/**
+	 * Wraps a fetcher so that it runs on the fetcher pool when the
+	 * execution has a RequestContext, and synchronously otherwise.
+	 */
+	public static <T> DataFetcher<Object> async(DataFetcher<T> fetcher) {
+		return env -> {
+			Object context = env.getContext();
+			if (!(context instanceof RequestContext)) {
+				return fetcher.get(env);
+			}
+			return ((RequestContext) context).submit(() -> fetcher.get(env));
+		};
+	}
+
+	/**
+	 * Computes a value at most once per request for the same source object
+	 * (compared by identity) and key parts, e.g. gene and algorithm.
+	 * Concurrent callers with the same key wait for the first one.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T memoize(Object source, List<?> keyParts, Supplier<T> supplier) {
+		MemoKey key = new MemoKey(source, keyParts);
+		CompletableFuture<Object> future = memo.get(key);
+		if (future == null) {
+			CompletableFuture<Object> created = new CompletableFuture<>();
+			future = memo.putIfAbsent(key, created);
+			if (future == null) {
+				future = created;
+				try {
+					created.complete(supplier.get());
+				} catch (RuntimeException | Error e) {
+					created.completeExceptionally(e);
+				}
+			}
+		}
+		try {
+			return (T) future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return number of distinct keys memoized so far
+	 */
+	protected int getMemoSize() {
+		return memo.size();
+	}
+
+	/**
+	 * Same as {@link #memoize(Object, List, Supplier)} on the execution's
+	 * RequestContext; computes directly when there is none.
+	 */
+	public static <T> T memoize(
+		DataFetchingEnvironment env, Object source, List<?> keyParts, Supplier<T> supplier
+	) {
+		Object context = env.getContext();
+		if (!(context instanceof RequestContext)) {
+			return supplier.get();
+		}
+		return ((RequestContext) context).memoize(source, keyParts, supplier);
+	}
+
+	/**
+	 * Runs the supplier on the fetcher pool under this request's
+	 * parallelism cap.
+	 */
+	public <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+		return submit(supplier::get);
+	}
+
+	private <T> CompletableFuture<T> submit(Callable<T> callable) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		pending.add(() -> {
+			try {
+				future.complete(callable.call());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		});
+		dispatch();
+		return future;
+	}
+
+	private void dispatch() {
+		while (true) {
+			int running = numRunning.get();
+			if (running >= MAX_PARALLELISM || pending.isEmpty()) {
+				return;
+			}
+			if (!numRunning.compareAndSet(running, running + 1)) {
+				continue;
+			}
+			Runnable task = pending.poll();
+			if (task == null) {
+				numRunning.decrementAndGet();
+				continue;
+			}
+			EXECUTOR.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					numRunning.decrementAndGet();
+					dispatch();
+				}
+			});
+		}
+	}
+
+}
@@ -25,22 +25,25 @@ import static graphql.schema.GraphQLObjectType.newObject;
 import static graphql.schema.GraphQLCodeRegistry.newCodeRegistry;
 import static graphql.schema.FieldCoordinates.coordinates;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
-import com.google.common.collect.Lists;
-
 import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
 import edu.stanford.hivdb.genotypes.BoundGenotype;
 import edu.stanford.hivdb.genotypes.GenotypeResult;
+import edu.stanford.hivdb.graphql.StageMetrics.Stage;
 import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.sequences.AlignedGeneSeq;
 import edu.stanford.hivdb.sequences.AlignedSequence;
 import edu.stanford.hivdb.utilities.SimpleMemoizer;
+import edu.stanford.hivdb.viruses.Gene;
 import edu.stanford.hivdb.viruses.Virus;
 
 import static edu.stanford.hivdb.graphql.UnalignedSequenceDef.*;
@@ -58,12 +61,20 @@ import static edu.stanford.hivdb.graphql.AlgorithmComparisonDef.*;
 import static edu.stanford.hivdb.graphql.DrugResistanceAlgorithmDef.*;
 
 public class SequenceAnalysisDef {
-	
+
+	private static <VirusT extends Virus<VirusT>> GenotypeResult<VirusT> getGenotypeResult(
+		VirusT virusIns, AlignedSequence<VirusT> alignedSeq
+	) {
+		return StageMetrics.time(
+			Stage.GENOTYPE, virusIns.getName(), null, 1,
+			alignedSeq::getGenotypeResult);
+	}
+
 	private static <VirusT extends Virus<VirusT>> DataFetcher<List<Map<String, Object>>> makeSubtypesDataFetcher(VirusT virusIns) {
 		return env -> {
 			int first = env.getArgument("first");
 			AlignedSequence<VirusT> alignedSeq = env.getSource();
-			GenotypeResult<VirusT> subtypeResult = alignedSeq.getGenotypeResult();
+			GenotypeResult<VirusT> subtypeResult = getGenotypeResult(virusIns, alignedSeq);
 			if (subtypeResult == null) {
 				return Collections.emptyList();
 			}
@@ -87,7 +98,7 @@ public class SequenceAnalysisDef {
 		return env -> {
 			int first = env.getArgument("first");
 			AlignedSequence<VirusT> alignedSeq = env.getSource();
-			GenotypeResult<VirusT> subtypeResult = alignedSeq.getGenotypeResult();
+			GenotypeResult<VirusT> subtypeResult = getGenotypeResult(virusIns, alignedSeq);
 			if (subtypeResult == null) {
 				return Collections.emptyList();
 			}
@@ -95,16 +106,16 @@ public class SequenceAnalysisDef {
 		};
 	};
 
-	private static <VirusT extends Virus<VirusT>> DataFetcher<List<GeneDR<VirusT>>> makeDrugResistanceDataFetcher(VirusT virusIns) {
+	private static <VirusT extends Virus<VirusT>> DataFetcher<CompletableFuture<List<GeneDR<VirusT>>>> makeDrugResistanceDataFetcher(VirusT virusIns) {
 		return env -> {
 			AlignedSequence<VirusT> alignedSeq = env.getSource();
 			String algName = env.getArgument("algorithm");
-			List<AlignedGeneSeq<VirusT>> geneSeqs = alignedSeq.getAlignedGeneSequences();
-			return Lists.newArrayList(
-				GeneDR.newFromAlignedGeneSeqs(
-					geneSeqs, virusIns.getDrugResistAlgorithm(algName)
-				).values()
-			);
+			DrugResistanceAlgorithm<VirusT> alg = virusIns.getDrugResistAlgorithm(algName);
+			Map<Gene<VirusT>, MutationSet<VirusT>> mutationsByGene = new LinkedHashMap<>();
+			for (AlignedGeneSeq<VirusT> geneSeq : alignedSeq.getAlignedGeneSequences()) {
+				mutationsByGene.put(geneSeq.getGene(), geneSeq.getMutations());
+			}
+			return GeneDRLoader.loadMany(env.getContext(), virusIns, mutationsByGene, alg);
 		};
 	};
 	
@@ -123,7 +134,7 @@ public class SequenceAnalysisDef {
 			if (asiAlgs.isEmpty() && customAlgs.isEmpty()) {
 				return Collections.emptyList();
 			}
-			asiAlgs = asiAlgs
+			List<String> asiAlgs2 = asiAlgs
 				.stream().filter(alg -> alg != null)
 				.collect(Collectors.toList());
 			Map<String, String> customAlgs2 = customAlgs
@@ -136,7 +147,9 @@ public class SequenceAnalysisDef {
 					LinkedHashMap::new
 				));
 			AlignedSequence<VirusT> alignedSeq = env.getSource();
-			return fetchAlgorithmComparisonData(virusIns, alignedSeq.getMutations(), asiAlgs, customAlgs2);
+			return RequestContext.memoize(
+				env, alignedSeq, Arrays.asList("algorithmComparison", asiAlgs2, customAlgs2),
+				() -> fetchAlgorithmComparisonData(virusIns, alignedSeq.getMutations(), asiAlgs2, customAlgs2));
 		};
 	};
 			
@@ -144,15 +157,15 @@ public class SequenceAnalysisDef {
 		return newCodeRegistry()
 			.dataFetcher(
 				coordinates("SequenceAnalysis", "subtypes"),
-				makeSubtypesDataFetcher(virusIns)
+				RequestContext.async(makeSubtypesDataFetcher(virusIns))
 			)
 			.dataFetcher(
 				coordinates("SequenceAnalysis", "subtypesV2"),
-				makeSubtypesDataFetcherV2(virusIns)
+				RequestContext.async(makeSubtypesDataFetcherV2(virusIns))
 			)
 			.dataFetcher(
 				coordinates("SequenceAnalysis", "genotypes"),
-				makeSubtypesDataFetcherV2(virusIns)
+				RequestContext.async(makeSubtypesDataFetcherV2(virusIns))
 			)
 			.dataFetcher(
 				coordinates("SequenceAnalysis", "drugResistance"),
@@ -160,11 +173,11 @@ public class SequenceAnalysisDef {
 			)
 			.dataFetcher(
 				coordinates("SequenceAnalysis", "mutationPrevalences"),
-				boundMutPrevListDataFetcher
+				RequestContext.async(boundMutPrevListDataFetcher)
 			)
 			.dataFetcher(
 				coordinates("SequenceAnalysis", "algorithmComparison"),
-				makeAlgComparisonDataFetcher(virusIns)
+				RequestContext.async(makeAlgComparisonDataFetcher(virusIns))
 			)
 			.dataFetcher(
 				coordinates("SequenceAnalysis", "mutations"),
@@ -27,6 +27,7 @@ import static graphql.schema.GraphQLCodeRegistry.newCodeRegistry;
 import static graphql.schema.FieldCoordinates.coordinates;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -77,7 +78,10 @@ public class SequenceReadsAnalysisDef {
 			String algName = env.getArgument("algorithm");
 			DrugResistanceAlgorithm<VirusT> alg = virusIns.getDrugResistAlgorithm(algName);
 			List<GeneSequenceReads<VirusT>> allGeneSeqReads = seqReads.getAllGeneSequenceReads();
-			return new ArrayList<>(GeneDR.newFromGeneSequenceReads(allGeneSeqReads, alg).values());
+			// gene is null: one entry covers all genes of the source
+			return RequestContext.memoize(
+				env, seqReads, Arrays.asList("drugResistance", null, alg),
+				() -> new ArrayList<>(GeneDR.newFromGeneSequenceReads(allGeneSeqReads, alg).values()));
 		};
 	};
 	
@@ -194,22 +198,31 @@ public class SequenceReadsAnalysisDef {
 			.collect(Collectors.toList()));
 	};
 
+	private static DataFetcher<String> binaryCodonReadsCoverageDataFetcher = env -> {
+		SequenceReads<?> sr = env.getSource();
+		return CodonReadsCoverageCodec.encode(sr.getCodonReadsCoverage());
+	};
+
 
 	public static <VirusT extends Virus<VirusT>> GraphQLCodeRegistry makeSequenceReadsCodeRegistry(VirusT virusIns) {
 		return (
 			newCodeRegistry()
 			.dataFetcher(
 				coordinates("SequenceReadsAnalysis", "subtypes"),
-				makeSubtypesDataFetcher(virusIns)
+				RequestContext.async(makeSubtypesDataFetcher(virusIns))
 			)
 			.dataFetcher(
 				coordinates("SequenceReadsAnalysis", "drugResistance"),
-				makeDrugResistanceDataFetcher(virusIns)
+				RequestContext.async(makeDrugResistanceDataFetcher(virusIns))
 			)
 			.dataFetcher(
 				coordinates("SequenceReadsAnalysis", "internalJsonCodonReadsCoverage"),
 				internalJsonCodonReadsCoverageDataFetcher
 			)
+			.dataFetcher(
+				coordinates("SequenceReadsAnalysis", "binaryCodonReadsCoverage"),
+				binaryCodonReadsCoverageDataFetcher
+			)
 			.dataFetcher(
 				coordinates("SequenceReadsAnalysis", "histogram"),
 				seqReadsHistogramDataFetcher
@@ -330,6 +343,13 @@ public class SequenceReadsAnalysisDef {
 				.name("internalJsonCodonReadsCoverage")
 				.description(
 					"Position codon reads in this gene sequence (json formated)."))
+			.field(field -> field
+				.type(GraphQLString)
+				.name("binaryCodonReadsCoverage")
+				.description(
+					"Codon reads coverage in a base64 columnar encoding: version byte, " +
+					"gene name table, then varint columns of gene index, zigzag position " +
+					"delta and total reads, and an isTrimmed bitmap."))
 			.build()
 		)
 	);
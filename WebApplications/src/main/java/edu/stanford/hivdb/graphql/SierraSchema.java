@@ -46,7 +46,6 @@ import edu.stanford.hivdb.hivfacts.hiv2.HIV2;
 import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.seqreads.SequenceReads;
 import edu.stanford.hivdb.sequences.AlignedSequence;
-import edu.stanford.hivdb.sequences.NucAminoAligner;
 import edu.stanford.hivdb.sequences.Sequence;
 import edu.stanford.hivdb.utilities.SimpleMemoizer;
 import edu.stanford.hivdb.viruses.Gene;
@@ -89,7 +88,9 @@ public class SierraSchema {
 					seqs.size(), MAXIMUM_SEQUENCES_PER_PAYLOAD));
 			}
 			List<Sequence> seqList = toSequenceList(seqs);
-			return NucAminoAligner.getInstance(virusIns).parallelAlign(seqList);
+			List<AlignedSequence<VirusT>> alignedSeqs = AlignedSequenceCache.parallelAlign(virusIns, seqList);
+			AnalysisPlan.fromSelectionSet(env.getSelectionSet()).prefetch(env.getContext(), virusIns, alignedSeqs);
+			return alignedSeqs;
 		};
 	};
 
@@ -0,0 +1,126 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Per-stage latency histograms and item counters of the analysis
+ * pipeline, labelled by virus and drug resistance algorithm.
+ */
+public class StageMetrics {
+
+	public static enum Stage {
+		ALIGNMENT, GENOTYPE, DRUG_RESISTANCE, SERIALIZATION;
+
+		public String getLabel() {
+			return name().toLowerCase();
+		}
+	}
+
+	public static class Series {
+		private final Stage stage;
+		private final String virus;
+		private final String algorithm;
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private final LongAdder numItems = new LongAdder();
+
+		private Series(Stage stage, String virus, String algorithm) {
+			this.stage = stage;
+			this.virus = virus;
+			this.algorithm = algorithm;
+		}
+
+		public Stage getStage() { return stage; }
+
+		public String getVirus() { return virus; }
+
+		public String getAlgorithm() { return algorithm; }
+
+		public LatencyHistogram getLatencies() { return latencies; }
+
+		public long getNumItems() { return numItems.sum(); }
+
+		/**
+		 * @return Prometheus label pairs of this series, without braces
+		 */
+		public String getLabels() {
+			return String.format(
+				"stage=\"%s\",virus=\"%s\",algorithm=\"%s\"",
+				stage.getLabel(), virus, algorithm);
+		}
+	}
+
+	private static final ConcurrentMap<String, Series> SERIES = new ConcurrentHashMap<>();
+
+	public static Series getSeries(Stage stage, String virus, String algorithm) {
+		if (algorithm == null) {
+			algorithm = "";
+		}
+		String key = stage + "\u0000" + virus + "\u0000" + algorithm;
+		Series series = SERIES.get(key);
+		if (series == null) {
+			final String alg = algorithm;
+			series = SERIES.computeIfAbsent(key, k -> new Series(stage, virus, alg));
+		}
+		return series;
+	}
+
+	/**
+	 * Runs a stage and records its latency.
+	 *
+	 * @param stage pipeline stage
+	 * @param virus virus name
+	 * @param algorithm algorithm name; null if the stage doesn't use one
+	 * @param numItems number of sequences processed by this call
+	 * @param supplier the stage
+	 * @return result of supplier
+	 */
+	public static <T> T time(
+		Stage stage, String virus, String algorithm, int numItems, Supplier<T> supplier
+	) {
+		long startNanos = System.nanoTime();
+		try {
+			return supplier.get();
+		} finally {
+			Series series = getSeries(stage, virus, algorithm);
+			series.latencies.recordSince(startNanos);
+			series.numItems.add(numItems);
+		}
+	}
+
+	/**
+	 * @return all series recorded so far, ordered by stage, virus and algorithm
+	 */
+	public static List<Series> getAllSeries() {
+		List<Series> all = new ArrayList<>(SERIES.values());
+		all.sort(
+			Comparator.comparing(Series::getStage)
+			.thenComparing(Series::getVirus)
+			.thenComparing(Series::getAlgorithm));
+		return all;
+	}
+
+}
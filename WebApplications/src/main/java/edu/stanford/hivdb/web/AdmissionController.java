@@ -0,0 +1,262 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+
+import edu.stanford.hivdb.graphql.LatencyHistogram;
+import edu.stanford.hivdb.sequences.Sequence;
+
+/**
+ * Limits the amount of CPU-heavy analysis running at once.
+ *
+ * Each request is charged a cost (one unit per sequence plus one unit per
+ * started kilobase). Requests wait in a bounded queue for up to
+ * ADMISSION_MAX_WAIT_MILLIS until enough units are free, otherwise they
+ * are rejected with 503 and a Retry-After header.
+ *
+ * Requests are classified into two lanes. A share of the capacity
+ * (ADMISSION_INTERACTIVE_SHARE percent) is reserved for the interactive
+ * lane, so small requests don't wait behind batches. Interactive requests
+ * may also use the shared capacity when it is free; bulk requests only
+ * use the shared capacity. Clients can send "X-Sierra-Lane: bulk" to move
+ * a small request out of the reserved lane, but never the other way.
+ */
+public class AdmissionController {
+
+	public static final String LANE_HEADER = "X-Sierra-Lane";
+
+	public static enum Lane {
+		INTERACTIVE, BULK;
+
+		/**
+		 * Classifies a request by its cost. The lane header can only
+		 * downgrade a request to the bulk lane; a request over
+		 * ADMISSION_INTERACTIVE_MAX_COST is bulk whatever the header says.
+		 */
+		public static Lane classify(String laneHeader, int cost) {
+			if (laneHeader != null && laneHeader.equalsIgnoreCase("bulk")) {
+				return BULK;
+			}
+			return cost <= INTERACTIVE_MAX_COST && cost <= RESERVED_COST ? INTERACTIVE : BULK;
+		}
+
+		public String getLabel() {
+			return name().toLowerCase();
+		}
+	}
+
+	private static final int MAX_COST;
+	private static final int RESERVED_COST;
+	private static final int SHARED_COST;
+	private static final int INTERACTIVE_MAX_COST;
+	private static final int MAX_QUEUED;
+	private static final long MAX_WAIT_MILLIS;
+	private static final long RETRY_AFTER_SECONDS;
+
+	private static final Semaphore RESERVED_PERMITS;
+	private static final Semaphore SHARED_PERMITS;
+	private static final AtomicInteger NUM_QUEUED = new AtomicInteger();
+	private static final Map<Lane, AtomicLong> NUM_ADMITTED = new EnumMap<>(Lane.class);
+	private static final Map<Lane, AtomicLong> NUM_REJECTED = new EnumMap<>(Lane.class);
+	private static final Map<Lane, LatencyHistogram> LATENCIES = new EnumMap<>(Lane.class);
+
+	static {
+		String maxCost = System.getenv("ADMISSION_MAX_COST");
+		if (maxCost == null) {
+			maxCost = String.valueOf(Runtime.getRuntime().availableProcessors() * 64);
+		}
+		String interactiveShare = System.getenv("ADMISSION_INTERACTIVE_SHARE");
+		if (interactiveShare == null) {
+			interactiveShare = "25";
+		}
+		String interactiveMaxCost = System.getenv("ADMISSION_INTERACTIVE_MAX_COST");
+		if (interactiveMaxCost == null) {
+			interactiveMaxCost = "8";
+		}
+		String maxQueued = System.getenv("ADMISSION_MAX_QUEUED");
+		if (maxQueued == null) {
+			maxQueued = "64";
+		}
+		String maxWait = System.getenv("ADMISSION_MAX_WAIT_MILLIS");
+		if (maxWait == null) {
+			maxWait = "10000";
+		}
+		String retryAfter = System.getenv("ADMISSION_RETRY_AFTER_SECONDS");
+		if (retryAfter == null) {
+			retryAfter = "5";
+		}
+		MAX_COST = Integer.parseInt(maxCost);
+		RESERVED_COST = Math.max(1, MAX_COST * Integer.parseInt(interactiveShare) / 100);
+		SHARED_COST = Math.max(1, MAX_COST - RESERVED_COST);
+		INTERACTIVE_MAX_COST = Integer.parseInt(interactiveMaxCost);
+		MAX_QUEUED = Integer.parseInt(maxQueued);
+		MAX_WAIT_MILLIS = Long.parseLong(maxWait);
+		RETRY_AFTER_SECONDS = Long.parseLong(retryAfter);
+		RESERVED_PERMITS = new Semaphore(RESERVED_COST, true);
+		SHARED_PERMITS = new Semaphore(SHARED_COST, true);
+		for (Lane lane : Lane.values()) {
+			NUM_ADMITTED.put(lane, new AtomicLong());
+			NUM_REJECTED.put(lane, new AtomicLong());
+			LATENCIES.put(lane, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Units held by an admitted request. Must be closed when the work is
+	 * finished.
+	 */
+	public static class Permit implements AutoCloseable {
+		private final Lane lane;
+		private final Semaphore permits;
+		private final int cost;
+		private final long startNanos;
+		private boolean released = false;
+
+		private Permit(Lane lane, Semaphore permits, int cost, long startNanos) {
+			this.lane = lane;
+			this.permits = permits;
+			this.cost = cost;
+			this.startNanos = startNanos;
+		}
+
+		public Lane getLane() {
+			return lane;
+		}
+
+		/**
+		 * Releases this permit when the asynchronous request completes,
+		 * including when the response entity is never written (client
+		 * abort, writer failure, exception before resuming).
+		 */
+		public void releaseOnCompletion(AsyncResponse asyncResponse) {
+			try {
+				asyncResponse.register((CompletionCallback) throwable -> close());
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!released) {
+				released = true;
+				permits.release(cost);
+				LATENCIES.get(lane).recordSince(startNanos);
+			}
+		}
+	}
+
+	public static int estimateCost(Collection<Sequence> sequences) {
+		long cost = 0;
+		for (Sequence seq : sequences) {
+			cost += 1 + (seq.getLength() + 999) / 1000;
+		}
+		return (int) Math.min(cost, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Estimates the cost of a request from its raw payload size. Used when
+	 * the sequences are not parsed before execution (e.g. GraphQL).
+	 */
+	public static int estimateCost(String payload) {
+		return 1 + (payload == null ? 0 : payload.length() / 1000);
+	}
+
+	/**
+	 * Waits until the given cost can be admitted.
+	 *
+	 * @param laneHeader value of the lane header, can be null
+	 * @param cost estimated cost; bulk costs are capped at the shared capacity
+	 * @return a permit to be closed after the work is finished
+	 * @throws ServiceUnavailableException when the queue is full or the
+	 *                                     wait timed out
+	 */
+	public static Permit acquire(String laneHeader, int cost) {
+		long startNanos = System.nanoTime();
+		Lane lane = Lane.classify(laneHeader, cost);
+		Semaphore permits = lane == Lane.INTERACTIVE ? RESERVED_PERMITS : SHARED_PERMITS;
+		if (lane == Lane.BULK) {
+			// a batch larger than the shared capacity takes all of it
+			cost = Math.min(cost, SHARED_COST);
+		}
+		cost = Math.max(1, cost);
+
+		if (permits.tryAcquire(cost)) {
+			return admit(lane, permits, cost, startNanos);
+		}
+		if (lane == Lane.INTERACTIVE && SHARED_PERMITS.tryAcquire(cost)) {
+			// borrow idle shared capacity
+			return admit(lane, SHARED_PERMITS, cost, startNanos);
+		}
+		if (NUM_QUEUED.incrementAndGet() > MAX_QUEUED) {
+			NUM_QUEUED.decrementAndGet();
+			throw reject(lane);
+		}
+		try {
+			if (permits.tryAcquire(cost, MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+				return admit(lane, permits, cost, startNanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			NUM_QUEUED.decrementAndGet();
+		}
+		throw reject(lane);
+	}
+
+	private static Permit admit(Lane lane, Semaphore permits, int cost, long startNanos) {
+		NUM_ADMITTED.get(lane).incrementAndGet();
+		return new Permit(lane, permits, cost, startNanos);
+	}
+
+	private static ServiceUnavailableException reject(Lane lane) {
+		NUM_REJECTED.get(lane).incrementAndGet();
+		return new ServiceUnavailableException(RETRY_AFTER_SECONDS);
+	}
+
+	public static int getMaxCost() { return RESERVED_COST + SHARED_COST; }
+
+	public static int getCostInUse() {
+		return (
+			RESERVED_COST - RESERVED_PERMITS.availablePermits() +
+			SHARED_COST - SHARED_PERMITS.availablePermits()
+		);
+	}
+
+	public static int getNumQueued() { return NUM_QUEUED.get(); }
+
+	public static long getNumAdmitted(Lane lane) { return NUM_ADMITTED.get(lane).get(); }
+
+	public static long getNumRejected(Lane lane) { return NUM_REJECTED.get(lane).get(); }
+
+	public static LatencyHistogram getLatencies(Lane lane) { return LATENCIES.get(lane); }
+
+}
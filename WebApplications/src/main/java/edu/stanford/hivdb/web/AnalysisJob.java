@@ -0,0 +1,103 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+/**
+ * State of an asynchronous analysis job. Instances are persisted as JSON
+ * by {@link AnalysisJobQueue} so pending jobs survive a restart.
+ */
+public class AnalysisJob {
+
+	public static enum Status {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+		public boolean isFinished() {
+			return this == DONE || this == FAILED || this == CANCELLED;
+		}
+	}
+
+	public static enum InputType {
+		SEQUENCES, MUTATIONS
+	}
+
+	private String id;
+	private String virus;
+	private InputType inputType;
+	private String algorithm;
+	private volatile Status status;
+	private volatile int total;
+	private volatile int processed;
+	private long createdAt;
+	private volatile long updatedAt;
+	private volatile String errorMessage;
+
+	// for Gson
+	protected AnalysisJob() {}
+
+	protected AnalysisJob(
+		String id, String virus, InputType inputType, String algorithm
+	) {
+		this.id = id;
+		this.virus = virus;
+		this.inputType = inputType;
+		this.algorithm = algorithm;
+		this.status = Status.QUEUED;
+		this.createdAt = System.currentTimeMillis();
+		this.updatedAt = this.createdAt;
+	}
+
+	public String getId() { return id; }
+
+	public String getVirus() { return virus; }
+
+	public InputType getInputType() { return inputType; }
+
+	public String getAlgorithm() { return algorithm; }
+
+	public Status getStatus() { return status; }
+
+	public int getTotal() { return total; }
+
+	public int getProcessed() { return processed; }
+
+	public long getCreatedAt() { return createdAt; }
+
+	public long getUpdatedAt() { return updatedAt; }
+
+	public String getErrorMessage() { return errorMessage; }
+
+	protected void setStatus(Status status) {
+		this.status = status;
+		this.updatedAt = System.currentTimeMillis();
+	}
+
+	protected void setTotal(int total) {
+		this.total = total;
+	}
+
+	protected void setProcessed(int processed) {
+		this.processed = processed;
+		this.updatedAt = System.currentTimeMillis();
+	}
+
+	protected void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+
+}
@@ -0,0 +1,632 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.hivfacts.hiv2.HIV2;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.utilities.Json;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+import edu.stanford.hivdb.web.AnalysisJob.InputType;
+import edu.stanford.hivdb.web.AnalysisJob.Status;
+
+/**
+ * A disk-backed queue of asynchronous analysis jobs.
+ *
+ * Each job owns a directory containing its state (job.json), its input
+ * (input.txt) and its results (results.ndjson, one record per line). Jobs
+ * which were queued or running when the server stopped are restarted from
+ * scratch when the web application starts.
+ *
+ * Finished jobs are purged every ANALYSIS_JOB_PURGE_INTERVAL_MINUTES once
+ * they are older than ANALYSIS_JOB_RETENTION_HOURS. Inputs longer than
+ * ANALYSIS_JOB_MAX_INPUT_LENGTH characters are rejected, and so are
+ * submissions while ANALYSIS_JOB_MAX_PENDING jobs are queued or running.
+ *
+ * Jobs are analyzed on their own pool of ANALYSIS_JOB_THREADS threads
+ * (half of the processors by default), separate from the pools serving
+ * interactive requests, so that large jobs can't starve them.
+ */
+public class AnalysisJobQueue {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final String JOB_FILE = "job.json";
+	private static final String INPUT_FILE = "input.txt";
+	private static final String RESULTS_FILE = "results.ndjson";
+	private static final int MUTATIONS_CHUNK_SIZE = 256;
+	private static final int PERSIST_INTERVAL = 50;
+	private static final long RETRY_AFTER_SECONDS = 60;
+
+	private static final ExecutorService ANALYZERS;
+
+	static {
+		String numThreads = System.getenv("ANALYSIS_JOB_THREADS");
+		if (numThreads == null) {
+			numThreads = String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+		}
+		ANALYZERS = Executors.newFixedThreadPool(
+			Integer.parseInt(numThreads),
+			new ThreadFactoryBuilder()
+			.setNameFormat("analysis-job-analyzer-%d")
+			.setDaemon(true)
+			.build());
+	}
+
+	private static final ScheduledExecutorService PURGER = Executors.newSingleThreadScheduledExecutor(
+		new ThreadFactoryBuilder()
+		.setNameFormat("analysis-job-purger")
+		.setDaemon(true)
+		.build());
+
+	private static AnalysisJobQueue singleton;
+
+	public static synchronized AnalysisJobQueue getInstance() {
+		if (singleton == null) {
+			String jobsDir = System.getenv("ANALYSIS_JOBS_DIR");
+			if (jobsDir == null) {
+				jobsDir = Paths.get(
+					System.getProperty("java.io.tmpdir"),
+					"sierra-analysis-jobs").toString();
+			}
+			String numWorkers = System.getenv("ANALYSIS_JOB_WORKERS");
+			if (numWorkers == null) {
+				numWorkers = "2";
+			}
+			String retentionHours = System.getenv("ANALYSIS_JOB_RETENTION_HOURS");
+			if (retentionHours == null) {
+				retentionHours = "72";
+			}
+			String purgeInterval = System.getenv("ANALYSIS_JOB_PURGE_INTERVAL_MINUTES");
+			if (purgeInterval == null) {
+				purgeInterval = "60";
+			}
+			String maxInputLength = System.getenv("ANALYSIS_JOB_MAX_INPUT_LENGTH");
+			if (maxInputLength == null) {
+				maxInputLength = "52428800";
+			}
+			String maxPending = System.getenv("ANALYSIS_JOB_MAX_PENDING");
+			if (maxPending == null) {
+				maxPending = "100";
+			}
+			singleton = new AnalysisJobQueue(
+				Paths.get(jobsDir),
+				Executors.newFixedThreadPool(
+					Integer.parseInt(numWorkers),
+					new ThreadFactoryBuilder()
+					.setNameFormat("analysis-job-%d")
+					.setDaemon(true)
+					.build()),
+				Long.parseLong(retentionHours) * 3600 * 1000,
+				Integer.parseInt(maxInputLength),
+				Integer.parseInt(maxPending));
+			long purgeMinutes = Long.parseLong(purgeInterval);
+			PURGER.scheduleWithFixedDelay(
+				singleton::purgeExpired, purgeMinutes, purgeMinutes, TimeUnit.MINUTES);
+		}
+		return singleton;
+	}
+
+	private final Path jobsDir;
+	private final long retentionMillis;
+	private final int maxInputLength;
+	private final int maxPending;
+	private final ExecutorService workers;
+	private final Map<String, AnalysisJob> jobs = new ConcurrentHashMap<>();
+	private final Map<String, Future<?>> futures = new ConcurrentHashMap<>();
+
+	protected AnalysisJobQueue(
+		Path jobsDir, ExecutorService workers, long retentionMillis,
+		int maxInputLength, int maxPending
+	) {
+		this.jobsDir = jobsDir;
+		this.workers = workers;
+		this.retentionMillis = retentionMillis;
+		this.maxInputLength = maxInputLength;
+		this.maxPending = maxPending;
+		try {
+			Files.createDirectories(jobsDir);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		recover();
+	}
+
+	private Path getJobDir(AnalysisJob job) {
+		return jobsDir.resolve(job.getId());
+	}
+
+	private static AnalysisJob loadJob(Path dir) {
+		Path jobFile = dir.resolve(JOB_FILE);
+		if (!Files.isRegularFile(jobFile)) {
+			return null;
+		}
+		try {
+			AnalysisJob job = Json.loads(
+				new String(Files.readAllBytes(jobFile), StandardCharsets.UTF_8),
+				AnalysisJob.class);
+			if (job == null || job.getStatus() == null || !dir.getFileName().toString().equals(job.getId())) {
+				throw new IllegalStateException("incomplete job state");
+			}
+			return job;
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn(String.format("Skipped unreadable analysis job %s: %s", dir, e));
+			return null;
+		}
+	}
+
+	private void recover() {
+		List<AnalysisJob> pendingJobs = new ArrayList<>();
+		long expiredBefore = System.currentTimeMillis() - retentionMillis;
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(jobsDir, Files::isDirectory)) {
+			for (Path dir : dirs) {
+				AnalysisJob job = loadJob(dir);
+				if (job == null) {
+					continue;
+				}
+				if (job.getStatus().isFinished()) {
+					if (job.getUpdatedAt() < expiredBefore) {
+						deleteJobDir(dir);
+						continue;
+					}
+				}
+				else {
+					// restart interrupted jobs from the beginning
+					Files.deleteIfExists(dir.resolve(RESULTS_FILE));
+					job.setProcessed(0);
+					job.setStatus(Status.QUEUED);
+					persist(job);
+					pendingJobs.add(job);
+				}
+				jobs.put(job.getId(), job);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		pendingJobs.sort(Comparator.comparingLong(AnalysisJob::getCreatedAt));
+		for (AnalysisJob job : pendingJobs) {
+			enqueue(job);
+		}
+		if (!pendingJobs.isEmpty()) {
+			LOGGER.info(String.format("Requeued %d unfinished analysis job(s)", pendingJobs.size()));
+		}
+	}
+
+	/**
+	 * Deletes finished jobs older than the retention period, and job
+	 * directories left without a readable state.
+	 */
+	protected void purgeExpired() {
+		long expiredBefore = System.currentTimeMillis() - retentionMillis;
+		int numPurged = 0;
+		// a job finishing before its future is stored leaves the future behind
+		futures.values().removeIf(Future::isDone);
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(jobsDir, Files::isDirectory)) {
+			for (Path dir : dirs) {
+				String jobId = dir.getFileName().toString();
+				AnalysisJob job = jobs.get(jobId);
+				boolean expired;
+				if (job == null) {
+					expired = Files.getLastModifiedTime(dir).toMillis() < expiredBefore;
+				}
+				else {
+					synchronized (job) {
+						expired = job.getStatus().isFinished() && job.getUpdatedAt() < expiredBefore;
+					}
+				}
+				if (expired) {
+					jobs.remove(jobId);
+					deleteJobDir(dir);
+					numPurged ++;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// retried at the next interval
+			LOGGER.error("Failed to purge expired analysis jobs", e);
+		}
+		if (numPurged > 0) {
+			LOGGER.info(String.format("Purged %d expired analysis job(s)", numPurged));
+		}
+	}
+
+	private static void deleteJobDir(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+
+	private void persist(AnalysisJob job) {
+		Path jobDir = getJobDir(job);
+		Path tmpFile = jobDir.resolve(JOB_FILE + ".tmp");
+		try {
+			synchronized (job) {
+				Files.write(tmpFile, Json.dumps(job).getBytes(StandardCharsets.UTF_8));
+				Files.move(
+					tmpFile, jobDir.resolve(JOB_FILE),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void enqueue(AnalysisJob job) {
+		futures.put(job.getId(), workers.submit(() -> run(job)));
+	}
+
+	/**
+	 * Creates a new job and puts it at the end of the queue.
+	 *
+	 * @param virusName "HIV" or "HIV2"
+	 * @param inputType type of the input text
+	 * @param algorithm drug resistance algorithm name; null for the latest HIVDB
+	 * @param input FASTA sequences or mutation lists (one list per line)
+	 * @return the created job
+	 * @throws IllegalArgumentException when the virus is unknown or the
+	 *                                  input is too long
+	 * @throws ServiceUnavailableException when too many jobs are pending
+	 */
+	public AnalysisJob submit(
+		String virusName, InputType inputType, String algorithm, String input
+	) {
+		getVirus(virusName);  // validate virus name
+		if (input.length() > maxInputLength) {
+			throw new IllegalArgumentException(String.format(
+				"Input is too long (%d > %d characters).", input.length(), maxInputLength));
+		}
+		AnalysisJob job = new AnalysisJob(
+			UUID.randomUUID().toString(), virusName, inputType, algorithm);
+		synchronized (jobs) {
+			if (countPending() >= maxPending) {
+				throw new ServiceUnavailableException(RETRY_AFTER_SECONDS);
+			}
+			Path jobDir = getJobDir(job);
+			try {
+				Files.createDirectories(jobDir);
+				Files.write(jobDir.resolve(INPUT_FILE), input.getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			persist(job);
+			jobs.put(job.getId(), job);
+			enqueue(job);
+		}
+		return job;
+	}
+
+	private long countPending() {
+		return jobs.values().stream().filter(job -> !job.getStatus().isFinished()).count();
+	}
+
+	public AnalysisJob getJob(String jobId) {
+		return jobs.get(jobId);
+	}
+
+	/**
+	 * Cancels a queued or running job. Results already written are kept.
+	 *
+	 * @param jobId job id
+	 * @return the cancelled job or null if the job doesn't exist
+	 */
+	public AnalysisJob cancel(String jobId) {
+		AnalysisJob job = jobs.get(jobId);
+		if (job == null) {
+			return null;
+		}
+		synchronized (job) {
+			if (job.getStatus().isFinished()) {
+				return job;
+			}
+			job.setStatus(Status.CANCELLED);
+		}
+		persist(job);
+		Future<?> future = futures.remove(jobId);
+		if (future != null) {
+			// a running job stops itself at the next record
+			future.cancel(false);
+		}
+		return job;
+	}
+
+	/**
+	 * Reads a page of results as raw JSON records.
+	 *
+	 * Only records counted as processed are returned, therefore the page
+	 * never contains a partially written record of a running job.
+	 */
+	public List<String> readResults(AnalysisJob job, int offset, int limit) {
+		int available = Math.max(0, job.getProcessed() - offset);
+		Path resultsFile = getJobDir(job).resolve(RESULTS_FILE);
+		if (available == 0 || !Files.exists(resultsFile)) {
+			return new ArrayList<>();
+		}
+		// unlike Files.lines, a truncated character in the unfinished
+		// last line is not an error
+		try (
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+				Files.newInputStream(resultsFile), StandardCharsets.UTF_8))
+		) {
+			List<String> records = new ArrayList<>();
+			int numLines = offset + Math.min(limit, available);
+			for (int i = 0; i < numLines; i ++) {
+				String line = reader.readLine();
+				if (line == null) {
+					break;
+				}
+				if (i >= offset) {
+					records.add(line);
+				}
+			}
+			return records;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Copies the results file up to the last record counted as processed,
+	 * one record per line. A partially written record of a running job is
+	 * never copied.
+	 */
+	public void writeResults(AnalysisJob job, OutputStream output) throws IOException {
+		int remaining = job.getProcessed();
+		Path resultsFile = getJobDir(job).resolve(RESULTS_FILE);
+		if (remaining == 0 || !Files.exists(resultsFile)) {
+			return;
+		}
+		try (InputStream input = Files.newInputStream(resultsFile)) {
+			byte[] buffer = new byte[8192];
+			int len;
+			while (remaining > 0 && (len = input.read(buffer)) > -1) {
+				int end = 0;
+				while (end < len && remaining > 0) {
+					if (buffer[end ++] == '\n') {
+						remaining --;
+					}
+				}
+				output.write(buffer, 0, end);
+			}
+		}
+	}
+
+	private static Virus<?> getVirus(String virusName) {
+		switch (virusName) {
+			case "HIV":
+				return HIV.getInstance();
+			case "HIV2":
+				return HIV2.getInstance();
+			default:
+				throw new IllegalArgumentException("Unsupported virus: " + virusName);
+		}
+	}
+
+	private void run(AnalysisJob job) {
+		synchronized (job) {
+			if (job.getStatus() != Status.QUEUED) {
+				return;
+			}
+			job.setStatus(Status.RUNNING);
+		}
+		persist(job);
+		try {
+			if (job.getVirus().equals("HIV2")) {
+				process(HIV2.getInstance(), job);
+			}
+			else {
+				process(HIV.getInstance(), job);
+			}
+			synchronized (job) {
+				if (job.getStatus() == Status.RUNNING) {
+					job.setStatus(Status.DONE);
+				}
+			}
+		} catch (CancellationException e) {
+			// status was already set by cancel()
+		} catch (Exception e) {
+			LOGGER.error(String.format("Analysis job %s failed", job.getId()), e);
+			synchronized (job) {
+				job.setErrorMessage(e.toString());
+				job.setStatus(Status.FAILED);
+			}
+		} finally {
+			futures.remove(job.getId());
+			persist(job);
+		}
+	}
+
+	private <VirusT extends Virus<VirusT>> void process(VirusT virusIns, AnalysisJob job) throws IOException {
+		Path jobDir = getJobDir(job);
+		try (
+			Writer writer = Files.newBufferedWriter(
+				jobDir.resolve(RESULTS_FILE), StandardCharsets.UTF_8)
+		) {
+			RecordWriter recordWriter = new RecordWriter(job, writer);
+			if (job.getInputType() == InputType.SEQUENCES) {
+				List<Sequence> sequences;
+				try (InputStream input = Files.newInputStream(jobDir.resolve(INPUT_FILE))) {
+					sequences = FastaUtils.readStream(input);
+				}
+				SequenceAnalysisPipeline<VirusT> pipeline = new SequenceAnalysisPipeline<>(
+					virusIns, sequences, job.getAlgorithm(), ANALYZERS);
+				job.setTotal(pipeline.size());
+				persist(job);
+				pipeline.forEachResult(
+					result -> recordWriter.write(AnalysisRecords.fromSequenceResult(result)));
+			}
+			else {
+				List<String> lines = Files
+					.readAllLines(jobDir.resolve(INPUT_FILE), StandardCharsets.UTF_8)
+					.stream()
+					.filter(StringUtils::isNotBlank)
+					.collect(Collectors.toList());
+				DrugResistanceAlgorithm<VirusT> algorithm = (
+					job.getAlgorithm() == null ?
+					virusIns.getLatestDrugResistAlgorithm("HIVDB") :
+					virusIns.getDrugResistAlgorithm(job.getAlgorithm())
+				);
+				job.setTotal(lines.size());
+				persist(job);
+				for (List<String> chunk : Lists.partition(lines, MUTATIONS_CHUNK_SIZE)) {
+					List<Future<Map<String, Object>>> records = new ArrayList<>();
+					try {
+						for (String line : chunk) {
+							records.add(ANALYZERS.submit(() -> analyzeMutations(virusIns, algorithm, line)));
+						}
+						for (Future<Map<String, Object>> record : records) {
+							recordWriter.write(SequenceAnalysisPipeline.await(record));
+						}
+					} finally {
+						// stop the rest of the chunk when the job is cancelled or failed
+						for (Future<Map<String, Object>> record : records) {
+							record.cancel(true);
+						}
+					}
+				}
+			}
+			recordWriter.flush();
+		}
+	}
+
+	/**
+	 * Analyzes one line of mutations input. A line is a comma or space
+	 * delimited mutation list, optionally prefixed by a name and a tab.
+	 * A line that can't be analyzed gives an error record instead of
+	 * failing the job.
+	 */
+	private static <VirusT extends Virus<VirusT>> Map<String, Object> analyzeMutations(
+		VirusT virusIns, DrugResistanceAlgorithm<VirusT> algorithm, String line
+	) {
+		String name = null;
+		String mutsText = line;
+		int tabIdx = line.indexOf('\t');
+		if (tabIdx > -1) {
+			name = line.substring(0, tabIdx).trim();
+			mutsText = line.substring(tabIdx + 1);
+		}
+		try {
+			return analyzeMutations(virusIns, algorithm, name, mutsText);
+		} catch (RuntimeException e) {
+			return AnalysisRecords.fromMutationsError(
+				name, e.getMessage() == null ? e.toString() : e.getMessage());
+		}
+	}
+
+	private static <VirusT extends Virus<VirusT>> Map<String, Object> analyzeMutations(
+		VirusT virusIns, DrugResistanceAlgorithm<VirusT> algorithm, String name, String mutsText
+	) {
+		List<String> mutList = Arrays.asList(mutsText.trim().split("[,\\s]+"));
+		Set<Gene<VirusT>> knownGenes = virusIns.extractMutationGenes(mutList);
+		MutationSet<VirusT> mutations = virusIns.newMutationSet(mutList);
+		Map<Gene<VirusT>, MutationSet<VirusT>> mutationsByGene = mutations.groupByGene();
+		for (Gene<VirusT> gene : knownGenes) {
+			if (!mutationsByGene.containsKey(gene)) {
+				mutationsByGene.put(gene, new MutationSet<>());
+			}
+		}
+		Map<Gene<VirusT>, GeneDR<VirusT>> geneDRs = new LinkedHashMap<>();
+		for (Map.Entry<Gene<VirusT>, MutationSet<VirusT>> entry : mutationsByGene.entrySet()) {
+			geneDRs.put(
+				entry.getKey(),
+				new GeneDR<>(entry.getKey(), entry.getValue(), algorithm));
+		}
+		return AnalysisRecords.fromMutationsResult(name, mutations, geneDRs);
+	}
+
+	/**
+	 * Appends records to the results file and keeps the job progress up
+	 * to date. A record is only counted after it has been flushed.
+	 */
+	private class RecordWriter {
+		private final AnalysisJob job;
+		private final Writer writer;
+		private int numRecords = 0;
+
+		private RecordWriter(AnalysisJob job, Writer writer) {
+			this.job = job;
+			this.writer = writer;
+		}
+
+		private void write(Map<String, Object> record) throws IOException {
+			if (job.getStatus() == Status.CANCELLED) {
+				throw new CancellationException();
+			}
+			writer.write(Json.dumpsUgly(record));
+			writer.write('\n');
+			numRecords ++;
+			if (numRecords % PERSIST_INTERVAL == 0) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			writer.flush();
+			job.setProcessed(numRecords);
+			persist(job);
+		}
+	}
+
+}
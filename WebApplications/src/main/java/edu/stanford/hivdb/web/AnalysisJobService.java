@@ -0,0 +1,189 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.gson.stream.JsonWriter;
+
+import edu.stanford.hivdb.utilities.Json;
+import edu.stanford.hivdb.web.AnalysisJob.InputType;
+
+/**
+ * Asynchronous analysis of batches larger than a single GraphQL payload
+ * allows. A client submits the input, polls the job and pages through the
+ * results while the job is still running.
+ */
+@Path("analysis-jobs")
+public class AnalysisJobService {
+
+	private static final int MAXIMUM_RESULTS_PER_PAGE = 500;
+
+	private static Response notFound(String jobId) {
+		return Response
+			.status(Response.Status.NOT_FOUND)
+			.entity("Analysis job not found: " + jobId).build();
+	}
+
+	/**
+	 * Submits a new job. Exactly one of sequences or mutations is required.
+	 *
+	 * @param virus "HIV" (default) or "HIV2"
+	 * @param sequences The input sequences in FASTA format.
+	 * @param mutations Mutation lists, one per line, optionally prefixed
+	 *                  by a name and a tab.
+	 * @param drAlgorithm Drug resistance algorithm, default to latest HIVDB
+	 * @return The queued job
+	 */
+	@POST
+	@Produces("application/json")
+	public Response submit(
+			@DefaultValue("HIV") @FormParam("virus") String virus,
+			@FormParam("sequences") String sequences,
+			@FormParam("mutations") String mutations,
+			@FormParam("drugResistanceAlgorithm") String drAlgorithm) {
+		boolean hasSequences = StringUtils.isNotBlank(sequences);
+		boolean hasMutations = StringUtils.isNotBlank(mutations);
+		if (hasSequences == hasMutations) {
+			return Response
+				.status(Response.Status.BAD_REQUEST)
+				.entity("Exactly one of `sequences` or `mutations` is required.").build();
+		}
+		AnalysisJob job;
+		try {
+			job = AnalysisJobQueue.getInstance().submit(
+				virus,
+				hasSequences ? InputType.SEQUENCES : InputType.MUTATIONS,
+				drAlgorithm,
+				hasSequences ? sequences : mutations);
+		} catch (IllegalArgumentException e) {
+			return Response
+				.status(Response.Status.BAD_REQUEST)
+				.entity(e.getMessage()).build();
+		}
+		return Response
+			.status(Response.Status.ACCEPTED)
+			.entity(Json.dumps(job))
+			.build();
+	}
+
+	@GET
+	@Path("{jobId}")
+	@Produces("application/json")
+	public Response getJob(@PathParam("jobId") String jobId) {
+		AnalysisJob job = AnalysisJobQueue.getInstance().getJob(jobId);
+		if (job == null) {
+			return notFound(jobId);
+		}
+		return Response.ok(Json.dumps(job)).build();
+	}
+
+	/**
+	 * Returns a page of finished results. Results are available before the
+	 * job is done; `nextOffset` tells where the next page starts.
+	 */
+	@GET
+	@Path("{jobId}/results")
+	@Produces("application/json")
+	public Response getResults(
+			@PathParam("jobId") String jobId,
+			@DefaultValue("0") @QueryParam("offset") int offset,
+			@DefaultValue("100") @QueryParam("limit") int limit) {
+		AnalysisJobQueue queue = AnalysisJobQueue.getInstance();
+		AnalysisJob job = queue.getJob(jobId);
+		if (job == null) {
+			return notFound(jobId);
+		}
+		int pageOffset = Math.max(0, offset);
+		limit = Math.max(1, Math.min(limit, MAXIMUM_RESULTS_PER_PAGE));
+		String jobJson = Json.dumpsUgly(job);
+		List<String> records = queue.readResults(job, pageOffset, limit);
+
+		StreamingOutput stream = outputStream -> {
+			Writer output = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+			JsonWriter writer = new JsonWriter(output);
+			writer.beginObject();
+			writer.name("job").jsonValue(jobJson);
+			writer.name("offset").value(pageOffset);
+			writer.name("nextOffset").value(pageOffset + records.size());
+			// records are already serialized
+			writer.name("results").beginArray();
+			for (String record : records) {
+				writer.jsonValue(record);
+			}
+			writer.endArray();
+			writer.endObject();
+			writer.flush();
+		};
+		return Response.ok(stream).build();
+	}
+
+	/**
+	 * Streams the processed records, one JSON record per line. The output
+	 * is complete only when the job status is DONE.
+	 */
+	@GET
+	@Path("{jobId}/results.ndjson")
+	@Produces("application/x-ndjson")
+	public Response getResultsAsNdjson(@PathParam("jobId") String jobId) {
+		AnalysisJobQueue queue = AnalysisJobQueue.getInstance();
+		AnalysisJob job = queue.getJob(jobId);
+		if (job == null) {
+			return notFound(jobId);
+		}
+		StreamingOutput stream = outputStream -> {
+			try {
+				queue.writeResults(job, outputStream);
+			} catch (NoSuchFileException e) {
+				// job was purged
+			}
+		};
+		return Response.ok(stream).build();
+	}
+
+	@DELETE
+	@Path("{jobId}")
+	@Produces("application/json")
+	public Response cancel(@PathParam("jobId") String jobId) {
+		AnalysisJob job = AnalysisJobQueue.getInstance().cancel(jobId);
+		if (job == null) {
+			return notFound(jobId);
+		}
+		return Response.ok(Json.dumps(job)).build();
+	}
+
+}
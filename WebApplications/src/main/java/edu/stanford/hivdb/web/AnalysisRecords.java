@@ -0,0 +1,135 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.ASIDrugSusc;
+import edu.stanford.hivdb.drugs.Drug;
+import edu.stanford.hivdb.drugs.DrugClass;
+import edu.stanford.hivdb.genotypes.BoundGenotype;
+import edu.stanford.hivdb.genotypes.GenotypeResult;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Flat, self-contained JSON records used by the streaming (NDJSON) outputs.
+ */
+public class AnalysisRecords {
+
+	public static <VirusT extends Virus<VirusT>> Map<String, Object> fromSequenceResult(
+		SequenceAnalysisPipeline.Result<VirusT> result
+	) {
+		AlignedSequence<VirusT> alignedSeq = result.getAlignedSequence();
+		Sequence inputSeq = alignedSeq.getInputSequence();
+		Map<String, Object> record = new LinkedHashMap<>();
+		record.put("header", inputSeq.getHeader());
+		record.put("md5", inputSeq.getMD5());
+
+		boolean isSuccess = !alignedSeq.isEmpty();
+		record.put("success", isSuccess);
+		if (!isSuccess) {
+			record.put(
+				"errorMessage",
+				"There were no Protease, Reverse Transcriptase, or " +
+				"Integrase genes found, refuse to process.");
+			return record;
+		}
+
+		GenotypeResult<VirusT> genotypeResult = alignedSeq.getGenotypeResult();
+		if (genotypeResult != null) {
+			BoundGenotype<VirusT> bestMatch = genotypeResult.getBestMatch();
+			Map<String, Object> subtype = new LinkedHashMap<>();
+			subtype.put("display", bestMatch.getDisplay());
+			subtype.put("distance", bestMatch.getDistance());
+			record.put("bestMatchingSubtype", subtype);
+		}
+
+		List<Map<String, Object>> genes = new ArrayList<>();
+		for (AlignedGeneSeq<VirusT> geneSeq : alignedSeq.getAlignedGeneSequences()) {
+			Map<String, Object> gene = new LinkedHashMap<>();
+			gene.put("gene", geneSeq.getGene().getName());
+			gene.put("firstAA", geneSeq.getFirstAA());
+			gene.put("lastAA", geneSeq.getLastAA());
+			gene.put("mutations", geneSeq.getMutations().join());
+			genes.add(gene);
+		}
+		record.put("alignedGeneSequences", genes);
+		record.put("drugResistance", fromGeneDRs(result.getDrugResistance()));
+		return record;
+	}
+
+	public static <VirusT extends Virus<VirusT>> Map<String, Object> fromMutationsResult(
+		String name, MutationSet<VirusT> mutations,
+		Map<Gene<VirusT>, GeneDR<VirusT>> geneDRs
+	) {
+		Map<String, Object> record = new LinkedHashMap<>();
+		record.put("name", name);
+		record.put("success", true);
+		record.put("mutations", mutations.join());
+		record.put("drugResistance", fromGeneDRs(geneDRs));
+		return record;
+	}
+
+	public static Map<String, Object> fromMutationsError(String name, String errorMessage) {
+		Map<String, Object> record = new LinkedHashMap<>();
+		record.put("name", name);
+		record.put("success", false);
+		record.put("errorMessage", errorMessage);
+		return record;
+	}
+
+	public static <VirusT extends Virus<VirusT>> List<Map<String, Object>> fromGeneDRs(
+		Map<Gene<VirusT>, GeneDR<VirusT>> geneDRs
+	) {
+		List<Map<String, Object>> drs = new ArrayList<>();
+		for (Map.Entry<Gene<VirusT>, GeneDR<VirusT>> entry : geneDRs.entrySet()) {
+			Gene<VirusT> gene = entry.getKey();
+			GeneDR<VirusT> geneDR = entry.getValue();
+			List<Map<String, Object>> drugScores = new ArrayList<>();
+			for (DrugClass<VirusT> drugClass : gene.getDrugClasses()) {
+				for (Drug<VirusT> drug : drugClass.getDrugs()) {
+					ASIDrugSusc<VirusT> drugSusc = geneDR.getDrugSusc(drug);
+					Map<String, Object> drugScore = new LinkedHashMap<>();
+					drugScore.put("drug", drug.getDisplayAbbr());
+					drugScore.put("drugClass", drugClass.toString());
+					drugScore.put("score", drugSusc.getScore());
+					drugScore.put("level", drugSusc.getLevel());
+					drugScore.put("text", drugSusc.getLevelText());
+					drugScore.put("SIR", drugSusc.getSIR().toString());
+					drugScores.add(drugScore);
+				}
+			}
+			Map<String, Object> dr = new LinkedHashMap<>();
+			dr.put("gene", gene.getName());
+			dr.put("drugScores", drugScores);
+			drs.add(dr);
+		}
+		return drs;
+	}
+
+}
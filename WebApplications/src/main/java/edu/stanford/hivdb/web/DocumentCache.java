@@ -0,0 +1,133 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import graphql.ExecutionInput;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.execution.preparsed.PreparsedDocumentProvider;
+
+/**
+ * Cache of parsed and validated GraphQL documents keyed by query text.
+ *
+ * Validation depends on the schema, therefore each GraphQL instance needs
+ * its own DocumentCache. It also keeps the query text of persisted queries
+ * (the automatic persisted query protocol) so that clients can send only
+ * the SHA-256 hash of a query they sent before.
+ */
+public class DocumentCache implements PreparsedDocumentProvider {
+
+	private static final long MAX_ENTRIES;
+
+	static {
+		String maxEntries = System.getenv("GRAPHQL_DOCUMENT_CACHE_MAX_ENTRIES");
+		if (maxEntries == null) {
+			maxEntries = "512";
+		}
+		MAX_ENTRIES = Long.parseLong(maxEntries);
+	}
+
+	private final Cache<String, PreparsedDocumentEntry> documents;
+	private final Cache<String, String> persistedQueries;
+
+	public DocumentCache() {
+		documents = CacheBuilder.newBuilder()
+			.maximumSize(MAX_ENTRIES)
+			.recordStats()
+			.build();
+		persistedQueries = CacheBuilder.newBuilder()
+			.maximumSize(MAX_ENTRIES)
+			.build();
+	}
+
+	@Override
+	public PreparsedDocumentEntry getDocument(
+		ExecutionInput executionInput,
+		Function<ExecutionInput, PreparsedDocumentEntry> parseAndValidateFunction
+	) {
+		try {
+			return documents.get(
+				executionInput.getQuery(),
+				() -> parseAndValidateFunction.apply(executionInput));
+		} catch (UncheckedExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * @param extensions "extensions" object of a GraphQL request, can be null
+	 * @return the persisted query hash or null if the request has none
+	 */
+	public static String getPersistedQueryHash(Map<String, Object> extensions) {
+		if (extensions == null) {
+			return null;
+		}
+		Object persistedQuery = extensions.get("persistedQuery");
+		if (!(persistedQuery instanceof Map)) {
+			return null;
+		}
+		Object hash = ((Map<?, ?>) persistedQuery).get("sha256Hash");
+		return hash instanceof String ? ((String) hash).toLowerCase() : null;
+	}
+
+	/**
+	 * @return the query text previously stored with the hash or null
+	 */
+	public String getPersistedQuery(String hash) {
+		return persistedQueries.getIfPresent(hash);
+	}
+
+	/**
+	 * Stores the query text under its hash.
+	 *
+	 * @return false if the hash does not match the query text
+	 */
+	public boolean putPersistedQuery(String hash, String query) {
+		String actualHash = Hashing.sha256().hashString(query, StandardCharsets.UTF_8).toString();
+		if (!actualHash.equals(hash)) {
+			return false;
+		}
+		persistedQueries.put(hash, query);
+		return true;
+	}
+
+	public CacheStats getStats() {
+		return documents.stats();
+	}
+
+	public long getSize() {
+		return documents.size();
+	}
+
+}
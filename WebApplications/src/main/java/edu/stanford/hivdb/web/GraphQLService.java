@@ -18,22 +18,41 @@
 
 package edu.stanford.hivdb.web;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
+import com.google.gson.reflect.TypeToken;
+
+import edu.stanford.hivdb.graphql.QueryCostInstrumentation;
+import edu.stanford.hivdb.graphql.RequestContext;
 import edu.stanford.hivdb.graphql.SierraSchema;
+import edu.stanford.hivdb.graphql.StageMetrics;
+import edu.stanford.hivdb.graphql.StageMetrics.Stage;
+import edu.stanford.hivdb.hivfacts.HIV;
 import edu.stanford.hivdb.utilities.Json;
+import edu.stanford.hivdb.web.StaticResponseCache.StaticResponse;
 import graphql.ExceptionWhileDataFetching;
 import graphql.ExecutionInput;
 import graphql.ExecutionResult;
@@ -41,6 +60,7 @@ import graphql.GraphQL;
 import graphql.GraphQLError;
 import graphql.SerializationError;
 import graphql.UnresolvedTypeError;
+import graphql.schema.GraphQLSchema;
 
 @Path("/graphql")
 @Produces(MediaType.APPLICATION_JSON)
@@ -48,28 +68,273 @@ import graphql.UnresolvedTypeError;
 public class GraphQLService {
 
 	private final GraphQL graphql;
+	private final String virusName;
+	private final StaticResponseCache staticResponses;
+	private final DocumentCache documents;
 
 	public GraphQLService() {
-		graphql = GraphQL.newGraphQL(SierraSchema.schema).build();
+		this(SierraSchema.schema, HIV.getInstance().getName());
+	}
+
+	protected GraphQLService(GraphQLSchema schema, String virusName) {
+		documents = new DocumentCache();
+		graphql = GraphQL
+			.newGraphQL(schema)
+			.preparsedDocumentProvider(documents)
+			.instrumentation(new QueryCostInstrumentation())
+			.build();
+		this.virusName = virusName;
+		this.staticResponses = new StaticResponseCache(schema);
 	}
 
+	private static final SingleFlight<Outcome> SINGLE_FLIGHT = SingleFlight.register("graphql");
+
+	/**
+	 * Cost charged to a coalesced request, which only serializes the
+	 * result of the leader.
+	 */
+	private static final int FOLLOWER_COST = 1;
+
 	private static class GraphQLRequest {
 		public String query;
 		public Map<String, Object> variables;
+		public Map<String, Object> extensions;
+	}
+
+	/**
+	 * Result of one execution, shared by coalesced requests. The output
+	 * tree is serialized separately for every response.
+	 */
+	private static class Outcome {
+		private final Status status;
+		private final Map<String, Object> output;
+
+		private Outcome(Status status, Map<String, Object> output) {
+			this.status = status;
+			this.output = output;
+		}
 	}
 
 	@POST
-	public Response execute(String x) {
+	public void execute(
+			String x,
+			@HeaderParam(AdmissionController.LANE_HEADER) String lane,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+			@Suspended AsyncResponse asyncResponse) {
 		GraphQLRequest request = Json.loads(x, GraphQLRequest.class);
-		String query = request.query;
-		Object context = null;
-		Map<String, Object> variables = request.variables;
-		if (query == null) { query = ""; }
-		if (variables == null) {variables = Collections.emptyMap(); }
+		respond(
+			request.query, request.variables, request.extensions, lane,
+			AdmissionController.estimateCost(x), ifNoneMatch, asyncResponse);
+	}
+
+	/**
+	 * GET variant of {@link #execute}, which lets HTTP caches and browsers
+	 * revalidate static queries with If-None-Match.
+	 */
+	@GET
+	public void executeGet(
+			@QueryParam("query") String query,
+			@QueryParam("variables") String variablesText,
+			@QueryParam("extensions") String extensionsText,
+			@HeaderParam(AdmissionController.LANE_HEADER) String lane,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+			@Suspended AsyncResponse asyncResponse) {
+		respond(
+			query, loadsMap(variablesText), loadsMap(extensionsText), lane,
+			AdmissionController.estimateCost(query) + AdmissionController.estimateCost(variablesText),
+			ifNoneMatch, asyncResponse);
+	}
+
+	/**
+	 * Executes every precomputed static query once. Called by the warm-up.
+	 */
+	public void precomputeStaticResponses() {
+		for (String query : staticResponses.getPrecomputeQueries()) {
+			String normalizedQuery = SingleFlight.normalizeQuery(query);
+			respondStatic(
+				query, normalizedQuery, Collections.emptyMap(),
+				AdmissionController.Lane.INTERACTIVE.getLabel(), 1, null);
+		}
+	}
+
+	private static Map<String, Object> loadsMap(String text) {
+		if (text == null || text.isEmpty()) {
+			return null;
+		}
+		return Json.loads(text, new TypeToken<Map<String, Object>>() {}.getType());
+	}
+
+	private static Response persistedQueryError(Status status, String message, String code) {
+		Map<String, Object> error = new LinkedHashMap<>();
+		error.put("message", message);
+		error.put("extensions", Collections.singletonMap("code", code));
+		Map<String, Object> output = new LinkedHashMap<>();
+		output.put("errors", Collections.singletonList(error));
+		return Response
+			.status(status)
+			.type(MediaType.APPLICATION_JSON)
+			.entity(Json.dumps(output))
+			.build();
+	}
+
+	private void respond(
+			String rawQuery, Map<String, Object> rawVariables, Map<String, Object> extensions,
+			String lane, int cost, String ifNoneMatch, AsyncResponse asyncResponse) {
+		// automatic persisted queries: a known hash can replace the query text
+		String persistedHash = DocumentCache.getPersistedQueryHash(extensions);
+		if (persistedHash != null) {
+			if (rawQuery == null || rawQuery.isEmpty()) {
+				rawQuery = documents.getPersistedQuery(persistedHash);
+				if (rawQuery == null) {
+					asyncResponse.resume(persistedQueryError(
+						Status.OK, "PersistedQueryNotFound", "PERSISTED_QUERY_NOT_FOUND"));
+					return;
+				}
+			}
+			else if (!documents.putPersistedQuery(persistedHash, rawQuery)) {
+				asyncResponse.resume(persistedQueryError(
+					Status.BAD_REQUEST, "provided sha does not match query", "BAD_REQUEST"));
+				return;
+			}
+		}
+		String query = rawQuery == null ? "" : rawQuery;
+		Map<String, Object> variables = (
+			rawVariables == null ? Collections.emptyMap() : rawVariables);
+		String normalizedQuery = SingleFlight.normalizeQuery(query);
+		// hash-only requests are charged by the size of the persisted query
+		int executionCost = Math.max(cost, AdmissionController.estimateCost(query));
+
+		if (staticResponses.isStatic(normalizedQuery)) {
+			asyncResponse.resume(respondStatic(
+				query, normalizedQuery, variables, lane, executionCost, ifNoneMatch));
+			return;
+		}
+		// the permit is held until the response is serialized, or until the
+		// request completes if the response is never written
+		AtomicReference<AdmissionController.Permit> permitRef = new AtomicReference<>();
+		Outcome outcome;
+		try {
+			outcome = executeShared(
+				SINGLE_FLIGHT, makeKey(normalizedQuery, variables), lane, executionCost,
+				() -> execute(query, variables), permitRef);
+		} catch (RuntimeException | Error e) {
+			closePermit(permitRef);
+			throw e;
+		}
+		AdmissionController.Permit permit = permitRef.get();
+		permit.releaseOnCompletion(asyncResponse);
+		if (!asyncResponse.resume(toResponse(outcome, permit))) {
+			// the request was already cancelled
+			permit.close();
+		}
+	}
+
+	/**
+	 * Runs identical requests in flight once. Only the leader is charged
+	 * the execution cost; followers wait for its result and are charged
+	 * {@link #FOLLOWER_COST}. The permit is stored in {@code permitRef} and
+	 * must be closed by the caller, also when this method throws.
+	 */
+	static <T> T executeShared(
+			SingleFlight<T> singleFlight, String key, String lane, int cost,
+			Supplier<T> supplier, AtomicReference<AdmissionController.Permit> permitRef) {
+		return singleFlight.execute(
+			key,
+			isLeader -> permitRef.set(
+				AdmissionController.acquire(lane, isLeader ? cost : FOLLOWER_COST)),
+			supplier);
+	}
+
+	private static void closePermit(AtomicReference<AdmissionController.Permit> permitRef) {
+		AdmissionController.Permit permit = permitRef.get();
+		if (permit != null) {
+			permit.close();
+		}
+	}
+
+	/**
+	 * Responds to a static query from the cache. A cache miss is executed
+	 * and serialized under a permit.
+	 */
+	private Response respondStatic(
+			String query, String normalizedQuery, Map<String, Object> variables,
+			String lane, int cost, String ifNoneMatch) {
+		String variablesJson = Json.dumpsUgly(SingleFlight.sortKeys(variables));
+		String staticKey = StaticResponseCache.makeKey(normalizedQuery, variablesJson);
+		StaticResponse response = staticResponses.getIfPresent(staticKey);
+		if (response == null) {
+			AtomicReference<AdmissionController.Permit> permitRef = new AtomicReference<>();
+			try {
+				Outcome outcome = executeShared(
+					SINGLE_FLIGHT, makeKey(normalizedQuery, variables), lane, cost,
+					() -> execute(query, variables), permitRef);
+				byte[] body = JsonStreamWriter.toBytes(outcome.output);
+				if (outcome.status != Status.OK) {
+					return Response
+						.status(outcome.status)
+						.entity(body)
+						.type(MediaType.APPLICATION_JSON_TYPE.withCharset("UTF-8"))
+						.build();
+				}
+				response = staticResponses.put(staticKey, body);
+			} finally {
+				closePermit(permitRef);
+			}
+		}
+		if (response.matches(ifNoneMatch)) {
+			return Response
+				.notModified()
+				.header(HttpHeaders.ETAG, response.getETag())
+				.build();
+		}
+		return Response
+			.ok(response.getBody(), MediaType.APPLICATION_JSON_TYPE.withCharset("UTF-8"))
+			.header(HttpHeaders.ETAG, response.getETag())
+			.header(HttpHeaders.CACHE_CONTROL, "no-cache")
+			.build();
+	}
+
+	/**
+	 * Identical requests in flight share one execution.
+	 */
+	private String makeKey(String normalizedQuery, Map<String, Object> variables) {
+		String variablesJson = Json.dumpsUgly(SingleFlight.sortKeys(variables));
+		return SingleFlight.hashKey(virusName, normalizedQuery, variablesJson);
+	}
+
+	private Response toResponse(Outcome outcome, AdmissionController.Permit permit) {
+		StreamingOutput stream = outputStream -> {
+			try {
+				StageMetrics.time(
+					Stage.SERIALIZATION, virusName, null, 1,
+					() -> {
+						try {
+							JsonStreamWriter.write(outcome.output, outputStream);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						return null;
+					});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				permit.close();
+			}
+		};
+		return Response
+			.status(outcome.status)
+			.type(MediaType.APPLICATION_JSON_TYPE.withCharset("UTF-8"))
+			.entity(stream)
+			.build();
+	}
+
+	private Outcome execute(String query, Map<String, Object> variables) {
+		RequestContext context = new RequestContext();
 		ExecutionInput input = (
 			ExecutionInput
 			.newExecutionInput()
 			.query(query).context(context).variables(variables)
+			.dataLoaderRegistry(context.getDataLoaderRegistry())
 			.build()
 		);
 		ExecutionResult result = graphql.execute(input);
@@ -83,11 +348,7 @@ public class GraphQLService {
 			status = Status.BAD_REQUEST;
 		}
 		output.put("data", result.getData());
-		return Response
-			.status(status)
-			.type(MediaType.APPLICATION_JSON)
-			.entity(Json.dumps(output))
-			.build();
+		return new Outcome(status, output);
 	}
 
 	private List<Map<String, Object>> handleErrors(ExecutionResult result) {
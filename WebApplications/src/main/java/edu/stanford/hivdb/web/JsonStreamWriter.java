@@ -0,0 +1,219 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes JSON trees of maps, lists and scalars (such as GraphQL results)
+ * token by token into an output stream.
+ *
+ * The output is formatted the same way as Json.dumps: two-space indent,
+ * no HTML escaping, null object members omitted. Characters are encoded
+ * into pooled byte buffers (JSON_STREAM_BUFFER_SIZE bytes, at most
+ * JSON_STREAM_BUFFER_POOL_SIZE of them kept), so no String copy of the
+ * document is ever built. Values of other types are written through Gson.
+ */
+public class JsonStreamWriter {
+
+	private static final int BUFFER_SIZE;
+	private static final BlockingQueue<byte[]> BUFFER_POOL;
+	private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+	static {
+		String bufferSize = System.getenv("JSON_STREAM_BUFFER_SIZE");
+		if (bufferSize == null) {
+			bufferSize = "16384";
+		}
+		String poolSize = System.getenv("JSON_STREAM_BUFFER_POOL_SIZE");
+		if (poolSize == null) {
+			poolSize = "32";
+		}
+		BUFFER_SIZE = Math.max(16, Integer.parseInt(bufferSize));
+		BUFFER_POOL = new ArrayBlockingQueue<>(Math.max(1, Integer.parseInt(poolSize)));
+	}
+
+	/**
+	 * UTF-8 writer on a pooled buffer. Closing it flushes the buffer and
+	 * returns it to the pool, but leaves the output stream open.
+	 */
+	private static class Utf8Writer extends Writer {
+		private final OutputStream out;
+		private byte[] buffer;
+		private int count;
+		private int highSurrogate;
+
+		private Utf8Writer(OutputStream out) {
+			this.out = out;
+			byte[] pooled = BUFFER_POOL.poll();
+			this.buffer = pooled == null ? new byte[BUFFER_SIZE] : pooled;
+		}
+
+		private void put(int b) throws IOException {
+			if (count == buffer.length) {
+				flushBuffer();
+			}
+			buffer[count ++] = (byte) b;
+		}
+
+		private void flushBuffer() throws IOException {
+			if (count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			if (highSurrogate != 0) {
+				int high = highSurrogate;
+				highSurrogate = 0;
+				if (Character.isLowSurrogate((char) c)) {
+					int codePoint = Character.toCodePoint((char) high, (char) c);
+					put(0xf0 | (codePoint >> 18));
+					put(0x80 | ((codePoint >> 12) & 0x3f));
+					put(0x80 | ((codePoint >> 6) & 0x3f));
+					put(0x80 | (codePoint & 0x3f));
+					return;
+				}
+				// unpaired surrogate
+				put('?');
+			}
+			if (c < 0x80) {
+				put(c);
+			}
+			else if (c < 0x800) {
+				put(0xc0 | (c >> 6));
+				put(0x80 | (c & 0x3f));
+			}
+			else if (Character.isHighSurrogate((char) c)) {
+				highSurrogate = c;
+			}
+			else if (Character.isLowSurrogate((char) c)) {
+				put('?');
+			}
+			else {
+				put(0xe0 | (c >> 12));
+				put(0x80 | ((c >> 6) & 0x3f));
+				put(0x80 | (c & 0x3f));
+			}
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i ++) {
+				write(cbuf[i]);
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i ++) {
+				write(str.charAt(i));
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (buffer == null) {
+				return;
+			}
+			try {
+				if (highSurrogate != 0) {
+					highSurrogate = 0;
+					put('?');
+				}
+				flush();
+			} finally {
+				BUFFER_POOL.offer(buffer);
+				buffer = null;
+			}
+		}
+	}
+
+	public static void write(Object value, OutputStream out) throws IOException {
+		try (JsonWriter writer = new JsonWriter(new Utf8Writer(out))) {
+			writer.setIndent("  ");
+			writer.setHtmlSafe(false);
+			writer.setSerializeNulls(false);
+			writeValue(writer, value);
+		}
+	}
+
+	public static byte[] toBytes(Object value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			write(value, out);
+		} catch (IOException e) {
+			// never thrown by ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeValue(JsonWriter writer, Object value) throws IOException {
+		if (value == null) {
+			writer.nullValue();
+		}
+		else if (value instanceof String) {
+			writer.value((String) value);
+		}
+		else if (value instanceof Boolean) {
+			writer.value((Boolean) value);
+		}
+		else if (value instanceof Number) {
+			writer.value((Number) value);
+		}
+		else if (value instanceof Map) {
+			writer.beginObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				writer.name(String.valueOf(entry.getKey()));
+				writeValue(writer, entry.getValue());
+			}
+			writer.endObject();
+		}
+		else if (value instanceof Iterable) {
+			writer.beginArray();
+			for (Object item : (Iterable<?>) value) {
+				writeValue(writer, item);
+			}
+			writer.endArray();
+		}
+		else {
+			GSON.toJson(value, value.getClass(), writer);
+		}
+	}
+
+}
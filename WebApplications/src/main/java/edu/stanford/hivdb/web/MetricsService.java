@@ -0,0 +1,202 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.util.List;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import com.google.common.cache.CacheStats;
+
+import edu.stanford.hivdb.graphql.AlignedSequenceCache;
+import edu.stanford.hivdb.graphql.CustomAlgorithmCache;
+import edu.stanford.hivdb.graphql.StageMetrics;
+import edu.stanford.hivdb.graphql.StageMetrics.Series;
+import edu.stanford.hivdb.web.AdmissionController.Lane;
+
+/**
+ * Exposes server metrics in the Prometheus text format.
+ */
+@Path("metrics")
+public class MetricsService {
+
+	protected static void writeHeader(
+		StringBuilder output, String name, String type, String help
+	) {
+		output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	protected static void writeSample(
+		StringBuilder output, String name, String labels, Number value
+	) {
+		output.append(name);
+		if (!labels.isEmpty()) {
+			output.append('{').append(labels).append('}');
+		}
+		output.append(' ').append(value).append('\n');
+	}
+
+	protected static void writeMetric(
+		StringBuilder output, String name, String type, String help, Number value
+	) {
+		writeHeader(output, name, type, help);
+		writeSample(output, name, "", value);
+	}
+
+	private static void writeAlignedSequenceCacheMetrics(StringBuilder output) {
+		CacheStats stats = AlignedSequenceCache.getStats();
+		writeMetric(
+			output, "sierra_aligned_sequence_cache_hits_total", "counter",
+			"Alignments served from the cache.", stats.hitCount());
+		writeMetric(
+			output, "sierra_aligned_sequence_cache_misses_total", "counter",
+			"Alignment cache lookups that missed.", stats.missCount());
+		writeMetric(
+			output, "sierra_aligned_sequence_cache_evictions_total", "counter",
+			"Alignments evicted from the cache.", stats.evictionCount());
+		writeMetric(
+			output, "sierra_aligned_sequence_cache_entries", "gauge",
+			"Alignments currently cached.", AlignedSequenceCache.getSize());
+		writeMetric(
+			output, "sierra_aligned_sequence_deduplicated_total", "counter",
+			"Replicate sequences within a batch aligned only once.",
+			AlignedSequenceCache.getNumDeduplicated());
+		writeMetric(
+			output, "sierra_aligned_sequence_aligned_total", "counter",
+			"Distinct sequences sent to the aligner.",
+			AlignedSequenceCache.getNumAligned());
+	}
+
+	private static void writeCustomAlgorithmCacheMetrics(StringBuilder output) {
+		CacheStats stats = CustomAlgorithmCache.getStats();
+		writeMetric(
+			output, "sierra_custom_algorithm_cache_hits_total", "counter",
+			"Custom ASI algorithms served from the cache.", stats.hitCount());
+		writeMetric(
+			output, "sierra_custom_algorithm_cache_misses_total", "counter",
+			"Custom ASI algorithms compiled into the cache.", stats.missCount());
+		writeMetric(
+			output, "sierra_custom_algorithm_cache_evictions_total", "counter",
+			"Custom ASI algorithms evicted from the cache.", stats.evictionCount());
+		writeMetric(
+			output, "sierra_custom_algorithm_cache_entries", "gauge",
+			"Custom ASI algorithms currently cached.", CustomAlgorithmCache.getSize());
+		writeMetric(
+			output, "sierra_custom_algorithm_uncached_total", "counter",
+			"Custom ASI algorithms compiled without being cached.",
+			CustomAlgorithmCache.getNumUncached());
+	}
+
+	private static void writeAdmissionMetrics(StringBuilder output) {
+		writeMetric(
+			output, "sierra_admission_queued_requests", "gauge",
+			"Requests waiting for admission.", AdmissionController.getNumQueued());
+		writeMetric(
+			output, "sierra_admission_cost_in_use", "gauge",
+			"Cost units held by running requests.", AdmissionController.getCostInUse());
+		writeMetric(
+			output, "sierra_admission_cost_capacity", "gauge",
+			"Total cost units available.", AdmissionController.getMaxCost());
+
+		Lane[] lanes = Lane.values();
+		writeHeader(output, "sierra_admission_admitted_total", "counter", "Requests admitted.");
+		for (Lane lane : lanes) {
+			writeSample(
+				output, "sierra_admission_admitted_total", laneLabel(lane),
+				AdmissionController.getNumAdmitted(lane));
+		}
+		writeHeader(output, "sierra_admission_rejected_total", "counter", "Requests rejected with 503.");
+		for (Lane lane : lanes) {
+			writeSample(
+				output, "sierra_admission_rejected_total", laneLabel(lane),
+				AdmissionController.getNumRejected(lane));
+		}
+		writeHeader(
+			output, "sierra_request_duration_seconds", "histogram",
+			"Request latency from admission request to completion, by lane.");
+		for (Lane lane : lanes) {
+			AdmissionController.getLatencies(lane).writeSamples(
+				output, "sierra_request_duration_seconds", laneLabel(lane));
+		}
+	}
+
+	private static void writeStageMetrics(StringBuilder output) {
+		List<Series> allSeries = StageMetrics.getAllSeries();
+		writeHeader(
+			output, "sierra_stage_duration_seconds", "histogram",
+			"Latency of analysis stages by virus and algorithm.");
+		for (Series series : allSeries) {
+			series.getLatencies().writeSamples(
+				output, "sierra_stage_duration_seconds", series.getLabels());
+		}
+		writeHeader(
+			output, "sierra_stage_items_total", "counter",
+			"Sequences processed by analysis stages.");
+		for (Series series : allSeries) {
+			writeSample(
+				output, "sierra_stage_items_total", series.getLabels(),
+				series.getNumItems());
+		}
+	}
+
+	private static void writeSingleFlightMetrics(StringBuilder output) {
+		List<SingleFlight<?>> allSingleFlights = SingleFlight.getAll();
+		writeHeader(
+			output, "sierra_single_flight_executed_total", "counter",
+			"Requests executed by a single-flight leader.");
+		for (SingleFlight<?> singleFlight : allSingleFlights) {
+			writeSample(
+				output, "sierra_single_flight_executed_total",
+				endpointLabel(singleFlight), singleFlight.getNumExecuted());
+		}
+		writeHeader(
+			output, "sierra_single_flight_coalesced_total", "counter",
+			"Requests that shared the result of an identical in-flight request.");
+		for (SingleFlight<?> singleFlight : allSingleFlights) {
+			writeSample(
+				output, "sierra_single_flight_coalesced_total",
+				endpointLabel(singleFlight), singleFlight.getNumCoalesced());
+		}
+	}
+
+	private static String endpointLabel(SingleFlight<?> singleFlight) {
+		return "endpoint=\"" + singleFlight.getName() + "\"";
+	}
+
+	private static String laneLabel(Lane lane) {
+		return "lane=\"" + lane.getLabel() + "\"";
+	}
+
+	@GET
+	@Produces("text/plain; version=0.0.4")
+	public Response getMetrics() {
+		StringBuilder output = new StringBuilder();
+		writeAlignedSequenceCacheMetrics(output);
+		writeCustomAlgorithmCacheMetrics(output);
+		writeAdmissionMetrics(output);
+		writeStageMetrics(output);
+		writeSingleFlightMetrics(output);
+		return Response.ok(output.toString()).build();
+	}
+
+}
@@ -0,0 +1,53 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import edu.stanford.hivdb.utilities.Json;
+
+/**
+ * Readiness probe for load balancers. Returns 200 only after the warm-up
+ * has finished, 503 otherwise.
+ */
+@Path("ready")
+public class ReadinessService {
+
+	@GET
+	@Produces("application/json")
+	public Response getReadiness() {
+		Map<String, Object> output = new LinkedHashMap<>();
+		output.put("state", WarmUp.getState());
+		if (WarmUp.getErrorMessage() != null) {
+			output.put("errorMessage", WarmUp.getErrorMessage());
+		}
+		return Response
+			.status(WarmUp.isReady() ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+			.header("Cache-Control", "no-store")
+			.entity(Json.dumps(output))
+			.build();
+	}
+
+}
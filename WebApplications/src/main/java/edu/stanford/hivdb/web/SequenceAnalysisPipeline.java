@@ -0,0 +1,200 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.graphql.AlignedSequenceCache;
+import edu.stanford.hivdb.graphql.StageMetrics;
+import edu.stanford.hivdb.graphql.StageMetrics.Stage;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Analyzes a batch of sequences in small chunks and hands each result to
+ * the caller, in input order, as soon as its chunk is finished.
+ *
+ * Only a bounded number of chunks are in flight at any time, therefore the
+ * memory used by the results is bounded by the chunk size instead of the
+ * batch size.
+ */
+public class SequenceAnalysisPipeline<VirusT extends Virus<VirusT>> {
+
+	private static final int CHUNK_SIZE;
+	private static final int MAX_CHUNKS_IN_FLIGHT;
+	private static final ExecutorService EXECUTOR;
+
+	static {
+		String chunkSize = System.getenv("SEQUENCE_ANALYSIS_CHUNK_SIZE");
+		if (chunkSize == null) {
+			chunkSize = "8";
+		}
+		CHUNK_SIZE = Math.max(1, Integer.parseInt(chunkSize));
+		int numProcessors = Runtime.getRuntime().availableProcessors();
+		MAX_CHUNKS_IN_FLIGHT = Math.max(2, numProcessors / 2);
+		EXECUTOR = Executors.newFixedThreadPool(
+			numProcessors,
+			new ThreadFactoryBuilder()
+			.setNameFormat("sequence-analysis-%d")
+			.setDaemon(true)
+			.build());
+	}
+
+	public static class Result<VirusT extends Virus<VirusT>> {
+		private final AlignedSequence<VirusT> alignedSequence;
+		private final Map<Gene<VirusT>, GeneDR<VirusT>> drugResistance;
+
+		private Result(
+			AlignedSequence<VirusT> alignedSequence,
+			Map<Gene<VirusT>, GeneDR<VirusT>> drugResistance
+		) {
+			this.alignedSequence = alignedSequence;
+			this.drugResistance = drugResistance;
+		}
+
+		public AlignedSequence<VirusT> getAlignedSequence() {
+			return alignedSequence;
+		}
+
+		public Map<Gene<VirusT>, GeneDR<VirusT>> getDrugResistance() {
+			return drugResistance;
+		}
+	}
+
+	@FunctionalInterface
+	public static interface ResultConsumer<VirusT extends Virus<VirusT>> {
+		void accept(Result<VirusT> result) throws IOException;
+	}
+
+	private final VirusT virusIns;
+	private final List<Sequence> sequences;
+	private final DrugResistanceAlgorithm<VirusT> algorithm;
+	private final ExecutorService executor;
+
+	public SequenceAnalysisPipeline(
+		VirusT virusIns, List<Sequence> sequences, String algorithmName
+	) {
+		this(virusIns, sequences, algorithmName, EXECUTOR);
+	}
+
+	/**
+	 * @param executor pool analyzing the chunks, instead of the pool shared
+	 *                 by the streaming endpoints
+	 */
+	public SequenceAnalysisPipeline(
+		VirusT virusIns, List<Sequence> sequences, String algorithmName,
+		ExecutorService executor
+	) {
+		this.virusIns = virusIns;
+		this.sequences = sequences;
+		this.executor = executor;
+		this.algorithm = (
+			algorithmName == null ?
+			virusIns.getLatestDrugResistAlgorithm("HIVDB") :
+			virusIns.getDrugResistAlgorithm(algorithmName)
+		);
+	}
+
+	public int size() {
+		return sequences.size();
+	}
+
+	public DrugResistanceAlgorithm<VirusT> getAlgorithm() {
+		return algorithm;
+	}
+
+	private List<Result<VirusT>> analyze(List<Sequence> chunk) {
+		List<Result<VirusT>> results = new ArrayList<>();
+		for (AlignedSequence<VirusT> alignedSeq :
+				AlignedSequenceCache.parallelAlign(virusIns, chunk)) {
+			Map<Gene<VirusT>, GeneDR<VirusT>> drs = Collections.emptyMap();
+			if (!alignedSeq.isEmpty()) {
+				// compute genotype here so the consumer thread only serializes
+				StageMetrics.time(
+					Stage.GENOTYPE, virusIns.getName(), null, 1,
+					alignedSeq::getGenotypeResult);
+				drs = StageMetrics.time(
+					Stage.DRUG_RESISTANCE, virusIns.getName(), algorithm.getName(), 1,
+					() -> GeneDR.newFromAlignedGeneSeqs(
+						alignedSeq.getAlignedGeneSequences(), algorithm));
+			}
+			results.add(new Result<>(alignedSeq, drs));
+		}
+		return results;
+	}
+
+	/**
+	 * Analyzes all sequences and passes the results to consumer in the
+	 * same order as the input sequences.
+	 *
+	 * @param consumer Callback receives each result
+	 * @throws IOException
+	 */
+	public void forEachResult(ResultConsumer<VirusT> consumer) throws IOException {
+		Iterator<List<Sequence>> chunks = Lists.partition(sequences, CHUNK_SIZE).iterator();
+		Deque<Future<List<Result<VirusT>>>> inFlight = new ArrayDeque<>();
+		try {
+			while (chunks.hasNext() || !inFlight.isEmpty()) {
+				while (chunks.hasNext() && inFlight.size() < MAX_CHUNKS_IN_FLIGHT) {
+					List<Sequence> chunk = chunks.next();
+					inFlight.add(executor.submit(() -> analyze(chunk)));
+				}
+				for (Result<VirusT> result : await(inFlight.poll())) {
+					consumer.accept(result);
+				}
+			}
+		}
+		finally {
+			// the client may have disconnected; stop unfinished chunks
+			for (Future<List<Result<VirusT>>> future : inFlight) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	static <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+}
@@ -18,16 +18,34 @@
 
 package edu.stanford.hivdb.web;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.ws.rs.FormParam;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
+import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.utilities.Json;
 import edu.stanford.hivdb.viruses.Virus;
 
 
 public abstract class SequenceAnalysisService<VirusT extends Virus<VirusT>> {
 
+	private static final SingleFlight<String> SINGLE_FLIGHT = SingleFlight.register("sequence-analysis");
+
 	@FormParam("compareAlgorithms")
 	protected String algorithmsCSV;
 
@@ -50,11 +68,169 @@ public abstract class SequenceAnalysisService<VirusT extends Virus<VirusT>> {
 	@Produces("application/json")
 	public final Response getAll(
 			@FormParam("sequences") String sequences,
-			@FormParam("outputOptions") String outputOptions) {
+			@FormParam("outputOptions") String outputOptions,
+			@HeaderParam(AdmissionController.LANE_HEADER) String lane) {
+
+		List<Sequence> seqList = FastaUtils.readString(sequences);
+		// identical requests in flight share one execution
+		String output = SINGLE_FLIGHT.execute(makeKey(seqList, outputOptions), () -> {
+			try (AdmissionController.Permit permit =
+					AdmissionController.acquire(lane, AdmissionController.estimateCost(seqList))) {
+				return new SequenceAnalysisServiceOutput<>(
+					getVirusIns(), this, seqList.toArray(new Sequence[0]), outputOptions.split(",")
+				).toString();
+			}
+		});
+		return Response.ok(output).build();
+	}
+
+	private String makeKey(List<Sequence> seqList, String outputOptions) {
+		List<String> parts = new ArrayList<>();
+		parts.add(getVirusIns().getName());
+		parts.add(outputOptions);
+		parts.add(drAlgorithm);
+		parts.add(algorithmsCSV);
+		parts.add(customAlgorithmsStr);
+		for (Sequence seq : seqList) {
+			parts.add(seq.getHeader());
+			parts.add(SingleFlight.hashKey(seq.getSequence()));
+		}
+		return SingleFlight.hashKey(parts.toArray(new String[0]));
+	}
+
+	@FunctionalInterface
+	protected static interface StreamBody<VirusT extends Virus<VirusT>> {
+		void write(SequenceAnalysisPipeline<VirusT> pipeline, Writer writer) throws IOException;
+	}
+
+	/**
+	 * Runs the pipeline under an admission permit and streams its results
+	 * through the given body.
+	 *
+	 * The permit is released when the stream finishes, or when the request
+	 * completes without the stream ever being written.
+	 */
+	protected void stream(
+		String sequences, String lane, StreamBody<VirusT> body, AsyncResponse asyncResponse
+	) {
+		List<Sequence> seqList = FastaUtils.readString(sequences);
+		SequenceAnalysisPipeline<VirusT> pipeline = new SequenceAnalysisPipeline<>(
+			getVirusIns(), seqList, drAlgorithm);
+		// acquire before the response starts so a rejection is still a 503
+		AdmissionController.Permit permit =
+			AdmissionController.acquire(lane, AdmissionController.estimateCost(seqList));
+		permit.releaseOnCompletion(asyncResponse);
+		StreamingOutput stream = outputStream -> {
+			try {
+				Writer writer = new BufferedWriter(
+					new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+				body.write(pipeline, writer);
+				writer.flush();
+			} finally {
+				permit.close();
+			}
+		};
+		if (!asyncResponse.resume(Response.ok(stream).build())) {
+			// the request was already cancelled
+			permit.close();
+		}
+	}
+
+	/**
+	 * Streaming endpoint that writes one JSON record per sequence.
+	 *
+	 * Records are newline-delimited and in the same order as the input.
+	 * Each record is written as soon as its alignment, subtyping and drug
+	 * resistance results are ready.
+	 *
+	 * @param sequences The input sequences in FASTA format.
+	 * @param asyncResponse Streamed results in NDJSON format.
+	 */
+	@POST
+	@Path("records.ndjson")
+	@Produces("application/x-ndjson")
+	public final void getAllAsNdjson(
+			@FormParam("sequences") String sequences,
+			@HeaderParam(AdmissionController.LANE_HEADER) String lane,
+			@Suspended AsyncResponse asyncResponse) {
+		stream(sequences, lane, (pipeline, writer) -> {
+			pipeline.forEachResult(result -> {
+				writer.write(Json.dumpsUgly(AnalysisRecords.fromSequenceResult(result)));
+				writer.write('\n');
+				// flush each record so clients receive it immediately
+				writer.flush();
+			});
+		});
+	}
+
+	/**
+	 * Streaming endpoint of the drug resistance XML report (sierra.xsd 1.1).
+	 *
+	 * Each result element is written as soon as its sequence is analyzed.
+	 *
+	 * @param sequences The input sequences in FASTA format.
+	 * @param asyncResponse Streamed XML report.
+	 */
+	@POST
+	@Path("drug-resistance.xml")
+	@Produces("application/xml")
+	public final void getDRXml(
+			@FormParam("sequences") String sequences,
+			@HeaderParam(AdmissionController.LANE_HEADER) String lane,
+			@Suspended AsyncResponse asyncResponse) {
+		stream(sequences, lane, (pipeline, writer) -> {
+			XmlStreamOutput<VirusT> xml = new XmlStreamOutput<>(getVirusIns(), writer);
+			xml.start();
+			pipeline.forEachResult(
+				result -> xml.writeResult(
+					result.getAlignedSequence(), result.getDrugResistance()));
+			xml.finish();
+		});
+	}
 
-		SequenceAnalysisServiceOutput<VirusT> output =
-			new SequenceAnalysisServiceOutput<>(getVirusIns(), this, sequences, outputOptions);
+	/**
+	 * Streaming endpoint of the sequence summary TSV report.
+	 *
+	 * @param sequences The input sequences in FASTA format.
+	 * @param asyncResponse Streamed TSV report, one row per sequence.
+	 */
+	@POST
+	@Path("alignment.tsv")
+	@Produces("text/tab-separated-values")
+	public final void getAlignmentTsv(
+			@FormParam("sequences") String sequences,
+			@HeaderParam(AdmissionController.LANE_HEADER) String lane,
+			@Suspended AsyncResponse asyncResponse) {
+		streamTsv(sequences, lane, TsvReportWriter.Report.SEQUENCE_SUMMARY, asyncResponse);
+	}
+
+	/**
+	 * Streaming endpoint of the resistance summary TSV report.
+	 *
+	 * @param sequences The input sequences in FASTA format.
+	 * @param asyncResponse Streamed TSV report, one row per sequence.
+	 */
+	@POST
+	@Path("drug-resistance.tsv")
+	@Produces("text/tab-separated-values")
+	public final void getDRTsv(
+			@FormParam("sequences") String sequences,
+			@HeaderParam(AdmissionController.LANE_HEADER) String lane,
+			@Suspended AsyncResponse asyncResponse) {
+		streamTsv(sequences, lane, TsvReportWriter.Report.RESISTANCE_SUMMARY, asyncResponse);
+	}
 
-		return Response.ok(output.toString()).build();
+	private void streamTsv(
+		String sequences, String lane, TsvReportWriter.Report report, AsyncResponse asyncResponse
+	) {
+		stream(sequences, lane, (pipeline, writer) -> {
+			TsvReportWriter<VirusT> tsv = new TsvReportWriter<>(
+				getVirusIns(), report, pipeline.getAlgorithm(), writer);
+			pipeline.forEachResult(result -> {
+				tsv.writeRow(result.getAlignedSequence(), result.getDrugResistance());
+				writer.flush();
+			});
+			tsv.finish();
+		});
 	}
 }
@@ -8,19 +8,29 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.reflect.TypeToken;
 
 import edu.stanford.hivdb.drugresistance.GeneDR;
 import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
 import edu.stanford.hivdb.drugresistance.reports.TabularAlgorithmsComparison;
+import edu.stanford.hivdb.graphql.AlignedSequenceCache;
+import edu.stanford.hivdb.graphql.CustomAlgorithmCache;
+import edu.stanford.hivdb.graphql.StageMetrics;
+import edu.stanford.hivdb.graphql.StageMetrics.Stage;
 import edu.stanford.hivdb.reports.ResistanceSummaryTSV;
 import edu.stanford.hivdb.reports.SequenceSummaryTSV;
 import edu.stanford.hivdb.sequences.AlignedGeneSeq;
 import edu.stanford.hivdb.sequences.AlignedSequence;
-import edu.stanford.hivdb.sequences.NucAminoAligner;
 import edu.stanford.hivdb.sequences.PrettyAlignments;
 import edu.stanford.hivdb.sequences.Sequence;
 import edu.stanford.hivdb.utilities.FastaUtils;
@@ -28,33 +38,66 @@ import edu.stanford.hivdb.utilities.Json;
 import edu.stanford.hivdb.viruses.Gene;
 import edu.stanford.hivdb.viruses.Virus;
 
+/**
+ * Renders the requested output options of a batch of sequences.
+ *
+ * Sequences are aligned once. When a drug resistance output is requested,
+ * the GeneDRs of all distinct sequences are computed in parallel into a
+ * concurrent memo before the outputs are rendered concurrently.
+ */
 public class SequenceAnalysisServiceOutput<VirusT extends Virus<VirusT>> {
 
-	/**
-	 * 
-	 */
+	private static final ExecutorService EXECUTOR;
+
+	static {
+		String numThreads = System.getenv("SEQUENCE_ANALYSIS_OUTPUT_THREADS");
+		if (numThreads == null) {
+			numThreads = String.valueOf(Runtime.getRuntime().availableProcessors());
+		}
+		EXECUTOR = Executors.newFixedThreadPool(
+			Integer.parseInt(numThreads),
+			new ThreadFactoryBuilder()
+			.setNameFormat("sequence-analysis-output-%d")
+			.setDaemon(true)
+			.build());
+	}
+
 	private final SequenceAnalysisService<VirusT> sequenceAnalysisService;
 
 	private final VirusT virusIns;
 
 	private final Sequence[] sequences;
 	private final Set<String> outputOptions;
+	private final ExecutorService executor;
 
 	// caches
-	private Map<Sequence, AlignedSequence<VirusT>> alignedSeqMap;
-	private Map<Sequence, Map<Gene<VirusT>, GeneDR<VirusT>>> drsMap;
+	private final Map<Sequence, AlignedSequence<VirusT>> alignedSeqMap;
+	private final List<AlignedSequence<VirusT>> alignedSequences;
+	private final Map<Sequence, Map<Gene<VirusT>, GeneDR<VirusT>>> drsMap;
 
 	public SequenceAnalysisServiceOutput(
 		VirusT virusIns, SequenceAnalysisService<VirusT> sequenceAnalysisService,
 		Sequence[] sequences, String[] outputOptions
+	) {
+		this(virusIns, sequenceAnalysisService, sequences, outputOptions, EXECUTOR);
+	}
+
+	/**
+	 * @param executor pool computing the resistance and rendering the
+	 *                 outputs, instead of the shared one
+	 */
+	public SequenceAnalysisServiceOutput(
+		VirusT virusIns, SequenceAnalysisService<VirusT> sequenceAnalysisService,
+		Sequence[] sequences, String[] outputOptions, ExecutorService executor
 	) {
 		this.virusIns = virusIns;
+		this.executor = executor;
 		this.sequenceAnalysisService = sequenceAnalysisService;
 		this.sequences = sequences;
 		this.outputOptions = new TreeSet<>(Arrays.asList(outputOptions));
 		this.alignedSeqMap = (
-			NucAminoAligner.getInstance(virusIns)
-			.parallelAlign(Arrays.asList(sequences))
+			AlignedSequenceCache
+			.parallelAlign(virusIns, Arrays.asList(sequences))
 			.stream()
 			.collect(Collectors.toMap(
 				as -> as.getInputSequence(),
@@ -63,7 +106,11 @@ public class SequenceAnalysisServiceOutput<VirusT extends Virus<VirusT>> {
 				LinkedHashMap::new
 			))
 		);
-		this.drsMap = new LinkedHashMap<>();
+		this.alignedSequences = Arrays
+			.stream(sequences)
+			.map(this::getAlignedSeq)
+			.collect(Collectors.toList());
+		this.drsMap = new ConcurrentHashMap<>();
 	}
 
 	public SequenceAnalysisServiceOutput(
@@ -81,27 +128,52 @@ public class SequenceAnalysisServiceOutput<VirusT extends Virus<VirusT>> {
 	}
 
 	private Map<Gene<VirusT>, GeneDR<VirusT>> getDRs(Sequence seq) {
-		if (!drsMap.containsKey(seq)) {
+		Map<Gene<VirusT>, GeneDR<VirusT>> drs = drsMap.get(seq);
+		if (drs == null) {
 			List<AlignedGeneSeq<VirusT>> aligneds = getAlignedSeq(seq).getAlignedGeneSequences();
 			DrugResistanceAlgorithm<VirusT> alg = virusIns.getDrugResistAlgorithm(sequenceAnalysisService.drAlgorithm);
-			drsMap.put(seq, GeneDR.newFromAlignedGeneSeqs(aligneds, alg));
+			drs = StageMetrics.time(
+				Stage.DRUG_RESISTANCE, virusIns.getName(), alg.getName(), 1,
+				() -> GeneDR.newFromAlignedGeneSeqs(aligneds, alg));
+			Map<Gene<VirusT>, GeneDR<VirusT>> prevDRs = drsMap.putIfAbsent(seq, drs);
+			if (prevDRs != null) {
+				drs = prevDRs;
+			}
+		}
+		return drs;
+	}
+
+	/**
+	 * Computes the GeneDRs of every distinct sequence in parallel.
+	 */
+	private void prefetchDRs() {
+		join(
+			alignedSeqMap.keySet()
+			.stream()
+			.map(seq -> CompletableFuture.runAsync(() -> getDRs(seq), executor))
+			.collect(Collectors.toList())
+		);
+	}
+
+	private static <T> List<T> join(List<CompletableFuture<T>> futures) {
+		try {
+			return futures
+				.stream()
+				.map(CompletableFuture::join)
+				.collect(Collectors.toList());
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
 		}
-		return drsMap.get(seq);
 	}
 
 	private String getAlignmentTsv() {
-		List<AlignedSequence<VirusT>> overallResults = Arrays
-			.stream(sequences)
-			.map(this::getAlignedSeq)
-			.collect(Collectors.toList());
-		return SequenceSummaryTSV.getInstance(virusIns).getReport(overallResults);
+		return SequenceSummaryTSV.getInstance(virusIns).getReport(alignedSequences);
 	}
 
 	private String getAlgorithmComparisonTsv() {
-		List<AlignedSequence<VirusT>> overallResults = Arrays
-			.stream(sequences)
-			.map(this::getAlignedSeq)
-			.collect(Collectors.toList());
 		List<DrugResistanceAlgorithm<VirusT>> algorithms = new ArrayList<>(
 			virusIns.getDrugResistAlgorithms(
 				Lists.newArrayList(sequenceAnalysisService.algorithmsCSV.split(","))
@@ -112,13 +184,13 @@ public class SequenceAnalysisServiceOutput<VirusT extends Virus<VirusT>> {
 		algorithms.addAll(
 			customAlgorithmList
 			.stream()
-			.map(m -> new DrugResistanceAlgorithm<>(
+			.map(m -> CustomAlgorithmCache.get(
 				m.get("name"), virusIns, m.get("xml")
 			))
 			.collect(Collectors.toList())
 		);
 		return new TabularAlgorithmsComparison<>(
-			overallResults, algorithms).toString();
+			alignedSequences, algorithms).toString();
 	}
 
 	private Map<String, String> getPrettyAlignmentTsvs() {
@@ -141,10 +213,6 @@ public class SequenceAnalysisServiceOutput<VirusT extends Virus<VirusT>> {
 	}
 
 	private String getDRTsv() {
-		List<AlignedSequence<VirusT>> alignedSequences = Arrays
-			.stream(sequences)
-			.map(this::getAlignedSeq)
-			.collect(Collectors.toList());
 		List<Map<Gene<VirusT>, GeneDR<VirusT>>> allResistanceResults = Arrays
 			.stream(sequences)
 			.map(this::getDRs)
@@ -156,49 +224,66 @@ public class SequenceAnalysisServiceOutput<VirusT extends Virus<VirusT>> {
 	}
 
 	private String getDRXml() {
-		List<AlignedSequence<VirusT>> alignedSequences = Arrays
-			.stream(sequences)
-			.map(this::getAlignedSeq)
-			.collect(Collectors.toList());
 		List<Map<Gene<VirusT>, GeneDR<VirusT>>> allResistanceResults = Arrays
 			.stream(sequences)
 			.map(this::getDRs)
 			.collect(Collectors.toList());
 
-		return new XmlOutput<VirusT>(
-			virusIns, alignedSequences, allResistanceResults).toString();
+		return XmlStreamOutput.toString(
+			virusIns, alignedSequences, allResistanceResults);
+	}
+
+	private Supplier<Object> getRenderer(String outputOption) {
+		switch (outputOption) {
+			case "alignment.tsv":
+			case "alignments.tsv":
+				return this::getAlignmentTsv;
+			case "pretty-alignment.tsv":
+			case "pretty-alignments.tsv":
+				return this::getPrettyAlignmentTsvs;
+			case "drug-resistance.tsv":
+			case "drug-resistances.tsv":
+				return this::getDRTsv;
+			case "drug-resistance.xml":
+			case "drug-resistances.xml":
+				return this::getDRXml;
+			case "alg-comparison.tsv":
+			case "alg-comparisons.tsv":
+				return this::getAlgorithmComparisonTsv;
+			default:
+				return null;
+		}
+	}
+
+	private boolean needsDRs() {
+		return outputOptions.stream().anyMatch(opt -> opt.startsWith("drug-resistance"));
 	}
 
 	@Override
 	public String toString() {
-		Map<String, Object> output = new TreeMap<>();
+		if (needsDRs()) {
+			prefetchDRs();
+		}
 
+		List<String> options = new ArrayList<>();
+		List<CompletableFuture<Object>> futures = new ArrayList<>();
 		for (String outputOption : outputOptions) {
-			switch (outputOption) {
-				case "alignment.tsv":
-				case "alignments.tsv":
-					output.put(outputOption, getAlignmentTsv());
-					break;
-				case "pretty-alignment.tsv":
-				case "pretty-alignments.tsv":
-					output.put(outputOption, getPrettyAlignmentTsvs());
-					break;
-				case "drug-resistance.tsv":
-				case "drug-resistances.tsv":
-					output.put(outputOption, getDRTsv());
-					break;
-				case "drug-resistance.xml":
-				case "drug-resistances.xml":
-					output.put(outputOption, getDRXml());
-					break;
-				case "alg-comparison.tsv":
-				case "alg-comparisons.tsv":
-					output.put(outputOption, getAlgorithmComparisonTsv());
-					break;
+			Supplier<Object> renderer = getRenderer(outputOption);
+			if (renderer != null) {
+				options.add(outputOption);
+				futures.add(CompletableFuture.supplyAsync(renderer, executor));
 			}
 		}
+		List<Object> results = join(futures);
+
+		Map<String, Object> output = new TreeMap<>();
+		for (int i = 0; i < options.size(); i ++) {
+			output.put(options.get(i), results.get(i));
+		}
 
-		return Json.dumps(output);
+		return StageMetrics.time(
+			Stage.SERIALIZATION, virusIns.getName(), null, sequences.length,
+			() -> Json.dumps(output));
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,241 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Coalesces concurrent executions of the same key.
+ *
+ * The first caller of a key (the leader) runs the computation; callers
+ * arriving while it is in flight wait for and share its result or
+ * exception. Nothing is kept after the computation finishes.
+ */
+public class SingleFlight<T> {
+
+	private static final List<SingleFlight<?>> ALL = new CopyOnWriteArrayList<>();
+
+	private final String name;
+	private final Map<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong numExecuted = new AtomicLong();
+	private final AtomicLong numCoalesced = new AtomicLong();
+
+	public SingleFlight(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Creates a single-flight group whose counters are exported by
+	 * {@link MetricsService}. Instances created with the constructor are
+	 * not exported.
+	 */
+	public static <T> SingleFlight<T> register(String name) {
+		SingleFlight<T> singleFlight = new SingleFlight<>(name);
+		ALL.add(singleFlight);
+		return singleFlight;
+	}
+
+	public T execute(String key, Supplier<T> supplier) {
+		return execute(key, isLeader -> {}, supplier);
+	}
+
+	/**
+	 * Same as {@link #execute(String, Supplier)}, but first tells the
+	 * caller whether it is the leader, e.g. to admit the leader and its
+	 * followers at different costs. When {@code onJoin} throws for the
+	 * leader, the exception is shared with its followers.
+	 */
+	public T execute(String key, Consumer<Boolean> onJoin, Supplier<T> supplier) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		CompletableFuture<T> leader = inFlight.putIfAbsent(key, future);
+		if (leader != null) {
+			numCoalesced.incrementAndGet();
+			onJoin.accept(false);
+			try {
+				return leader.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+		try {
+			onJoin.accept(true);
+			numExecuted.incrementAndGet();
+			T result = supplier.get();
+			future.complete(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	public String getName() { return name; }
+
+	public long getNumExecuted() { return numExecuted.get(); }
+
+	public long getNumCoalesced() { return numCoalesced.get(); }
+
+	public int getNumInFlight() { return inFlight.size(); }
+
+	public static List<SingleFlight<?>> getAll() {
+		return Collections.unmodifiableList(ALL);
+	}
+
+	/**
+	 * Collapses runs of whitespace and comments of a GraphQL query into
+	 * one space. String literals and block strings are kept verbatim.
+	 */
+	public static String normalizeQuery(String query) {
+		StringBuilder normalized = new StringBuilder(query.length());
+		boolean pendingSpace = false;
+		int i = 0;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			int end;
+			if (c == '#') {
+				// a comment runs to the end of the line
+				end = i + 1;
+				while (end < query.length() && query.charAt(end) != '\n' && query.charAt(end) != '\r') {
+					end ++;
+				}
+				pendingSpace = normalized.length() > 0;
+				i = end;
+				continue;
+			}
+			if (Character.isWhitespace(c)) {
+				pendingSpace = normalized.length() > 0;
+				i ++;
+				continue;
+			}
+			if (query.startsWith("\"\"\"", i)) {
+				end = skipBlockString(query, i);
+			}
+			else if (c == '"') {
+				end = skipString(query, i);
+			}
+			else {
+				end = i + 1;
+			}
+			if (pendingSpace) {
+				normalized.append(' ');
+				pendingSpace = false;
+			}
+			normalized.append(query, i, end);
+			i = end;
+		}
+		return normalized.toString();
+	}
+
+	private static int skipBlockString(String query, int start) {
+		int i = start + 3;
+		while (i < query.length()) {
+			if (query.startsWith("\\\"\"\"", i)) {
+				i += 4;
+			}
+			else if (query.startsWith("\"\"\"", i)) {
+				return i + 3;
+			}
+			else {
+				i ++;
+			}
+		}
+		return query.length();
+	}
+
+	private static int skipString(String query, int start) {
+		int i = start + 1;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			if (c == '\\') {
+				i += 2;
+			}
+			else if (c == '"') {
+				return i + 1;
+			}
+			else if (c == '\n' || c == '\r') {
+				// unterminated; reported by the parser
+				return i;
+			}
+			else {
+				i ++;
+			}
+		}
+		return query.length();
+	}
+
+	/**
+	 * Returns a copy of a JSON-like value with all map keys sorted, so
+	 * that equal values serialize identically.
+	 */
+	public static Object sortKeys(Object value) {
+		if (value instanceof Map) {
+			Map<String, Object> sorted = new TreeMap<>();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+				sorted.put(String.valueOf(e.getKey()), sortKeys(e.getValue()));
+			}
+			return sorted;
+		}
+		if (value instanceof List) {
+			return ((List<?>) value)
+				.stream()
+				.map(SingleFlight::sortKeys)
+				.collect(Collectors.toList());
+		}
+		return value;
+	}
+
+	/**
+	 * Hashes the given parts into a key. Parts are separated so that
+	 * different splits of the same text give different keys.
+	 */
+	public static String hashKey(String... parts) {
+		Hasher hasher = Hashing.sha256().newHasher();
+		for (String part : parts) {
+			if (part == null) {
+				hasher.putInt(-1);
+			}
+			else {
+				hasher.putInt(part.length());
+				hasher.putString(part, StandardCharsets.UTF_8);
+			}
+		}
+		return hasher.hash().toString();
+	}
+
+}
@@ -0,0 +1,237 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import graphql.language.Definition;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLEnumType;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLScalarType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+import graphql.schema.GraphQLTypeUtil;
+
+/**
+ * Serialized responses of GraphQL queries that only ask for reference
+ * data (genes, versions and mutation prevalence subtypes). These answers
+ * only change at deploy time, so they are executed once per distinct query
+ * and served from a byte array with a strong ETag afterwards.
+ *
+ * One query per static root field, selecting every field without
+ * arguments, is generated from the schema and precomputed at startup.
+ */
+public class StaticResponseCache {
+
+	private static final Set<String> STATIC_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+		"genes", "currentVersion", "currentProgramVersion", "mutationPrevalenceSubtypes", "__typename")));
+	private static final int MAX_PRECOMPUTE_DEPTH = 5;
+	private static final long MAX_ENTRIES;
+
+	static {
+		String maxEntries = System.getenv("STATIC_RESPONSE_MAX_ENTRIES");
+		if (maxEntries == null) {
+			maxEntries = "256";
+		}
+		MAX_ENTRIES = Long.parseLong(maxEntries);
+	}
+
+	public static class StaticResponse {
+		private final byte[] body;
+		private final String eTag;
+
+		private StaticResponse(byte[] body) {
+			this.body = body;
+			this.eTag = '"' + Hashing.sha256().hashBytes(body).toString() + '"';
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+
+		/**
+		 * @param ifNoneMatch value of the If-None-Match header, can be null
+		 * @return true if the client already has this response
+		 */
+		public boolean matches(String ifNoneMatch) {
+			if (ifNoneMatch == null) {
+				return false;
+			}
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.equals("*") || tag.equals(eTag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final GraphQLSchema schema;
+	private final Cache<String, StaticResponse> responses;
+	private final Cache<String, Boolean> staticQueries;
+
+	public StaticResponseCache(GraphQLSchema schema) {
+		this.schema = schema;
+		this.responses = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).build();
+		this.staticQueries = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES * 4).build();
+	}
+
+	public static String makeKey(String normalizedQuery, String variablesJson) {
+		return normalizedQuery + '\u0000' + variablesJson;
+	}
+
+	/**
+	 * @param normalizedQuery query normalized by {@link SingleFlight#normalizeQuery}
+	 * @return true if the query only selects static root fields
+	 */
+	public boolean isStatic(String normalizedQuery) {
+		if (MAX_ENTRIES <= 0) {
+			return false;
+		}
+		try {
+			return staticQueries.get(normalizedQuery, () -> checkStatic(normalizedQuery));
+		} catch (ExecutionException e) {
+			return false;
+		}
+	}
+
+	private static boolean checkStatic(String query) {
+		Document document;
+		try {
+			document = new Parser().parseDocument(query);
+		} catch (Exception e) {
+			// invalid queries are reported by the regular execution
+			return false;
+		}
+		int numOperations = 0;
+		for (Definition<?> definition : document.getDefinitions()) {
+			if (definition instanceof OperationDefinition) {
+				OperationDefinition operation = (OperationDefinition) definition;
+				if (operation.getOperation() != OperationDefinition.Operation.QUERY ||
+						!isStaticSelectionSet(operation.getSelectionSet(), true)) {
+					return false;
+				}
+				numOperations ++;
+			}
+		}
+		return numOperations == 1;
+	}
+
+	private static boolean isStaticSelectionSet(SelectionSet selectionSet, boolean allowViewer) {
+		for (Selection<?> selection : selectionSet.getSelections()) {
+			if (!(selection instanceof Field)) {
+				return false;
+			}
+			Field field = (Field) selection;
+			if (allowViewer && field.getName().equals("viewer")) {
+				if (field.getSelectionSet() == null ||
+						!isStaticSelectionSet(field.getSelectionSet(), false)) {
+					return false;
+				}
+			}
+			else if (!STATIC_FIELDS.contains(field.getName())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public StaticResponse getIfPresent(String key) {
+		return responses.getIfPresent(key);
+	}
+
+	public StaticResponse put(String key, byte[] body) {
+		StaticResponse response = new StaticResponse(body);
+		responses.put(key, response);
+		return response;
+	}
+
+	public long getSize() {
+		return responses.size();
+	}
+
+	/**
+	 * Generates one query per static root field of the schema, selecting
+	 * every non-deprecated field without arguments.
+	 */
+	public List<String> getPrecomputeQueries() {
+		List<String> queries = new ArrayList<>();
+		GraphQLObjectType queryType = schema.getQueryType();
+		for (String fieldName : STATIC_FIELDS) {
+			GraphQLFieldDefinition fieldDef = queryType.getFieldDefinition(fieldName);
+			if (fieldDef == null) {
+				continue;
+			}
+			String selection = buildSelection(fieldDef.getType(), new HashSet<>(), 0);
+			if (selection != null) {
+				queries.add("query { " + fieldName + selection + " }");
+			}
+		}
+		return queries;
+	}
+
+	private static String buildSelection(GraphQLType type, Set<String> path, int depth) {
+		GraphQLType unwrapped = GraphQLTypeUtil.unwrapAll(type);
+		if (unwrapped instanceof GraphQLScalarType || unwrapped instanceof GraphQLEnumType) {
+			return "";
+		}
+		if (!(unwrapped instanceof GraphQLObjectType) ||
+				depth >= MAX_PRECOMPUTE_DEPTH || path.contains(unwrapped.getName())) {
+			return null;
+		}
+		path.add(unwrapped.getName());
+		StringBuilder selection = new StringBuilder(" {");
+		boolean empty = true;
+		for (GraphQLFieldDefinition fieldDef : ((GraphQLObjectType) unwrapped).getFieldDefinitions()) {
+			if (!fieldDef.getArguments().isEmpty() || fieldDef.isDeprecated()) {
+				continue;
+			}
+			String subSelection = buildSelection(fieldDef.getType(), path, depth + 1);
+			if (subSelection != null) {
+				selection.append(' ').append(fieldDef.getName()).append(subSelection);
+				empty = false;
+			}
+		}
+		path.remove(unwrapped.getName());
+		return empty ? null : selection.append(" }").toString();
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.reports.ResistanceSummaryTSV;
+import edu.stanford.hivdb.reports.SequenceSummaryTSV;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Writes a SequenceSummaryTSV or ResistanceSummaryTSV report one row at a
+ * time, so rows can be sent as soon as each sequence is analyzed.
+ *
+ * The header is the report of an empty batch and the rows of a sequence
+ * are what its single-sequence report adds after that header, therefore
+ * the concatenated output is identical to the batch report.
+ */
+public class TsvReportWriter<VirusT extends Virus<VirusT>> {
+
+	public static enum Report {
+		SEQUENCE_SUMMARY, RESISTANCE_SUMMARY
+	}
+
+	private final VirusT virusIns;
+	private final Report report;
+	private final DrugResistanceAlgorithm<VirusT> algorithm;
+	private final Writer writer;
+	private final String header;
+	private boolean headerWritten = false;
+
+	public TsvReportWriter(
+		VirusT virusIns, Report report,
+		DrugResistanceAlgorithm<VirusT> algorithm, Writer writer
+	) {
+		this.virusIns = virusIns;
+		this.report = report;
+		this.algorithm = algorithm;
+		this.writer = writer;
+		this.header = render(Collections.emptyList(), Collections.emptyList());
+	}
+
+	private String render(
+		List<AlignedSequence<VirusT>> alignedSeqs,
+		List<Map<Gene<VirusT>, GeneDR<VirusT>>> allGeneDRs
+	) {
+		switch (report) {
+			case SEQUENCE_SUMMARY:
+				return SequenceSummaryTSV.getInstance(virusIns).getReport(alignedSeqs);
+			default:
+				return ResistanceSummaryTSV.getInstance(virusIns).getReport(
+					alignedSeqs, allGeneDRs, algorithm
+				).toString();
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		if (!headerWritten) {
+			writer.write(header);
+			headerWritten = true;
+		}
+	}
+
+	/**
+	 * Writes the row(s) of one sequence. The header is written before the
+	 * first row.
+	 */
+	public void writeRow(
+		AlignedSequence<VirusT> alignedSeq,
+		Map<Gene<VirusT>, GeneDR<VirusT>> geneDRs
+	) throws IOException {
+		String tsv = render(
+			Collections.singletonList(alignedSeq), Collections.singletonList(geneDRs));
+		if (!tsv.startsWith(header)) {
+			throw new IllegalStateException(String.format(
+				"The %s report of one sequence does not start with the report header.",
+				report));
+		}
+		writeHeader();
+		writer.write(tsv, header.length(), tsv.length() - header.length());
+	}
+
+	/**
+	 * Writes the header if no row was written and flushes the writer.
+	 */
+	public void finish() throws IOException {
+		writeHeader();
+		writer.flush();
+	}
+
+}
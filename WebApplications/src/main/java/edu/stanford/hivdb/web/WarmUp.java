@@ -0,0 +1,194 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.graphql.SierraSchema;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.hivfacts.hiv2.HIV2;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.NucAminoAligner;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Eagerly initializes everything the first request would otherwise pay
+ * for: virus models, GraphQL schemas, ASI algorithms and the aligner.
+ * Each virus is also checked with a fixed canary sequence covering every
+ * gene of its strain (warm-up-canaries/&lt;virus&gt;.fasta) through alignment,
+ * genotyping and drug resistance. Static GraphQL responses are precomputed
+ * last.
+ *
+ * A failed warm-up is retried up to WARM_UP_MAX_ATTEMPTS times with an
+ * exponential backoff starting at WARM_UP_BACKOFF_MILLIS before the state
+ * becomes FAILED.
+ */
+public class WarmUp {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	public static enum State {
+		PENDING, RUNNING, READY, FAILED
+	}
+
+	private static final int MAX_ATTEMPTS;
+	private static final long BACKOFF_MILLIS;
+
+	static {
+		String maxAttempts = System.getenv("WARM_UP_MAX_ATTEMPTS");
+		if (maxAttempts == null) {
+			maxAttempts = "5";
+		}
+		String backoff = System.getenv("WARM_UP_BACKOFF_MILLIS");
+		if (backoff == null) {
+			backoff = "2000";
+		}
+		MAX_ATTEMPTS = Math.max(1, Integer.parseInt(maxAttempts));
+		BACKOFF_MILLIS = Long.parseLong(backoff);
+	}
+
+	private static volatile State state = State.PENDING;
+	private static volatile String errorMessage;
+
+	/**
+	 * Starts the warm-up in a background thread. Calls after the first
+	 * one have no effect.
+	 *
+	 * @param graphQLServices services whose static responses are precomputed
+	 */
+	public static synchronized void start(GraphQLService... graphQLServices) {
+		if (state != State.PENDING) {
+			return;
+		}
+		state = State.RUNNING;
+		Thread thread = new Thread(() -> run(graphQLServices), "sierra-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void run(GraphQLService[] graphQLServices) {
+		long startTime = System.currentTimeMillis();
+		long backoff = BACKOFF_MILLIS;
+		for (int attempt = 1; ; attempt ++) {
+			try {
+				warmUpAll(graphQLServices);
+				errorMessage = null;
+				state = State.READY;
+				LOGGER.info(String.format(
+					"Warm-up finished in %d ms", System.currentTimeMillis() - startTime));
+				return;
+			} catch (Throwable e) {
+				errorMessage = e.toString();
+				if (attempt >= MAX_ATTEMPTS) {
+					LOGGER.error(String.format("Warm-up failed after %d attempts", attempt), e);
+					state = State.FAILED;
+					return;
+				}
+				LOGGER.warn(String.format(
+					"Warm-up attempt %d of %d failed, retrying in %d ms",
+					attempt, MAX_ATTEMPTS, backoff), e);
+			}
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				state = State.FAILED;
+				return;
+			}
+			backoff *= 2;
+		}
+	}
+
+	private static void warmUpAll(GraphQLService[] graphQLServices) {
+		warmUp(HIV.getInstance());
+		warmUp(HIV2.getInstance());
+		SierraSchema.schema.getQueryType();
+		SierraSchema.hiv2Schema.getQueryType();
+		for (GraphQLService graphQLService : graphQLServices) {
+			graphQLService.precomputeStaticResponses();
+		}
+	}
+
+	private static Sequence loadCanary(Virus<?> virusIns) {
+		String path = "warm-up-canaries/" + virusIns.getName() + ".fasta";
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		try (InputStream stream = loader.getResourceAsStream(path)) {
+			if (stream == null) {
+				throw new IllegalStateException("Canary sequence " + path + " not found");
+			}
+			return FastaUtils.readStream(stream).get(0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static <VirusT extends Virus<VirusT>> void warmUp(VirusT virusIns) {
+		Collection<DrugResistanceAlgorithm<VirusT>> algorithms = virusIns.getDrugResistAlgorithms();
+		AlignedSequence<VirusT> alignedSeq = (
+			NucAminoAligner.getInstance(virusIns).align(loadCanary(virusIns)));
+		if (alignedSeq.isEmpty()) {
+			throw new IllegalStateException(
+				"Canary sequence of " + virusIns.getName() + " failed to align");
+		}
+		List<String> missingGenes = new ArrayList<>();
+		for (Gene<VirusT> gene : alignedSeq.getStrain().getGenes()) {
+			if (!alignedSeq.getAvailableGenes().contains(gene)) {
+				missingGenes.add(gene.getName());
+			}
+		}
+		if (!missingGenes.isEmpty()) {
+			throw new IllegalStateException(String.format(
+				"Canary sequence of %s did not cover %s",
+				virusIns.getName(), String.join(", ", missingGenes)));
+		}
+		alignedSeq.getGenotypeResult().getBestMatch();
+		GeneDR.newFromAlignedGeneSeqs(
+			alignedSeq.getAlignedGeneSequences(),
+			virusIns.getLatestDrugResistAlgorithm("HIVDB"));
+		LOGGER.info(String.format(
+			"Warmed up %s with %d drug resistance algorithms",
+			virusIns.getName(), algorithms.size()));
+	}
+
+	public static State getState() {
+		return state;
+	}
+
+	public static boolean isReady() {
+		return state == State.READY;
+	}
+
+	public static String getErrorMessage() {
+		return errorMessage;
+	}
+
+}
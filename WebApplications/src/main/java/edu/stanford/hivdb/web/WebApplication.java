@@ -35,13 +35,21 @@ public class WebApplication extends Application {
 
 	public WebApplication(@Context Dispatcher dispatcher) {
 		singletons.add(new HivdbVersionService());
-		singletons.add(new GraphQLService());
-		singletons.add(new HIV2GraphQLService());
+		GraphQLService graphQLService = new GraphQLService();
+		GraphQLService hiv2GraphQLService = new HIV2GraphQLService();
+		singletons.add(graphQLService);
+		singletons.add(hiv2GraphQLService);
+		singletons.add(new AnalysisJobService());
+		singletons.add(new MetricsService());
+		singletons.add(new ReadinessService());
 		classes.add(HIV1SequenceAnalysisService.class);
 		classes.add(HIV2SequenceAnalysisService.class);
 	    CorsFilter corsFilter = new CorsFilter();
 	    corsFilter.getAllowedOrigins().add("*");
 	    singletons.add(corsFilter);
+		// requeues interrupted jobs and starts the periodic purge
+		AnalysisJobQueue.getInstance();
+		WarmUp.start(graphQLService, hiv2GraphQLService);
 	}
 
 	@Override
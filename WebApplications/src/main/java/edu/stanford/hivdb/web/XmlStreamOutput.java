@@ -0,0 +1,485 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.google.common.collect.Lists;
+
+import edu.stanford.hivdb.comments.BoundComment;
+import edu.stanford.hivdb.comments.CommentType;
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.ASIDrugSusc;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.drugs.Drug;
+import edu.stanford.hivdb.drugs.DrugClass;
+import edu.stanford.hivdb.genotypes.BoundGenotype;
+import edu.stanford.hivdb.genotypes.GenotypeResult;
+import edu.stanford.hivdb.mutations.FrameShift;
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.mutations.MutationType;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.CodonUtils;
+import edu.stanford.hivdb.utilities.NumberFormats;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Writes the same sierra.xsd 1.1 document as {@link XmlOutput}, but
+ * incrementally with an XMLStreamWriter instead of building a DOM.
+ *
+ * Usage: {@link #start()}, then {@link #writeResult} for each sequence,
+ * then {@link #finish()}. Elements are indented by four spaces.
+ */
+public class XmlStreamOutput<VirusT extends Virus<VirusT>> {
+	private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+	private static final String INDENT = "    ";
+
+	private final DrugResistanceAlgorithm<VirusT> LATEST_ALG;
+	private final String WEB_SERVICE_VERSION = "2.0";
+	private final String SCHEMA_VERSION = "1.1";
+	private final String SUBMISSION_NAME = "";
+
+	private final Writer writer;
+	private final XMLStreamWriter xml;
+	// one entry per open element; true once it has child elements
+	private final Deque<Boolean> openElements = new ArrayDeque<>();
+
+	public XmlStreamOutput(final VirusT virusIns, final Writer writer) {
+		LATEST_ALG = virusIns.getLatestDrugResistAlgorithm("HIVDB");
+		this.writer = writer;
+		try {
+			xml = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+		} catch (XMLStreamException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes a complete document into a string. Same as
+	 * {@code new XmlOutput<>(...).toString()}.
+	 */
+	public static <VirusT extends Virus<VirusT>> String toString(
+		final VirusT virusIns,
+		final List<AlignedSequence<VirusT>> alignedSequences,
+		final List<Map<Gene<VirusT>, GeneDR<VirusT>>> allResistanceResults
+	) {
+		StringWriter writer = new StringWriter();
+		XmlStreamOutput<VirusT> output = new XmlStreamOutput<>(virusIns, writer);
+		try {
+			output.start();
+			for (int i = 0; i < alignedSequences.size(); i ++) {
+				output.writeResult(alignedSequences.get(i), allResistanceResults.get(i));
+			}
+			output.finish();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return writer.toString();
+	}
+
+	private void newLine() throws XMLStreamException {
+		xml.writeCharacters("\n");
+		for (int i = 0; i < openElements.size(); i ++) {
+			xml.writeCharacters(INDENT);
+		}
+	}
+
+	private void markParent() {
+		if (!openElements.isEmpty()) {
+			openElements.pop();
+			openElements.push(true);
+		}
+	}
+
+	private void startElement(String tag) throws XMLStreamException {
+		markParent();
+		newLine();
+		xml.writeStartElement(tag);
+		openElements.push(false);
+	}
+
+	private void endElement() throws XMLStreamException {
+		boolean hasChildren = openElements.pop();
+		if (hasChildren) {
+			newLine();
+		}
+		xml.writeEndElement();
+	}
+
+	private void simpleElement(String tag, String text) throws XMLStreamException {
+		markParent();
+		newLine();
+		xml.writeStartElement(tag);
+		xml.writeCharacters(text == null ? "" : text);
+		xml.writeEndElement();
+	}
+
+	private void simpleElement(String tag, boolean bool) throws XMLStreamException {
+		simpleElement(tag, "" + bool);
+	}
+
+	private void simpleElement(String tag, int number) throws XMLStreamException {
+		simpleElement(tag, "" + number);
+	}
+
+	/**
+	 * Writes the XML declaration, the root element and the header fields.
+	 */
+	public void start() throws IOException {
+		try {
+			xml.writeStartDocument("UTF-8", "1.0");
+			xml.writeCharacters("\n");
+			xml.writeStartElement("DrugResistance_Interpretation");
+			xml.writeNamespace("xsi", XSI_NAMESPACE);
+			xml.writeAttribute(
+				"xsi", XSI_NAMESPACE, "noNamespaceSchemaLocation",
+				"http://hivdb.stanford.edu/DR/schema/sierra.xsd");
+			openElements.push(false);
+
+			simpleElement("algorithmName", LATEST_ALG.getFamily());
+			simpleElement("algorithmVersion", LATEST_ALG.getVersion());
+			simpleElement("webServiceVersion", WEB_SERVICE_VERSION);
+			simpleElement("schemaVersion", SCHEMA_VERSION);
+			simpleElement("submissionName", SUBMISSION_NAME);
+
+			LocalDate today = LocalDate.now();
+			LocalTime time = LocalTime.now();
+			simpleElement("dateTime", today.toString() + " " + time.toString());
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Closes the root element and flushes the underlying writer.
+	 */
+	public void finish() throws IOException {
+		try {
+			endElement();
+			xml.writeEndDocument();
+			xml.flush();
+			writer.write('\n');
+			writer.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public void writeResult(
+		AlignedSequence<VirusT> alignedSeq,
+		Map<Gene<VirusT>, GeneDR<VirusT>> resistanceResults
+	) throws IOException {
+		try {
+			writeResultElement(alignedSeq, resistanceResults);
+			xml.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void writeInputSequenceElement(Sequence seq) throws XMLStreamException {
+		startElement("inputSequence");
+		simpleElement("md5sum", seq.getMD5());
+		simpleElement("name", seq.getHeader());
+		simpleElement("sequence", seq.getSequence());
+		endElement();
+	}
+
+	private void writeSubtypeElement(GenotypeResult<VirusT> genotypeResult) throws XMLStreamException {
+		BoundGenotype<VirusT> bestMatch = genotypeResult.getBestMatch();
+		startElement("subtype");
+		simpleElement("type", bestMatch.getDisplay());
+		simpleElement(
+			"percentSimilarity",
+			NumberFormats.prettyDecimalAsString(100 - 100 * bestMatch.getDistance()));
+		endElement();
+	}
+
+	private void writeMutationElement(Mutation<VirusT> mut) throws XMLStreamException {
+		MutationType<VirusT> mutType = mut.getPrimaryType();
+		startElement("mutation");
+		simpleElement("classification", mutType.getName());
+
+		String typeText = "mutation";
+		if (mut.isInsertion()) {
+			typeText = "insertion";
+		} else if (mut.isDeletion()) {
+			typeText = "deletion";
+		}
+		simpleElement("type", typeText);
+		simpleElement("mutationString", mut.getHumanFormat());
+		simpleElement("wildType", mut.getReference());
+		simpleElement("position", mut.getPosition());
+		simpleElement("nucleicAcid", mut.getTriplet());
+		simpleElement("translatedNA", mut.getDisplayAAs().split("_")[0]);
+
+		if (mut.isInsertion()) {
+			simpleElement("insertionString", mut.getDisplayAAs());
+			simpleElement("insertionNucleicAcid", mut.getInsertedNAs());
+			simpleElement("insertionTranslatedNA", mut.getDisplayAAs().split("_")[1]);
+		}
+		if (mut.isUnusual()) {
+			simpleElement("atypical", mut.isUnusual());
+		}
+		if (mut.isApobecMutation()) {
+			simpleElement("GAHypermutated", mut.isApobecMutation());
+		}
+		endElement();
+	}
+
+	private void writeFrameShiftElement(FrameShift<VirusT> fs) throws XMLStreamException {
+		startElement("frameshift");
+		simpleElement("position", fs.getPosition());
+		simpleElement("length", fs.getSize());
+		simpleElement("rawAlignBlock", "not available");
+		endElement();
+	}
+
+	private void writeQualityElement(AlignedGeneSeq<VirusT> alignedGeneSeq) throws XMLStreamException {
+		startElement("quality");
+		for (FrameShift<VirusT> fs : alignedGeneSeq.getFrameShifts()) {
+			writeFrameShiftElement(fs);
+		}
+		for (Mutation<VirusT> mut : alignedGeneSeq.getHighlyAmbiguousCodons()) {
+			simpleElement("ambiguous", mut.getPosition());
+		}
+		for (Mutation<VirusT> mut : alignedGeneSeq.getStopCodons()) {
+			simpleElement("stop", mut.getPosition());
+		}
+		MutationSet<VirusT> apobecMuts = alignedGeneSeq.getMutations().getApobecMutations();
+		if (!apobecMuts.isEmpty()) {
+			simpleElement("GAHypermutatedPositions", apobecMuts.join());
+		}
+		endElement();
+	}
+
+	private void writeGeneDataElement(
+		Gene<VirusT> gene, AlignedGeneSeq<VirusT> alignedGeneSeq,
+		GenotypeResult<VirusT> genotypeResult
+	) throws XMLStreamException {
+		startElement("geneData");
+		simpleElement("gene", gene.getName());
+
+		boolean isPresent = alignedGeneSeq != null;
+		simpleElement("present", isPresent);
+		if (!isPresent) {
+			endElement();
+			return;
+		}
+
+		String naSeq = alignedGeneSeq.getAlignedNAs();
+		simpleElement("consensus", gene.getRefSequence());
+		simpleElement("alignedNASequence", naSeq);
+		simpleElement("alignedAASequence", CodonUtils.simpleTranslate(naSeq));
+		simpleElement("firstAA", alignedGeneSeq.getFirstAA());
+		simpleElement("lastAA", alignedGeneSeq.getLastAA());
+		writeSubtypeElement(genotypeResult);
+		for (Mutation<VirusT> mutation : alignedGeneSeq.getMutations()) {
+			writeMutationElement(mutation);
+		}
+		writeQualityElement(alignedGeneSeq);
+		endElement();
+	}
+
+	private void writeSequenceQualityCountsElement(
+		AlignedSequence<VirusT> alignedSeq
+	) throws XMLStreamException {
+		int insCount = 0;
+		int delCount = 0;
+		int abgCount = 0;
+		int stopCount = 0;
+		int fsCount = 0;
+		for (AlignedGeneSeq<VirusT> aligned : alignedSeq.getAlignedGeneSequences()) {
+			insCount += aligned.getInsertions().size();
+			delCount += aligned.getDeletions().size();
+			abgCount += aligned.getHighlyAmbiguousCodons().size();
+			stopCount += aligned.getStopCodons().size();
+			fsCount += aligned.getFrameShifts().size();
+		}
+		startElement("sequenceQualityCounts");
+		simpleElement("insertions", insCount);
+		simpleElement("deletions", delCount);
+		simpleElement("ambiguous", abgCount);
+		simpleElement("stops", stopCount);
+		simpleElement("frameshifts", fsCount);
+		endElement();
+	}
+
+	private void writePartialScore(Collection<Mutation<VirusT>> muts, Double mutScore) throws XMLStreamException {
+		startElement("partialScore");
+		for (Mutation<VirusT> mut : muts) {
+			simpleElement("mutation", mut.getHumanFormat());
+		}
+		simpleElement("score", mutScore.intValue());
+		endElement();
+	}
+
+	private void writeDrugScoreElement(Drug<VirusT> drug, GeneDR<VirusT> geneDR) throws XMLStreamException {
+		ASIDrugSusc<VirusT> drugSusc = geneDR.getDrugSusc(drug);
+		startElement("drugScore");
+		simpleElement("drugCode", drug.getDisplayAbbr());
+		simpleElement("genericName", drug.getFullName().toString());
+		simpleElement("type", drug.getDrugClass().toString());
+		simpleElement("score", drugSusc.getScore().intValue());
+		simpleElement("resistanceLevel", drugSusc.getLevel());
+		simpleElement("resistanceLevelText", drugSusc.getLevelText());
+		simpleElement("threeStepResistanceLevel", drugSusc.getSIR().toString());
+		for (Pair<MutationSet<VirusT>, Double> pair : drugSusc.getParialScorePairs()) {
+			writePartialScore(Lists.newArrayList(pair.getKey()), pair.getValue());
+		}
+		endElement();
+	}
+
+	private void writeScoreCell(String value, String drugClass, String drug) throws XMLStreamException {
+		markParent();
+		newLine();
+		xml.writeEmptyElement("score");
+		xml.writeAttribute("value", value);
+		if (drugClass != null) {
+			xml.writeAttribute("class", drugClass);
+			xml.writeAttribute("drug", drug);
+		}
+	}
+
+	private void writeScoreRowElement(DrugClass<VirusT> drugClass) throws XMLStreamException {
+		startElement("scoreRow");
+		writeScoreCell(drugClass.toString(), null, null);
+		for (Drug<VirusT> drug : drugClass.getDrugs()) {
+			writeScoreCell(drug.getDisplayAbbr(), null, null);
+		}
+		endElement();
+	}
+
+	private void writeScoreRowElement(
+		String title,
+		DrugClass<VirusT> drugClass,
+		Function<Drug<VirusT>, Double> scoreGetter
+	) throws XMLStreamException {
+		startElement("scoreRow");
+		writeScoreCell(title, null, null);
+		for (Drug<VirusT> drug : drugClass.getDrugs()) {
+			writeScoreCell(
+				"" + scoreGetter.apply(drug).intValue(),
+				drugClass.toString(), drug.getDisplayAbbr());
+		}
+		endElement();
+	}
+
+	private void writeScoreTableElement(DrugClass<VirusT> drugClass, GeneDR<VirusT> geneDR) throws XMLStreamException {
+		startElement("scoreTable");
+		writeScoreRowElement(drugClass);
+		Set<MutationSet<VirusT>> scoredMuts = geneDR.getScoredMutations(ds -> ds.drugClassIs(drugClass));
+		for (MutationSet<VirusT> muts : scoredMuts) {
+			writeScoreRowElement(
+				muts.join('+'), drugClass,
+				drug -> geneDR.getDrugSusc(drug).getPartialScore(muts));
+		}
+		writeScoreRowElement(
+			"Total:", drugClass,
+			drug -> geneDR.getDrugSusc(drug).getScore());
+		endElement();
+	}
+
+	private void writeCommentElement(Mutation<VirusT> mut, BoundComment<VirusT> bc) throws XMLStreamException {
+		startElement("comment");
+		simpleElement("gene", mut.getGene().getName());
+		simpleElement("grouping", bc.getType().toString());
+		simpleElement("position", mut.getPosition());
+		simpleElement("commentString", bc.getText());
+		simpleElement("mutationString", mut.getHumanFormat());
+		endElement();
+	}
+
+	private void writeResultElement(
+		AlignedSequence<VirusT> alignedSeq,
+		Map<Gene<VirusT>, GeneDR<VirusT>> resistanceResults
+	) throws XMLStreamException {
+		startElement("result");
+		boolean isSuccess = alignedSeq != null && !alignedSeq.isEmpty();
+		simpleElement("success", isSuccess);
+		writeInputSequenceElement(alignedSeq.getInputSequence());
+
+		if (!isSuccess) {
+			simpleElement(
+				"errorMessage",
+				"There were no Protease, Reverse Transcriptase, or " +
+				"Integrase genes found, refuse to process (sequence " +
+				String.format(
+					"length = %s).", alignedSeq.getInputSequence().getSequence().length()));
+			endElement();
+			return;
+		}
+
+		GenotypeResult<VirusT> genotypeResult = alignedSeq.getGenotypeResult();
+		int numApobec = alignedSeq.getMutations().getApobecMutations().size();
+		simpleElement("GAHypermutated", numApobec > 1);
+
+		for (Gene<VirusT> gene : alignedSeq.getAvailableGenes()) {
+			writeGeneDataElement(gene, alignedSeq.getAlignedGeneSequence(gene), genotypeResult);
+		}
+		writeSequenceQualityCountsElement(alignedSeq);
+
+		for (Map.Entry<Gene<VirusT>, GeneDR<VirusT>> entry : resistanceResults.entrySet()) {
+			for (DrugClass<VirusT> drugClass : entry.getKey().getDrugClasses()) {
+				for (Drug<VirusT> drug : drugClass.getDrugs()) {
+					writeDrugScoreElement(drug, entry.getValue());
+				}
+			}
+		}
+		for (Map.Entry<Gene<VirusT>, GeneDR<VirusT>> entry : resistanceResults.entrySet()) {
+			for (DrugClass<VirusT> drugClass : entry.getKey().getDrugClasses()) {
+				writeScoreTableElement(drugClass, entry.getValue());
+			}
+		}
+		for (GeneDR<VirusT> geneDR : resistanceResults.values()) {
+			for (Map.Entry<CommentType, List<BoundComment<VirusT>>> entry :
+					geneDR.groupCommentsByTypes().entrySet()) {
+				for (BoundComment<VirusT> bc : entry.getValue()) {
+					if (bc.getType() == CommentType.Dosage) {
+						continue;
+					}
+					writeCommentElement(bc.getBoundMutation(), bc);
+				}
+			}
+		}
+		endElement();
+	}
+
+}
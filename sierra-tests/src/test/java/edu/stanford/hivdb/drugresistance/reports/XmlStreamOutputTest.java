@@ -0,0 +1,138 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.drugresistance.reports;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.NucAminoAligner;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.testutils.TestSequencesFiles;
+import edu.stanford.hivdb.testutils.TestSequencesFiles.TestSequencesProperties;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.web.XmlOutput;
+import edu.stanford.hivdb.web.XmlStreamOutput;
+
+public class XmlStreamOutputTest {
+	private List<AlignedSequence<HIV>> alignedSequences;
+	private List<Map<Gene<HIV>, GeneDR<HIV>>> allResistanceResults;
+
+	private static final HIV hiv = HIV.getInstance();
+
+	@Test
+	public void testSameContentAsDomOutput() throws Exception {
+		final InputStream testSequenceInputStream =
+				TestSequencesFiles.getTestSequenceInputStream(TestSequencesProperties.SMALL);
+		runAnalysis(FastaUtils.readStream(testSequenceInputStream));
+		String expected = new XmlOutput<HIV>(hiv, alignedSequences, allResistanceResults).toString();
+		String actual = XmlStreamOutput.toString(hiv, alignedSequences, allResistanceResults);
+		assertEquals(canonicalize(expected), canonicalize(actual));
+	}
+
+	@Test
+	public void testEmptySeq() throws Exception {
+		runAnalysis(Arrays.asList(new Sequence("empty", "EMPTY")));
+		String expected = new XmlOutput<HIV>(hiv, alignedSequences, allResistanceResults).toString();
+		String actual = XmlStreamOutput.toString(hiv, alignedSequences, allResistanceResults);
+		assertTrue(actual.matches("^[\\s\\S]+refuse to process[\\s\\S]+$"));
+		assertEquals(canonicalize(expected), canonicalize(actual));
+	}
+
+	@Test
+	public void testIndentation() {
+		runAnalysis(Arrays.asList(new Sequence("empty", "EMPTY")));
+		String actual = XmlStreamOutput.toString(hiv, alignedSequences, allResistanceResults);
+		assertTrue(actual.contains("\n    <result>\n        <success>false</success>\n"));
+		assertTrue(actual.endsWith("</DrugResistance_Interpretation>\n"));
+	}
+
+	private void runAnalysis(List<Sequence> sequences) {
+		allResistanceResults = new ArrayList<>();
+		alignedSequences = NucAminoAligner.getInstance(hiv).parallelAlign(sequences);
+		for (AlignedSequence<HIV> alignedSeq : alignedSequences) {
+			allResistanceResults.add(
+				GeneDR.newFromAlignedGeneSeqs(
+					alignedSeq.getAlignedGeneSequences(),
+					hiv.getLatestDrugResistAlgorithm("HIVDB")));
+		}
+	}
+
+	/**
+	 * Renders element names, attributes and text content, one element per
+	 * line, ignoring whitespace between elements and the dateTime value.
+	 */
+	private static String canonicalize(String xml) throws Exception {
+		Element root = DocumentBuilderFactory
+			.newInstance()
+			.newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))
+			.getDocumentElement();
+		StringBuilder output = new StringBuilder();
+		canonicalize(root, 0, output);
+		return output.toString();
+	}
+
+	private static void canonicalize(Element elem, int depth, StringBuilder output) {
+		for (int i = 0; i < depth; i ++) {
+			output.append(' ');
+		}
+		output.append(elem.getTagName());
+		NamedNodeMap attrs = elem.getAttributes();
+		for (int i = 0; i < attrs.getLength(); i ++) {
+			Attr attr = (Attr) attrs.item(i);
+			output.append(' ').append(attr.getName()).append("=").append(attr.getValue());
+		}
+		List<Element> children = new ArrayList<>();
+		NodeList nodes = elem.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); i ++) {
+			Node node = nodes.item(i);
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				children.add((Element) node);
+			}
+		}
+		if (children.isEmpty() && !elem.getTagName().equals("dateTime")) {
+			output.append(" [").append(elem.getTextContent()).append(']');
+		}
+		output.append('\n');
+		for (Element child : children) {
+			canonicalize(child, depth + 1, output);
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.testutils.TestSequencesFiles;
+import edu.stanford.hivdb.testutils.TestSequencesFiles.TestSequencesProperties;
+import edu.stanford.hivdb.utilities.FastaUtils;
+
+public class AlignedSequenceCacheTest {
+
+	private final static HIV hiv = HIV.getInstance();
+
+	private static String getTestSequence() {
+		InputStream input = TestSequencesFiles.getTestSequenceInputStream(TestSequencesProperties.SMALL);
+		return FastaUtils.readStream(input).get(0).getSequence();
+	}
+
+	@Test
+	public void testClonesAreAlignedOnce() {
+		String seqText = getTestSequence();
+		Sequence clone1 = new Sequence("clone1", seqText);
+		Sequence clone2 = new Sequence("clone2", seqText);
+		AlignedSequenceCache.invalidateAll();
+
+		long numAligned = AlignedSequenceCache.getNumAligned();
+		List<AlignedSequence<HIV>> alignedSeqs =
+			AlignedSequenceCache.parallelAlign(hiv, Arrays.asList(clone1, clone2));
+		assertEquals(1, AlignedSequenceCache.getNumAligned() - numAligned);
+		assertEquals(2, alignedSeqs.size());
+		assertSame(clone1, alignedSeqs.get(0).getInputSequence());
+		assertSame(clone2, alignedSeqs.get(1).getInputSequence());
+		assertEquals(alignedSeqs.get(0).getMutations(), alignedSeqs.get(1).getMutations());
+
+		// a later request with yet another header is a cache hit
+		Sequence clone3 = new Sequence("clone3", seqText);
+		AlignedSequence<HIV> alignedSeq =
+			AlignedSequenceCache.parallelAlign(hiv, Collections.singletonList(clone3)).get(0);
+		assertEquals(1, AlignedSequenceCache.getNumAligned() - numAligned);
+		assertSame(clone3, alignedSeq.getInputSequence());
+		assertEquals(alignedSeqs.get(0).getMutations(), alignedSeq.getMutations());
+	}
+
+}
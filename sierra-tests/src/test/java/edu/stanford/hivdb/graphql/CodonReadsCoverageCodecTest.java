@@ -0,0 +1,79 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.seqreads.OneCodonReadsCoverage;
+import edu.stanford.hivdb.utilities.Json;
+
+public class CodonReadsCoverageCodecTest {
+
+	private final static HIV hiv = HIV.getInstance();
+
+	private static void assertRoundtrip(List<OneCodonReadsCoverage<HIV>> coverage) {
+		List<OneCodonReadsCoverage<HIV>> decoded = CodonReadsCoverageCodec.decode(
+			hiv, CodonReadsCoverageCodec.encode(coverage));
+		assertEquals(coverage.size(), decoded.size());
+		for (int i = 0; i < coverage.size(); i ++) {
+			OneCodonReadsCoverage<HIV> expected = coverage.get(i);
+			OneCodonReadsCoverage<HIV> actual = decoded.get(i);
+			assertEquals(expected.getGene(), actual.getGene());
+			assertEquals(expected.getPosition(), actual.getPosition());
+			assertEquals(expected.getTotalReads(), actual.getTotalReads());
+			assertEquals(expected.isTrimmed(), actual.isTrimmed());
+		}
+	}
+
+	@Test
+	public void testRoundtrip() {
+		List<OneCodonReadsCoverage<HIV>> coverage = new ArrayList<>();
+		for (String gene : new String[] {"HIV1PR", "HIV1RT", "HIV1IN"}) {
+			for (int pos = 1; pos <= 99; pos ++) {
+				coverage.add(new OneCodonReadsCoverage<>(
+					hiv.getGene(gene), pos, pos * 1000L, pos % 3 == 0));
+			}
+		}
+		// unsorted positions and depths over 32 bits
+		coverage.add(new OneCodonReadsCoverage<>(hiv.getGene("HIV1PR"), 50, 1L << 40, true));
+		coverage.add(new OneCodonReadsCoverage<>(hiv.getGene("HIV1RT"), 1, 0, false));
+		assertRoundtrip(coverage);
+		assertRoundtrip(Collections.emptyList());
+	}
+
+	@Test
+	public void testSmallerThanJson() {
+		List<OneCodonReadsCoverage<HIV>> coverage = new ArrayList<>();
+		for (int pos = 1; pos <= 560; pos ++) {
+			coverage.add(new OneCodonReadsCoverage<>(hiv.getGene("HIV1RT"), pos, 5000 + pos, false));
+		}
+		String json = Json.dumpsUgly(
+			coverage.stream().map(rc -> rc.extMap()).collect(Collectors.toList()));
+		assertTrue(CodonReadsCoverageCodec.encode(coverage).length() * 5 < json.length());
+	}
+
+}
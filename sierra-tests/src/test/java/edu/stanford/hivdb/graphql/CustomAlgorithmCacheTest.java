@@ -0,0 +1,197 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.hivfacts.hiv2.HIV2;
+
+public class CustomAlgorithmCacheTest {
+
+	private final static HIV hiv = HIV.getInstance();
+	private final static HIV2 hiv2 = HIV2.getInstance();
+
+	private static class CountingCompiler implements Supplier<Object> {
+		private final AtomicInteger numCompiled = new AtomicInteger();
+
+		@Override
+		public Object get() {
+			numCompiled.incrementAndGet();
+			return new Object();
+		}
+	}
+
+	@Test
+	public void testDoorkeeper() {
+		CustomAlgorithmCache.Admission<Object> admission = new CustomAlgorithmCache.Admission<>(10, 100, 60);
+		CountingCompiler compiler = new CountingCompiler();
+
+		Object first = admission.get("ALG", hiv, "<xml/>", compiler);
+		assertEquals(0, admission.getSize());
+		assertEquals(1, admission.getNumUncached());
+
+		Object second = admission.get("ALG", hiv, "<xml/>", compiler);
+		assertNotSame(first, second);
+		assertEquals(1, admission.getSize());
+		assertEquals(1, admission.getNumUncached());
+
+		assertSame(second, admission.get("ALG", hiv, "<xml/>", compiler));
+		assertEquals(2, compiler.numCompiled.get());
+		assertEquals(1, admission.getStats().hitCount());
+	}
+
+	@Test
+	public void testKeys() {
+		CustomAlgorithmCache.Admission<Object> admission = new CustomAlgorithmCache.Admission<>(10, 100, 60);
+		CountingCompiler compiler = new CountingCompiler();
+		for (int i = 0; i < 2; i ++) {
+			admission.get("ALG", hiv, "<xml/>", compiler);
+			admission.get("OTHER", hiv, "<xml/>", compiler);
+			admission.get("ALG", hiv2, "<xml/>", compiler);
+			admission.get("ALG", hiv, "<xml />", compiler);
+		}
+		// each name, virus and text is a key on its own
+		assertEquals(4, admission.getSize());
+		assertEquals(4, admission.getNumUncached());
+		assertEquals(8, compiler.numCompiled.get());
+	}
+
+	@Test
+	public void testMaxXmlLength() {
+		CustomAlgorithmCache.Admission<Object> admission = new CustomAlgorithmCache.Admission<>(10, 6, 60);
+		CountingCompiler compiler = new CountingCompiler();
+		for (int i = 0; i < 3; i ++) {
+			admission.get("ALG", hiv, "<long/>", compiler);
+		}
+		assertEquals(0, admission.getSize());
+		assertEquals(3, admission.getNumUncached());
+		assertEquals(3, compiler.numCompiled.get());
+
+		// the limit is inclusive
+		admission.get("ALG", hiv, "<xml/>", compiler);
+		admission.get("ALG", hiv, "<xml/>", compiler);
+		assertEquals(1, admission.getSize());
+	}
+
+	@Test
+	public void testNullXml() {
+		CustomAlgorithmCache.Admission<Object> admission = new CustomAlgorithmCache.Admission<>(10, 100, 60);
+		CountingCompiler compiler = new CountingCompiler();
+		admission.get("ALG", hiv, null, compiler);
+		admission.get("ALG", hiv, null, compiler);
+		assertEquals(0, admission.getSize());
+		assertEquals(2, compiler.numCompiled.get());
+	}
+
+	@Test
+	public void testDisabled() {
+		CustomAlgorithmCache.Admission<Object> admission = new CustomAlgorithmCache.Admission<>(0, 100, 60);
+		CountingCompiler compiler = new CountingCompiler();
+		for (int i = 0; i < 3; i ++) {
+			admission.get("ALG", hiv, "<xml/>", compiler);
+		}
+		assertEquals(0, admission.getSize());
+		assertEquals(3, admission.getNumUncached());
+		assertEquals(3, compiler.numCompiled.get());
+	}
+
+	@Test
+	public void testInvalidateAllResetsDoorkeeper() {
+		CustomAlgorithmCache.Admission<Object> admission = new CustomAlgorithmCache.Admission<>(10, 100, 60);
+		CountingCompiler compiler = new CountingCompiler();
+		admission.get("ALG", hiv, "<xml/>", compiler);
+		admission.get("ALG", hiv, "<xml/>", compiler);
+		admission.invalidateAll();
+		admission.get("ALG", hiv, "<xml/>", compiler);
+		assertEquals(0, admission.getSize());
+		assertEquals(2, admission.getNumUncached());
+	}
+
+	@Test
+	public void testConcurrentMissesShareOneCompilation() throws Exception {
+		CustomAlgorithmCache.Admission<Object> admission = new CustomAlgorithmCache.Admission<>(10, 100, 60);
+		// pass the doorkeeper
+		admission.get("ALG", hiv, "<xml/>", new CountingCompiler());
+
+		int numThreads = 8;
+		AtomicInteger numCompiled = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Supplier<Object> slowCompiler = () -> {
+			numCompiled.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return new Object();
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			@SuppressWarnings("unchecked")
+			Future<Object>[] futures = new Future[numThreads];
+			for (int i = 0; i < numThreads; i ++) {
+				futures[i] = executor.submit(() -> admission.get("ALG", hiv, "<xml/>", slowCompiler));
+			}
+			started.await();
+			// give the other threads time to reach the cache
+			Thread.sleep(100);
+			release.countDown();
+			Object compiled = futures[0].get();
+			for (Future<Object> future : futures) {
+				assertSame(compiled, future.get());
+			}
+			assertEquals(1, numCompiled.get());
+			assertEquals(1, admission.getSize());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCompilationErrorIsNotCached() {
+		CustomAlgorithmCache.Admission<Object> admission = new CustomAlgorithmCache.Admission<>(10, 100, 60);
+		CountingCompiler compiler = new CountingCompiler();
+		admission.get("ALG", hiv, "<bad/>", compiler);
+		try {
+			admission.get("ALG", hiv, "<bad/>", () -> {
+				throw new IllegalArgumentException("invalid ASI XML");
+			});
+			fail("compilation error is rethrown");
+		} catch (IllegalArgumentException e) {
+			assertEquals("invalid ASI XML", e.getMessage());
+		}
+		assertEquals(0, admission.getSize());
+		assertNotNull(admission.get("ALG", hiv, "<bad/>", compiler));
+		assertEquals(1, admission.getSize());
+	}
+
+}
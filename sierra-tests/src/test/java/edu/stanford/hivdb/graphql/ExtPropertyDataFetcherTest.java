@@ -0,0 +1,233 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+import static graphql.Scalars.GraphQLBoolean;
+import static graphql.Scalars.GraphQLInt;
+import static graphql.Scalars.GraphQLString;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.ExtGraphQL.ExtPropertyDataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+import graphql.schema.DataFetchingEnvironmentImpl;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLNonNull;
+import graphql.schema.GraphQLOutputType;
+import graphql.schema.PropertyDataFetcher;
+
+public class ExtPropertyDataFetcherTest {
+
+	/**
+	 * The fetcher before accessors were cached: graphql-java's
+	 * PropertyDataFetcher, then a method named after the property,
+	 * toString() for "text", then a public field.
+	 */
+	private static class ReflectivePropertyDataFetcher<T> extends PropertyDataFetcher<T> {
+
+		private final String propertyName;
+
+		public ReflectivePropertyDataFetcher(String propertyName) {
+			super(propertyName);
+			this.propertyName = propertyName;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T get(DataFetchingEnvironment environment) {
+			T result = super.get(environment);
+			if (result == null) {
+				Object source = environment.getSource();
+				if (source == null) return null;
+				result = (T) getPropertyViaMethod(source, propertyName);
+			}
+			if (result instanceof Set) {
+				result = (T) new ArrayList<>((Set<?>) result);
+			}
+			return result;
+		}
+
+		private static Object getPropertyViaMethod(Object object, String propertyName) {
+			try {
+				Method method = object.getClass().getMethod(propertyName);
+				return method.invoke(object);
+			} catch (NoSuchMethodException e) {
+				if (propertyName.equals("text")) {
+					return getPropertyViaMethod(object, "toString");
+				}
+				return getPropertyViaField(object, propertyName);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private static Object getPropertyViaField(Object object, String propertyName) {
+			try {
+				Field field = object.getClass().getField(propertyName);
+				return field.get(object);
+			} catch (NoSuchFieldException e) {
+				return null;
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public static class Parent {
+		@SuppressWarnings("unused")
+		private String inherited() { return "private parent method"; }
+
+		@SuppressWarnings("unused")
+		private String getInheritedGetter() { return "private parent getter"; }
+	}
+
+	public static class Bean extends Parent {
+		public String publicField = "public field";
+		public String shadowed = "shadowed field";
+		@SuppressWarnings("unused")
+		private String privateField = "private field";
+		private boolean active = true;
+
+		public String getName() { return "getter"; }
+
+		public boolean isActive() { return active; }
+
+		public boolean getEnabled() { return false; }
+
+		public int position() { return 184; }
+
+		public String getShadowed() { return "getter over field"; }
+
+		public String getEmpty() { return null; }
+
+		public String empty() { return "method after null getter"; }
+
+		@SuppressWarnings("unused")
+		private String getHidden() { return "private getter"; }
+
+		@SuppressWarnings("unused")
+		private boolean isSecret() { return true; }
+
+		public Set<String> getTags() {
+			return new LinkedHashSet<>(Arrays.asList("b", "a", "c"));
+		}
+
+		@Override
+		public String toString() { return "M184V"; }
+	}
+
+	private static Object fetch(
+		PropertyDataFetcher<Object> fetcher, Object source, GraphQLOutputType fieldType
+	) throws Exception {
+		DataFetchingEnvironment env = DataFetchingEnvironmentImpl
+			.newDataFetchingEnvironment()
+			.source(source)
+			.fieldType(fieldType)
+			.build();
+		return fetcher.get(env);
+	}
+
+	private static void assertSameAsReflective(
+		String propertyName, Object source, GraphQLOutputType fieldType
+	) throws Exception {
+		Object expected = fetch(new ReflectivePropertyDataFetcher<>(propertyName), source, fieldType);
+		Object actual = fetch(new ExtPropertyDataFetcher<>(propertyName), source, fieldType);
+		assertEquals(propertyName, expected, actual);
+		// the second call is served by the cached accessor
+		assertEquals(propertyName, expected, fetch(new ExtPropertyDataFetcher<>(propertyName), source, fieldType));
+	}
+
+	@Test
+	public void testBeanProperties() throws Exception {
+		Bean bean = new Bean();
+		for (String property : Arrays.asList(
+			"name", "position", "text", "publicField", "shadowed", "empty",
+			"privateField", "hidden", "inheritedGetter", "inherited", "unknown"
+		)) {
+			assertSameAsReflective(property, bean, GraphQLString);
+		}
+		assertSameAsReflective("position", bean, GraphQLInt);
+		assertSameAsReflective("position", bean, GraphQLNonNull.nonNull(GraphQLInt));
+	}
+
+	@Test
+	public void testBooleanProperties() throws Exception {
+		Bean bean = new Bean();
+		for (String property : Arrays.asList("active", "enabled", "secret")) {
+			assertSameAsReflective(property, bean, GraphQLBoolean);
+			assertSameAsReflective(property, bean, GraphQLNonNull.nonNull(GraphQLBoolean));
+			// "is" getters are only used for boolean fields
+			assertSameAsReflective(property, bean, GraphQLString);
+		}
+	}
+
+	@Test
+	public void testSpecifiedSemantics() throws Exception {
+		Bean bean = new Bean();
+		assertEquals("getter", fetch(new ExtPropertyDataFetcher<>("name"), bean, GraphQLString));
+		assertEquals(true, fetch(new ExtPropertyDataFetcher<>("active"), bean, GraphQLBoolean));
+		assertEquals(184, fetch(new ExtPropertyDataFetcher<>("position"), bean, GraphQLInt));
+		assertEquals("M184V", fetch(new ExtPropertyDataFetcher<>("text"), bean, GraphQLString));
+		assertEquals("public field", fetch(new ExtPropertyDataFetcher<>("publicField"), bean, GraphQLString));
+		assertEquals("private getter", fetch(new ExtPropertyDataFetcher<>("hidden"), bean, GraphQLString));
+		assertEquals("private field", fetch(new ExtPropertyDataFetcher<>("privateField"), bean, GraphQLString));
+		assertEquals(
+			Arrays.asList("b", "a", "c"),
+			fetch(new ExtPropertyDataFetcher<>("tags"), bean, GraphQLList.list(GraphQLString)));
+		assertNull(fetch(new ExtPropertyDataFetcher<>("name"), null, GraphQLString));
+	}
+
+	@Test
+	public void testMapSource() throws Exception {
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("name", "value");
+		map.put("tags", new LinkedHashSet<>(Arrays.asList("x", "y")));
+		map.put("nothing", null);
+		for (String property : Arrays.asList("name", "tags", "nothing", "size", "text")) {
+			assertSameAsReflective(property, map, GraphQLString);
+		}
+		assertEquals("value", fetch(new ExtPropertyDataFetcher<>("name"), map, GraphQLString));
+		assertEquals(
+			Arrays.asList("x", "y"),
+			fetch(new ExtPropertyDataFetcher<>("tags"), map, GraphQLList.list(GraphQLString)));
+		assertSameAsReflective("name", Collections.emptyMap(), GraphQLString);
+	}
+
+	@Test
+	public void testNullSource() throws Exception {
+		List<String> properties = Arrays.asList("name", "text", "publicField");
+		for (String property : properties) {
+			assertSameAsReflective(property, null, GraphQLString);
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.comments.BoundComment;
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.ASIDrugSusc;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.drugs.Drug;
+import edu.stanford.hivdb.drugs.DrugClass;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.hivfacts.hiv2.HIV2;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+public class GeneDRLoaderTest {
+
+	private final static HIV hiv = HIV.getInstance();
+	private final static HIV2 hiv2 = HIV2.getInstance();
+
+	/**
+	 * Everything a GeneDR contributes to the resistance output.
+	 */
+	private static <VirusT extends Virus<VirusT>> List<Object> summarize(GeneDR<VirusT> geneDR) {
+		List<Object> summary = new ArrayList<>();
+		summary.add(geneDR.getGene());
+		summary.add(geneDR.getAlgorithm());
+		summary.add(geneDR.getMutations());
+		for (DrugClass<VirusT> drugClass : geneDR.getGene().getDrugClasses()) {
+			for (Drug<VirusT> drug : drugClass.getDrugs()) {
+				ASIDrugSusc<VirusT> drugSusc = geneDR.getDrugSusc(drug);
+				summary.add(Arrays.asList(
+					drug,
+					drugSusc.getScore(),
+					drugSusc.getLevel(),
+					drugSusc.getLevelText(),
+					drugSusc.getSIR(),
+					drugSusc.getPartialScores()));
+			}
+		}
+		for (BoundComment<VirusT> comment : geneDR.getComments()) {
+			summary.add(Arrays.asList(
+				comment.getType(), comment.getText(), comment.getBoundMutation()));
+		}
+		return summary;
+	}
+
+	private static <VirusT extends Virus<VirusT>> Map<Gene<VirusT>, MutationSet<VirusT>> byGene(
+		VirusT virusIns, String... geneMutations
+	) {
+		Map<Gene<VirusT>, MutationSet<VirusT>> mutationsByGene = new LinkedHashMap<>();
+		for (int i = 0; i < geneMutations.length; i += 2) {
+			Gene<VirusT> gene = virusIns.getGene(geneMutations[i]);
+			mutationsByGene.put(gene, MutationSet.parseString(gene, geneMutations[i + 1]));
+		}
+		return mutationsByGene;
+	}
+
+	/**
+	 * Loads all sequences through one RequestContext, as the fields of
+	 * one execution level do, and compares every GeneDR with one evaluated
+	 * on its own.
+	 */
+	private static <VirusT extends Virus<VirusT>> void assertBatchedEqualsUnbatched(
+		VirusT virusIns, List<Map<Gene<VirusT>, MutationSet<VirusT>>> sequences
+	) {
+		RequestContext context = new RequestContext();
+		List<DrugResistanceAlgorithm<VirusT>> algorithms = new ArrayList<>(virusIns.getDrugResistAlgorithms());
+		assertFalse(algorithms.isEmpty());
+		List<CompletableFuture<List<GeneDR<VirusT>>>> futures = new ArrayList<>();
+		for (DrugResistanceAlgorithm<VirusT> algorithm : algorithms) {
+			for (Map<Gene<VirusT>, MutationSet<VirusT>> mutationsByGene : sequences) {
+				futures.add(GeneDRLoader.loadMany(context, virusIns, mutationsByGene, algorithm));
+			}
+		}
+		context.getDataLoaderRegistry().dispatchAll();
+
+		int i = 0;
+		for (DrugResistanceAlgorithm<VirusT> algorithm : algorithms) {
+			for (Map<Gene<VirusT>, MutationSet<VirusT>> mutationsByGene : sequences) {
+				List<GeneDR<VirusT>> batched = futures.get(i ++).join();
+				List<GeneDR<VirusT>> unbatched = GeneDRLoader
+					.loadMany(null, virusIns, mutationsByGene, algorithm).join();
+				assertEquals(mutationsByGene.size(), batched.size());
+				int j = 0;
+				for (Map.Entry<Gene<VirusT>, MutationSet<VirusT>> entry : mutationsByGene.entrySet()) {
+					GeneDR<VirusT> expected = new GeneDR<>(entry.getKey(), entry.getValue(), algorithm);
+					String message = algorithm.getName() + " " + entry.getValue();
+					assertEquals(message, summarize(expected), summarize(batched.get(j)));
+					assertEquals(message, summarize(expected), summarize(unbatched.get(j)));
+					j ++;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testHIV1() {
+		assertBatchedEqualsUnbatched(hiv, Arrays.asList(
+			byGene(
+				hiv,
+				"HIV1PR", "PR90M",
+				"HIV1RT", "RT65R, RT184V",
+				"HIV1IN", "IN155H"),
+			// same RT mutations as the first sequence
+			byGene(
+				hiv,
+				"HIV1PR", "PR46IL, PR84V",
+				"HIV1RT", "RT65R, RT184V"),
+			byGene(
+				hiv,
+				"HIV1RT", "RT41L, RT67N, RT70R, RT103N, RT181C, RT184IV, RT215F, RT219Q",
+				"HIV1IN", "IN140S, IN148H"),
+			byGene(
+				hiv,
+				"HIV1PR", "",
+				"HIV1RT", "RT69T_TT, RT101E, RT138D",
+				"HIV1IN", "")));
+	}
+
+	@Test
+	public void testHIV2() {
+		assertBatchedEqualsUnbatched(hiv2, Arrays.asList(
+			byGene(
+				hiv2,
+				"HIV2APR", "PR90M",
+				"HIV2ART", "RT65R, RT184V",
+				"HIV2AIN", "IN155H"),
+			byGene(
+				hiv2,
+				"HIV2ART", "RT65R, RT184V",
+				"HIV2AIN", "IN140S, IN148R"),
+			byGene(
+				hiv2,
+				"HIV2APR", "",
+				"HIV2ART", "RT70N, RT151M")));
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	private static final long MS = 1000000;
+
+	private static String writeSamples(LatencyHistogram histogram, String labels) {
+		StringBuilder output = new StringBuilder();
+		histogram.writeSamples(output, "test_seconds", labels);
+		return output.toString();
+	}
+
+	private static double getValue(String text, String series) {
+		for (String line : text.split("\n")) {
+			if (line.startsWith(series + " ")) {
+				return Double.parseDouble(line.substring(series.length() + 1));
+			}
+		}
+		throw new AssertionError("missing series " + series);
+	}
+
+	@Test
+	public void testBucketBoundsAreInclusive() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(0);
+		histogram.record(MS / 2);  // on the first bound
+		histogram.record(MS / 2 + 1);
+		histogram.record(3 * MS);
+		histogram.record(200000 * MS);  // above the largest bound
+		assertEquals(5, histogram.getCount());
+
+		String text = writeSamples(histogram, "");
+		assertEquals(2, getValue(text, "test_seconds_bucket{le=\"0.0005\"}"), 0);
+		assertEquals(3, getValue(text, "test_seconds_bucket{le=\"0.001\"}"), 0);
+		assertEquals(3, getValue(text, "test_seconds_bucket{le=\"0.0025\"}"), 0);
+		assertEquals(4, getValue(text, "test_seconds_bucket{le=\"0.005\"}"), 0);
+		assertEquals(4, getValue(text, "test_seconds_bucket{le=\"100.0\"}"), 0);
+		assertEquals(5, getValue(text, "test_seconds_bucket{le=\"+Inf\"}"), 0);
+		assertEquals(5, getValue(text, "test_seconds_count"), 0);
+		assertEquals(200.004000001, getValue(text, "test_seconds_sum"), 1e-9);
+	}
+
+	@Test
+	public void testBucketsAreCumulative() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long nanos = 1; nanos < 1000000 * MS; nanos *= 3) {
+			histogram.record(nanos);
+		}
+		List<Double> counts = new ArrayList<>();
+		for (String line : writeSamples(histogram, "").split("\n")) {
+			if (line.startsWith("test_seconds_bucket{")) {
+				counts.add(Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1)));
+			}
+		}
+		// 17 bounds and +Inf
+		assertEquals(18, counts.size());
+		for (int i = 1; i < counts.size(); i ++) {
+			assertTrue(counts.get(i) >= counts.get(i - 1));
+		}
+		assertEquals(histogram.getCount(), counts.get(counts.size() - 1), 0);
+	}
+
+	@Test
+	public void testLabels() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.recordSince(System.nanoTime());
+		String text = writeSamples(histogram, "lane=\"bulk\"");
+		assertEquals(1, getValue(text, "test_seconds_bucket{lane=\"bulk\",le=\"+Inf\"}"), 0);
+		assertEquals(1, getValue(text, "test_seconds_count{lane=\"bulk\"}"), 0);
+		assertTrue(getValue(text, "test_seconds_sum{lane=\"bulk\"}") >= 0);
+		assertFalse(text.contains("test_seconds_count "));
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.hivfacts.hiv2.HIV2;
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+
+public class MutationPrevalenceDefTest {
+
+	private final static HIV hiv = HIV.getInstance();
+	private final static HIV2 hiv2 = HIV2.getInstance();
+
+	// mixtures, insertions, deletions and stop codons
+	private final static MutationSet<HIV> MUTATIONS = MutationSet.parseString(
+		hiv,
+		"PR:10FIV, PR:46IL, PR:84V, PR:90M, " +
+		"RT:41L, RT:65R, RT:67-, RT:69_SS, RT:88*, RT:103NS, " +
+		"RT:184IV, RT:215Y, RT:230I, " +
+		"IN:140S, IN:148HKR, IN:155H");
+
+	private final static MutationSet<HIV> MORE_MUTATIONS = MutationSet.parseString(
+		hiv,
+		"PR:46IL, PR:54V, PR:82A, RT:65R, RT:103N, RT:181C, RT:184V, IN:92Q, IN:155H");
+
+	/**
+	 * The grouping and split of getPrevalences() replaced by the index.
+	 */
+	private static List<Map<String, Object>> getUnindexed(MutationSet<?> mutations) {
+		return mutations.getPrevalences()
+			.entrySet()
+			.stream()
+			.map(e -> {
+				Mutation<?> mainMut = e.getKey();
+				Map<Mutation<?>, Map<String, Object>> allResults = (
+					e.getValue()
+					.stream()
+					.collect(Collectors.groupingBy(mp -> mp.getMutation()))
+					.entrySet().stream()
+					.collect(Collectors.toMap(
+						f -> f.getKey(),
+						f -> {
+							Map<String, Object> r = new HashMap<>();
+							r.put("AA", f.getKey().getDisplayAAs());
+							r.put("subtypes", f.getValue());
+							return r;
+						}
+					))
+				);
+				List<Map<String, Object>> mainResults = new ArrayList<>();
+				for (Mutation<?> singleAA : mainMut.split()) {
+					Map<String, Object> r = allResults.remove(singleAA);
+					if (r == null) {
+						r = new HashMap<>();
+						r.put("AA", singleAA.getAAs());
+						r.put("subtypes", Collections.emptyList());
+					}
+					mainResults.add(r);
+				}
+				Map<String, Object> ret = new HashMap<>();
+				ret.put("boundMutation", mainMut);
+				ret.put("matched", mainResults);
+				ret.put("others", new ArrayList<>(allResults.values()));
+				return ret;
+			})
+			.collect(Collectors.toList());
+	}
+
+	private static Map<Object, Map<String, Object>> byBoundMutation(List<Map<String, Object>> results) {
+		Map<Object, Map<String, Object>> byMut = new LinkedHashMap<>();
+		for (Map<String, Object> result : results) {
+			assertNull(byMut.put(result.get("boundMutation"), result));
+		}
+		return byMut;
+	}
+
+	private static void assertSameAsUnindexed(MutationSet<?> mutations) {
+		List<Map<String, Object>> results = MutationPrevalenceDef.getBoundMutationPrevalenceList(mutations);
+		assertEquals(byBoundMutation(getUnindexed(mutations)), byBoundMutation(results));
+
+		// results follow the order of the input, without the mutations
+		// getPrevalences() leaves out
+		List<Object> order = new ArrayList<>();
+		for (Mutation<?> mut : mutations) {
+			if (mutations.getPrevalences().containsKey(mut)) {
+				order.add(mut);
+			}
+		}
+		assertEquals(
+			order,
+			results.stream().map(r -> r.get("boundMutation")).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testCacheMisses() {
+		MutationPrevalenceDef.invalidatePrevalenceIndex();
+		assertSameAsUnindexed(MUTATIONS);
+	}
+
+	@Test
+	public void testCacheHits() {
+		MutationPrevalenceDef.invalidatePrevalenceIndex();
+		MutationPrevalenceDef.getBoundMutationPrevalenceList(MUTATIONS);
+		assertSameAsUnindexed(MUTATIONS);
+	}
+
+	@Test
+	public void testPartialCacheHits() {
+		MutationPrevalenceDef.invalidatePrevalenceIndex();
+		MutationPrevalenceDef.getBoundMutationPrevalenceList(MUTATIONS);
+		assertSameAsUnindexed(MORE_MUTATIONS);
+		assertSameAsUnindexed(MUTATIONS.mergesWith(MORE_MUTATIONS));
+	}
+
+	@Test
+	public void testHIV2() {
+		MutationPrevalenceDef.invalidatePrevalenceIndex();
+		MutationSet<HIV2> mutations = MutationSet.parseString(
+			hiv2.getGene("HIV2ART"), "RT65R, RT70N, RT151M, RT184IV");
+		assertSameAsUnindexed(mutations);
+		assertSameAsUnindexed(mutations);
+	}
+
+	@Test
+	public void testEmpty() {
+		assertTrue(MutationPrevalenceDef.getBoundMutationPrevalenceList(new MutationSet<HIV>()).isEmpty());
+	}
+
+	@Test
+	public void testSharedListsAreUnmodifiable() {
+		MutationSet<HIV> mutations = MutationSet.parseString(hiv, "RT:184IV");
+		Map<String, Object> first = MutationPrevalenceDef.getBoundMutationPrevalenceList(mutations).get(0);
+		Map<String, Object> second = MutationPrevalenceDef.getBoundMutationPrevalenceList(mutations).get(0);
+		// every request gets its own record around the shared lists
+		assertNotSame(first, second);
+		assertSame(first.get("matched"), second.get("matched"));
+		assertSame(first.get("others"), second.get("others"));
+
+		@SuppressWarnings("unchecked")
+		List<Map<String, Object>> matched = (List<Map<String, Object>>) first.get("matched");
+		assertEquals(2, matched.size());
+		try {
+			matched.clear();
+			fail("matched list is shared by all requests");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			matched.get(0).put("AA", "X");
+			fail("records are shared by all requests");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			((List<?>) matched.get(0).get("subtypes")).clear();
+			fail("subtypes are shared by all requests");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.MutationSetDef.CompiledFilter;
+import edu.stanford.hivdb.graphql.MutationSetDef.mutsFilterOption;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+
+public class MutationSetDefTest {
+
+	private final static HIV hiv = HIV.getInstance();
+
+	// mixtures of APOBEC, DRM and unusual amino acids are split by
+	// APOBEC, APOBEC_DRM and UNUSUAL
+	private final static MutationSet<HIV> MUTATIONS = MutationSet.parseString(
+		hiv,
+		"PR:30N, PR:46IL, PR:48E, PR:73S, PR:84V, PR:90M, " +
+		"RT:41L, RT:65R, RT:67-, RT:88*, RT:103N, RT:138AK, " +
+		"RT:184IV, RT:190ER, RT:215Y, RT:230I, " +
+		"IN:66K, IN:118R, IN:138K, IN:140S, IN:155H, IN:263K");
+
+	private final static List<String> CUSTOM_LIST = Arrays.asList(
+		"RT:103N", "RT:184V", "IN:155H", "PR:46I");
+
+	/**
+	 * The option-by-option MutationSet operations replaced by
+	 * CompiledFilter, with DRP no longer falling through into notDRM.
+	 */
+	private static MutationSet<HIV> applyChained(List<mutsFilterOption> options) {
+		MutationSet<HIV> mutations = MUTATIONS;
+		for (mutsFilterOption option : options) {
+			switch (option) {
+			case APOBEC:
+				mutations = mutations.getApobecMutations();
+				break;
+			case APOBEC_DRM:
+				mutations = mutations.getApobecDRMs();
+				break;
+			case DRM:
+				mutations = mutations.getDRMs();
+				break;
+			case DRP:
+				mutations = mutations.getAtDRPMutations();
+				break;
+			case notDRM:
+				mutations = mutations.subtractsBy(mutations.getDRMs());
+				break;
+			case PI_DRM:
+				mutations = mutations.getDRMs(hiv.getDrugClass("PI"));
+				break;
+			case NRTI_DRM:
+				mutations = mutations.getDRMs(hiv.getDrugClass("NRTI"));
+				break;
+			case NNRTI_DRM:
+				mutations = mutations.getDRMs(hiv.getDrugClass("NNRTI"));
+				break;
+			case INSTI_DRM:
+				mutations = mutations.getDRMs(hiv.getDrugClass("INSTI"));
+				break;
+			case SDRM:
+				mutations = mutations.getSDRMs();
+				break;
+			case notSDRM:
+				mutations = mutations.subtractsBy(mutations.getSDRMs());
+				break;
+			case PI_SDRM:
+				mutations = mutations.getSDRMs(hiv.getDrugClass("PI"));
+				break;
+			case NRTI_SDRM:
+				mutations = mutations.getSDRMs(hiv.getDrugClass("NRTI"));
+				break;
+			case NNRTI_SDRM:
+				mutations = mutations.getSDRMs(hiv.getDrugClass("NNRTI"));
+				break;
+			case INSTI_SDRM:
+				mutations = mutations.getSDRMs(hiv.getDrugClass("INSTI"));
+				break;
+			case TSM:
+				mutations = mutations.getTSMs();
+				break;
+			case notTSM:
+				mutations = mutations.subtractsBy(mutations.getTSMs());
+				break;
+			case PI_TSM:
+				mutations = mutations.getTSMs(hiv.getDrugClass("PI"));
+				break;
+			case NRTI_TSM:
+				mutations = mutations.getTSMs(hiv.getDrugClass("NRTI"));
+				break;
+			case NNRTI_TSM:
+				mutations = mutations.getTSMs(hiv.getDrugClass("NNRTI"));
+				break;
+			case INSTI_TSM:
+				mutations = mutations.getTSMs(hiv.getDrugClass("INSTI"));
+				break;
+			case GENE_PR:
+				mutations = mutations.getGeneMutations(hiv.getGene("HIV1PR"));
+				break;
+			case GENE_RT:
+				mutations = mutations.getGeneMutations(hiv.getGene("HIV1RT"));
+				break;
+			case GENE_IN:
+				mutations = mutations.getGeneMutations(hiv.getGene("HIV1IN"));
+				break;
+			case TYPE_MAJOR:
+				mutations = mutations.getByMutType(hiv.getMutationType("Major"));
+				break;
+			case TYPE_ACCESSORY:
+				mutations = mutations.getByMutType(hiv.getMutationType("Accessory"));
+				break;
+			case TYPE_NRTI:
+				mutations = mutations.getByMutType(hiv.getMutationType("NRTI"));
+				break;
+			case TYPE_NNRTI:
+				mutations = mutations.getByMutType(hiv.getMutationType("NNRTI"));
+				break;
+			case TYPE_OTHER:
+				mutations = mutations.getByMutType(hiv.getMutationType("Other"));
+				break;
+			case DELETION:
+				mutations = mutations.getDeletions();
+				break;
+			case INSERTION:
+				mutations = mutations.getInsertions();
+				break;
+			case UNUSUAL:
+				mutations = mutations.getUnusualMutations();
+				break;
+			case AMBIGUOUS:
+				mutations = mutations.getAmbiguousCodons();
+				break;
+			case STOPCODON:
+				mutations = mutations.getStopCodons();
+				break;
+			case CUSTOMLIST:
+				mutations = mutations.intersectsWith(hiv.newMutationSet(null, CUSTOM_LIST));
+				break;
+			}
+		}
+		return mutations;
+	}
+
+	private static MutationSet<HIV> applyCompiled(List<mutsFilterOption> options) {
+		return CompiledFilter.get(hiv, options).apply(MUTATIONS, null, CUSTOM_LIST);
+	}
+
+	private static List<mutsFilterOption> getClassifications() {
+		List<mutsFilterOption> options = new ArrayList<>(Arrays.asList(mutsFilterOption.values()));
+		options.remove(mutsFilterOption.CUSTOMLIST);
+		return options;
+	}
+
+	@Test
+	public void testEveryOption() {
+		for (mutsFilterOption option : mutsFilterOption.values()) {
+			List<mutsFilterOption> options = Collections.singletonList(option);
+			assertEquals(option.name(), applyChained(options), applyCompiled(options));
+		}
+	}
+
+	@Test
+	public void testEveryPairOfOptions() {
+		for (mutsFilterOption first : getClassifications()) {
+			for (mutsFilterOption second : getClassifications()) {
+				List<mutsFilterOption> options = Arrays.asList(first, second);
+				assertEquals(options.toString(), applyChained(options), applyCompiled(options));
+			}
+		}
+	}
+
+	@Test
+	public void testCustomListIsIntersectedLast() {
+		for (mutsFilterOption option : getClassifications()) {
+			List<mutsFilterOption> options = Arrays.asList(option, mutsFilterOption.CUSTOMLIST);
+			assertEquals(options.toString(), applyChained(options), applyCompiled(options));
+		}
+	}
+
+	@Test
+	public void testMixturesAreSplitPerAminoAcid() {
+		MutationSet<HIV> apobecDRMs = applyCompiled(Collections.singletonList(mutsFilterOption.APOBEC_DRM));
+		Mutation<HIV> m184i = hiv.parseMutationString("RT184I");
+		assertTrue(apobecDRMs.contains(m184i));
+		assertFalse(MUTATIONS.contains(m184i));
+		for (Mutation<HIV> mut : apobecDRMs) {
+			assertEquals(1, mut.getAAs().length());
+		}
+		// options after the split are tested on each amino acid
+		List<mutsFilterOption> options = Arrays.asList(
+			mutsFilterOption.APOBEC, mutsFilterOption.DRM, mutsFilterOption.notSDRM);
+		assertEquals(applyChained(options), applyCompiled(options));
+	}
+
+	@Test
+	public void testDRPIncludesDRMs() {
+		MutationSet<HIV> drps = applyCompiled(Collections.singletonList(mutsFilterOption.DRP));
+		MutationSet<HIV> drms = applyCompiled(Collections.singletonList(mutsFilterOption.DRM));
+		assertFalse(drms.isEmpty());
+		for (Mutation<HIV> drm : drms) {
+			assertTrue(drm.toString(), drps.contains(drm));
+		}
+		// DRP used to fall through into notDRM; DRP + notDRM gives the old result
+		MutationSet<HIV> atDRPs = MUTATIONS.getAtDRPMutations();
+		assertEquals(
+			atDRPs.subtractsBy(atDRPs.getDRMs()),
+			applyCompiled(Arrays.asList(mutsFilterOption.DRP, mutsFilterOption.notDRM)));
+	}
+
+}
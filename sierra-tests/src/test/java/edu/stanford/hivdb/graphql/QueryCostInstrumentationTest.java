@@ -0,0 +1,155 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLEnumType;
+
+public class QueryCostInstrumentationTest {
+
+	private static final String SEQUENCE_QUERY =
+		"query ($sequences: [UnalignedSequenceInput]) {\n" +
+		"  sequenceAnalysis(sequences: $sequences) {\n" +
+		"    inputSequence { header }\n" +
+		"    drugResistance { gene { name } }\n" +
+		"  }\n" +
+		"}";
+
+	private static Map<String, Object> makeVariables(int numSequences) {
+		List<Map<String, String>> sequences = new ArrayList<>();
+		for (int i = 0; i < numSequences; i ++) {
+			Map<String, String> seqMap = new LinkedHashMap<>();
+			seqMap.put("header", "seq" + i);
+			seqMap.put("sequence", "ACGT");
+			sequences.add(seqMap);
+		}
+		return Collections.singletonMap("sequences", sequences);
+	}
+
+	private static long calculate(String query, Map<String, Object> variables) {
+		return QueryCostInstrumentation.calculate(
+			SierraSchema.schema, new Parser().parseDocument(query), null, variables);
+	}
+
+	@Test
+	public void testCalculate() {
+		assertEquals(1, calculate("{ currentVersion { text display } }", Collections.emptyMap()));
+		// (alignment 100 + inputSequence 1 + drugResistance 20 + gene 1) per sequence
+		assertEquals(122 * 3, calculate(SEQUENCE_QUERY, makeVariables(3)));
+		assertEquals(0, calculate(SEQUENCE_QUERY, makeVariables(0)));
+	}
+
+	@Test
+	public void testAliasesAndAlgorithmsAreCounted() {
+		String query =
+			"query ($sequences: [UnalignedSequenceInput], $algs: [CustomASIAlgorithm]) {\n" +
+			"  sequenceAnalysis(sequences: $sequences) {\n" +
+			"    a: algorithmComparison(customAlgorithms: $algs) { drugClass { name } }\n" +
+			"    b: algorithmComparison(customAlgorithms: $algs) { drugClass { name } }\n" +
+			"  }\n" +
+			"}";
+		Map<String, Object> variables = new LinkedHashMap<>(makeVariables(2));
+		List<Map<String, String>> algs = new ArrayList<>();
+		for (String name : new String[] {"ALG1", "ALG2"}) {
+			Map<String, String> alg = new LinkedHashMap<>();
+			alg.put("name", name);
+			alg.put("xml", "<ALGORITHM/>");
+			algs.add(alg);
+		}
+		variables.put("algs", algs);
+		// (alignment 100 + 2 * (2 custom algorithms * 220 + drugClass 1)) per sequence
+		assertEquals(982 * 2, calculate(query, variables));
+	}
+
+	@Test
+	public void testRejectOverBudget() {
+		GraphQL gql = GraphQL
+			.newGraphQL(SierraSchema.schema)
+			.instrumentation(new QueryCostInstrumentation(1000))
+			.build();
+		ExecutionResult result = gql.execute(
+			ExecutionInput.newExecutionInput()
+			.query(SEQUENCE_QUERY)
+			.variables(makeVariables(10))
+			.build());
+		assertEquals(1, result.getErrors().size());
+		assertTrue(result.getErrors().get(0).getMessage().contains("exceeds the budget 1000"));
+	}
+
+	@Test
+	public void testRejectAlgorithmHeavyQueryByDefault() {
+		StringBuilder query = new StringBuilder(
+			"query ($sequences: [UnalignedSequenceInput], $algs: [ASIAlgorithm],\n" +
+			"       $customAlgs: [CustomASIAlgorithm]) {\n" +
+			"  sequenceAnalysis(sequences: $sequences) {\n" +
+			"    algorithmComparison(algorithms: $algs, customAlgorithms: $customAlgs) {\n" +
+			"      drugClass { name }\n" +
+			"    }\n");
+		for (int i = 0; i < 10; i ++) {
+			query.append("    m").append(i).append(": mutations(filterOptions: [APOBEC, DRM]) { text }\n");
+		}
+		query.append("  }\n}");
+
+		Map<String, Object> variables = new LinkedHashMap<>(makeVariables(120));
+		GraphQLEnumType algEnum = (GraphQLEnumType) SierraSchema.schema.getType("ASIAlgorithm");
+		List<String> algs = new ArrayList<>();
+		for (int i = 0; i < 15; i ++) {
+			algs.add(algEnum.getValues().get(i % algEnum.getValues().size()).getName());
+		}
+		variables.put("algs", algs);
+		List<Map<String, String>> customAlgs = new ArrayList<>();
+		for (int i = 0; i < 5; i ++) {
+			Map<String, String> alg = new LinkedHashMap<>();
+			alg.put("name", "ALG" + i);
+			alg.put("xml", "<ALGORITHM/>");
+			customAlgs.add(alg);
+		}
+		variables.put("customAlgs", customAlgs);
+
+		// (alignment 100 + (15 * 20 + 5 * 220 + drugClass 1) +
+		//  10 aliased mutation sets * (1 + 2 filter options * 5)) per sequence
+		assertEquals(1611 * 120, calculate(query.toString(), variables));
+
+		GraphQL gql = GraphQL
+			.newGraphQL(SierraSchema.schema)
+			.instrumentation(new QueryCostInstrumentation())
+			.build();
+		ExecutionResult result = gql.execute(
+			ExecutionInput.newExecutionInput()
+			.query(query.toString())
+			.variables(variables)
+			.build());
+		assertEquals(1, result.getErrors().size());
+		assertTrue(result.getErrors().get(0).getMessage().contains("exceeds the budget"));
+	}
+
+}
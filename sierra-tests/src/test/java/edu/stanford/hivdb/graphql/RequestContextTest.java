@@ -0,0 +1,241 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.utilities.Json;
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+
+public class RequestContextTest {
+
+	private final static HIV hiv = HIV.getInstance();
+	private final static DrugResistanceAlgorithm<HIV> LATEST = hiv.getLatestDrugResistAlgorithm("HIVDB");
+	private final static DrugResistanceAlgorithm<HIV> PREVIOUS = hiv.getDrugResistAlgorithm("HIVDB_8.9");
+
+	private final static String MUTATIONS = (
+		"[\"PR:90M\", \"RT:65R\", \"RT:103N\", \"RT:184V\", \"IN:155H\"]");
+
+	private final static String DRUG_RESISTANCE_FIELDS = (
+		"{ algorithm { text version } gene { name } drugScores { drug { name } score text } }");
+
+	private final static String ALGORITHM_COMPARISON_FIELDS = (
+		"{ drugClass { name } drugScores { drug { name } algorithm SIR interpretation } }");
+
+	private static Map<String, Object> execute(String query, Object context) {
+		ExecutionInput.Builder input = ExecutionInput.newExecutionInput().query(query);
+		if (context instanceof RequestContext) {
+			input = input
+				.context(context)
+				.dataLoaderRegistry(((RequestContext) context).getDataLoaderRegistry());
+		}
+		ExecutionResult result = GraphQL.newGraphQL(SierraSchema.schema).build().execute(input.build());
+		assertTrue(
+			"Found errors in query: " + Json.dumps(result.getErrors()),
+			result.getErrors().isEmpty());
+		return result.getData();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> mutationsAnalysis(String fields, Object context) {
+		return (Map<String, Object>) execute(
+			"{ mutationsAnalysis(mutations: " + MUTATIONS + ") { " + fields + " } }",
+			context).get("mutationsAnalysis");
+	}
+
+	@Test
+	public void testMemoizeComputesOnce() {
+		RequestContext context = new RequestContext();
+		AtomicInteger numComputed = new AtomicInteger();
+		Object source = new Object();
+		List<Object> first = context.memoize(
+			source, Arrays.asList("drugResistance", null, LATEST),
+			() -> { numComputed.incrementAndGet(); return new ArrayList<>(); });
+		List<Object> second = context.memoize(
+			source, Arrays.asList("drugResistance", null, LATEST),
+			() -> { numComputed.incrementAndGet(); return new ArrayList<>(); });
+		assertSame(first, second);
+		assertEquals(1, numComputed.get());
+		assertEquals(1, context.getMemoSize());
+	}
+
+	@Test
+	public void testMemoizeDoesNotMixAlgorithms() {
+		RequestContext context = new RequestContext();
+		Object source = new Object();
+		for (int i = 0; i < 2; i ++) {
+			assertEquals(LATEST, context.memoize(
+				source, Arrays.asList("drugResistance", null, LATEST), () -> LATEST));
+			assertEquals(PREVIOUS, context.memoize(
+				source, Arrays.asList("drugResistance", null, PREVIOUS), () -> PREVIOUS));
+			assertEquals("comparison", context.memoize(
+				source, Arrays.asList("algorithmComparison", Arrays.asList(LATEST.getName()), null),
+				() -> "comparison"));
+		}
+		assertEquals(3, context.getMemoSize());
+	}
+
+	@Test
+	public void testMemoizeComparesSourcesByIdentity() {
+		RequestContext context = new RequestContext();
+		AtomicInteger numComputed = new AtomicInteger();
+		List<String> source = Arrays.asList("RT:184V");
+		List<String> equalSource = new ArrayList<>(source);
+		context.memoize(source, Arrays.asList("key"), numComputed::incrementAndGet);
+		context.memoize(equalSource, Arrays.asList("key"), numComputed::incrementAndGet);
+		assertEquals(2, numComputed.get());
+	}
+
+	@Test
+	public void testMemoizeIsPerRequest() {
+		Object source = new Object();
+		assertEquals(
+			"first",
+			new RequestContext().memoize(source, Arrays.asList("key"), () -> "first"));
+		assertEquals(
+			"second",
+			new RequestContext().memoize(source, Arrays.asList("key"), () -> "second"));
+	}
+
+	@Test
+	public void testMemoizeSharesErrors() {
+		RequestContext context = new RequestContext();
+		AtomicInteger numComputed = new AtomicInteger();
+		Object source = new Object();
+		for (int i = 0; i < 2; i ++) {
+			try {
+				context.memoize(source, Arrays.asList("key"), () -> {
+					numComputed.incrementAndGet();
+					throw new IllegalStateException("failed");
+				});
+				fail("error is rethrown");
+			} catch (IllegalStateException e) {
+				assertEquals("failed", e.getMessage());
+			}
+		}
+		assertEquals(1, numComputed.get());
+	}
+
+	@Test
+	public void testConcurrentCallersWaitForFirst() throws Exception {
+		RequestContext context = new RequestContext();
+		AtomicInteger numComputed = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Object source = new Object();
+		int numThreads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<Object>> futures = new ArrayList<>();
+			for (int i = 0; i < numThreads; i ++) {
+				futures.add(executor.submit(() -> context.memoize(source, Arrays.asList("key"), () -> {
+					numComputed.incrementAndGet();
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					return new Object();
+				})));
+			}
+			started.await();
+			release.countDown();
+			Object result = futures.get(0).get();
+			for (Future<Object> future : futures) {
+				assertSame(result, future.get());
+			}
+			assertEquals(1, numComputed.get());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRepeatedAlgorithmComparisonComputesOnce() {
+		String latest = LATEST.getEnumCompatName();
+		String previous = PREVIOUS.getEnumCompatName();
+		RequestContext context = new RequestContext();
+		Map<String, Object> result = mutationsAnalysis(
+			"a: algorithmComparison(algorithms: [" + latest + "]) " + ALGORITHM_COMPARISON_FIELDS +
+			"b: algorithmComparison(algorithms: [" + latest + "]) " + ALGORITHM_COMPARISON_FIELDS +
+			"c: algorithmComparison(algorithms: [" + previous + "]) " + ALGORITHM_COMPARISON_FIELDS +
+			"d: algorithmComparison(algorithms: [" + latest + ", " + previous + "]) " +
+			ALGORITHM_COMPARISON_FIELDS,
+			context);
+		// a and b share one computation
+		assertEquals(3, context.getMemoSize());
+
+		assertEquals(result.get("a"), result.get("b"));
+		assertEquals(
+			mutationsAnalysis("algorithmComparison(algorithms: [" + latest + "]) " + ALGORITHM_COMPARISON_FIELDS, null)
+			.get("algorithmComparison"),
+			result.get("a"));
+		assertEquals(
+			mutationsAnalysis("algorithmComparison(algorithms: [" + previous + "]) " + ALGORITHM_COMPARISON_FIELDS, null)
+			.get("algorithmComparison"),
+			result.get("c"));
+		assertEquals(
+			mutationsAnalysis(
+				"algorithmComparison(algorithms: [" + latest + ", " + previous + "]) " +
+				ALGORITHM_COMPARISON_FIELDS, null)
+			.get("algorithmComparison"),
+			result.get("d"));
+		assertNotEquals(result.get("a"), result.get("c"));
+	}
+
+	@Test
+	public void testRepeatedDrugResistanceDoesNotMixAlgorithms() {
+		String previous = PREVIOUS.getEnumCompatName();
+		Map<String, Object> result = mutationsAnalysis(
+			"a: drugResistance " + DRUG_RESISTANCE_FIELDS +
+			"b: drugResistance " + DRUG_RESISTANCE_FIELDS +
+			"c: drugResistance(algorithm: " + previous + ") " + DRUG_RESISTANCE_FIELDS,
+			new RequestContext());
+
+		assertEquals(result.get("a"), result.get("b"));
+		assertEquals(
+			mutationsAnalysis("drugResistance " + DRUG_RESISTANCE_FIELDS, null).get("drugResistance"),
+			result.get("a"));
+		assertEquals(
+			mutationsAnalysis(
+				"drugResistance(algorithm: " + previous + ") " + DRUG_RESISTANCE_FIELDS, null)
+			.get("drugResistance"),
+			result.get("c"));
+		assertNotEquals(result.get("a"), result.get("c"));
+	}
+
+}
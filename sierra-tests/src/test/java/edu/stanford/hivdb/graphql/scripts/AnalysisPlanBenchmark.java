@@ -0,0 +1,106 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql.scripts;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.hivdb.graphql.AlignedSequenceCache;
+import edu.stanford.hivdb.graphql.RequestContext;
+import edu.stanford.hivdb.graphql.SierraSchema;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.testutils.TestSequencesFiles;
+import edu.stanford.hivdb.testutils.TestSequencesFiles.TestSequencesProperties;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+
+/**
+ * Measures the time of sequenceAnalysis queries that select different
+ * analysis stages. AlignedSequenceCache is cleared before every round
+ * (outside of the measured time) so that every round starts from a fresh
+ * alignment.
+ */
+public class AnalysisPlanBenchmark {
+
+	private static final int ROUNDS = 5;
+
+	private static final String[][] QUERIES = {
+		{"subtype only", "bestMatchingSubtype { display }"},
+		{"drug resistance only", "drugResistance { gene { name } drugScores { score } }"},
+		{"subtype + validation",
+			"bestMatchingSubtype { display } validationResults { level message }"},
+		{"all stages",
+			"bestMatchingSubtype { display } validationResults { level message } " +
+			"drugResistance { gene { name } drugScores { score } } " +
+			"mutationPrevalences { boundMutation { text } }"}
+	};
+
+	private static List<Map<String, String>> toVariables(List<Sequence> sequences) {
+		List<Map<String, String>> result = new ArrayList<>();
+		for (Sequence seq : sequences) {
+			Map<String, String> seqMap = new LinkedHashMap<>();
+			seqMap.put("header", seq.getHeader());
+			seqMap.put("sequence", seq.getSequence());
+			result.add(seqMap);
+		}
+		return result;
+	}
+
+	public static void main(String[] args) {
+		List<Sequence> sequences = FastaUtils.readStream(
+			TestSequencesFiles.getTestSequenceInputStream(TestSequencesProperties.SMALL));
+		GraphQL gql = GraphQL.newGraphQL(SierraSchema.schema).build();
+		Map<String, Object> variables = new LinkedHashMap<>();
+		variables.put("sequences", toVariables(sequences));
+		for (String[] query : QUERIES) {
+			String queryText =
+				"query ($sequences: [UnalignedSequenceInput]) {" +
+				"  sequenceAnalysis(sequences: $sequences) { " + query[1] + " }" +
+				"}";
+			long totalNanos = 0;
+			for (int i = -1; i < ROUNDS; i ++) {
+				AlignedSequenceCache.invalidateAll();
+				RequestContext context = new RequestContext();
+				long startTime = System.nanoTime();
+				ExecutionResult result = gql.execute(
+					ExecutionInput.newExecutionInput()
+					.query(queryText)
+					.context(context)
+					.variables(variables)
+					.dataLoaderRegistry(context.getDataLoaderRegistry())
+					.build());
+				if (!result.getErrors().isEmpty()) {
+					throw new RuntimeException(result.getErrors().toString());
+				}
+				if (i >= 0) {
+					// the first round is a warm-up
+					totalNanos += System.nanoTime() - startTime;
+				}
+			}
+			System.out.println(String.format(
+				"%-24s %8.1f ms/query (%d sequences)",
+				query[0], totalNanos / 1e6 / ROUNDS, sequences.size()));
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.web.AdmissionController.Lane;
+import edu.stanford.hivdb.web.AdmissionController.Permit;
+
+public class AdmissionControllerTest {
+
+	@Test
+	public void testClassify() {
+		assertEquals(Lane.INTERACTIVE, Lane.classify(null, 1));
+		assertEquals(Lane.BULK, Lane.classify(null, 1000));
+		assertEquals(Lane.BULK, Lane.classify("bulk", 1));
+		// the header can't promote a large request into the reserved lane
+		assertEquals(Lane.BULK, Lane.classify("interactive", 1000));
+		assertEquals(Lane.INTERACTIVE, Lane.classify("interactive", 1));
+	}
+
+	@Test
+	public void testInteractiveHeaderDoesNotClampCost() {
+		int costInUse = AdmissionController.getCostInUse();
+		int cost = AdmissionController.getMaxCost() / 2;
+		try (Permit permit = AdmissionController.acquire("interactive", cost)) {
+			assertEquals(Lane.BULK, permit.getLane());
+			assertEquals(costInUse + cost, AdmissionController.getCostInUse());
+		}
+		assertEquals(costInUse, AdmissionController.getCostInUse());
+	}
+
+}
@@ -0,0 +1,224 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.hivdb.web.AnalysisJob.InputType;
+import edu.stanford.hivdb.web.AnalysisJob.Status;
+
+public class AnalysisJobQueueTest {
+
+	private static final String MUTATIONS =
+		"p1\tRT:M184V\n" +
+		"p2\tRT:K65R,RT:M184V\n" +
+		"p3\tPR:L90M\n" +
+		"\n" +
+		"IN:N155H\n" +
+		"RT:K103N PR:M46I\n";
+
+	private static final long HOUR = 3600 * 1000;
+
+	private Path jobsDir;
+	private ExecutorService workers;
+	private CountDownLatch blocker;
+
+	@Before
+	public void setUp() throws IOException {
+		jobsDir = Files.createTempDirectory("analysis-jobs-test");
+		workers = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		workers.shutdownNow();
+		try (Stream<Path> paths = Files.walk(jobsDir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	private AnalysisJobQueue newQueue(ExecutorService executor, long retentionMillis, int maxPending) {
+		return new AnalysisJobQueue(jobsDir, executor, retentionMillis, 1000, maxPending);
+	}
+
+	/**
+	 * Occupies the only worker until the test finishes.
+	 */
+	private void blockWorkers() {
+		blocker = new CountDownLatch(1);
+		workers.submit(() -> {
+			blocker.await();
+			return null;
+		});
+	}
+
+	private static AnalysisJob waitFor(AnalysisJobQueue queue, String jobId) throws InterruptedException {
+		AnalysisJob job = queue.getJob(jobId);
+		for (int i = 0; i < 600 && !job.getStatus().isFinished(); i ++) {
+			Thread.sleep(100);
+		}
+		assertTrue(job.getStatus().isFinished());
+		return job;
+	}
+
+	@Test
+	public void testSubmitAndPaging() throws Exception {
+		AnalysisJobQueue queue = newQueue(workers, HOUR, 10);
+		AnalysisJob job = queue.submit("HIV", InputType.MUTATIONS, null, MUTATIONS);
+		assertSame(job, queue.getJob(job.getId()));
+		waitFor(queue, job.getId());
+		assertEquals(Status.DONE, job.getStatus());
+		assertEquals(5, job.getTotal());
+		assertEquals(5, job.getProcessed());
+
+		List<String> page1 = queue.readResults(job, 0, 2);
+		List<String> page2 = queue.readResults(job, 2, 2);
+		List<String> page3 = queue.readResults(job, 4, 2);
+		assertEquals(2, page1.size());
+		assertEquals(2, page2.size());
+		assertEquals(1, page3.size());
+		assertTrue(page1.get(0).contains("p1"));
+		assertTrue(queue.readResults(job, 5, 2).isEmpty());
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		queue.writeResults(job, output);
+		String ndjson = new String(output.toByteArray(), StandardCharsets.UTF_8);
+		assertEquals(
+			String.join("\n", page1) + "\n" + String.join("\n", page2) + "\n" + page3.get(0) + "\n",
+			ndjson);
+	}
+
+	@Test
+	public void testMalformedMutationLine() throws Exception {
+		AnalysisJobQueue queue = newQueue(workers, HOUR, 10);
+		AnalysisJob job = queue.submit(
+			"HIV", InputType.MUTATIONS, null,
+			"p1\tRT:M184V\n" +
+			"bad\tRT:M184V,not-a-mutation\n" +
+			"p3\tPR:L90M\n");
+		waitFor(queue, job.getId());
+		assertEquals(Status.DONE, job.getStatus());
+		assertEquals(3, job.getProcessed());
+
+		List<String> records = queue.readResults(job, 0, 10);
+		assertEquals(3, records.size());
+		assertTrue(records.get(0).contains("\"name\":\"p1\",\"success\":true"));
+		assertTrue(records.get(1).contains("\"name\":\"bad\",\"success\":false"));
+		assertTrue(records.get(1).contains("\"errorMessage\""));
+		assertFalse(records.get(1).contains("\"drugResistance\""));
+		assertTrue(records.get(2).contains("\"name\":\"p3\",\"success\":true"));
+	}
+
+	@Test
+	public void testSubmitLimits() {
+		blockWorkers();
+		AnalysisJobQueue queue = newQueue(workers, HOUR, 1);
+		StringBuilder tooLong = new StringBuilder();
+		for (int i = 0; i < 200; i ++) {
+			tooLong.append("RT:M184V\n");
+		}
+		try {
+			queue.submit("HIV", InputType.MUTATIONS, null, tooLong.toString());
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("too long"));
+		}
+		queue.submit("HIV", InputType.MUTATIONS, null, MUTATIONS);
+		try {
+			queue.submit("HIV", InputType.MUTATIONS, null, MUTATIONS);
+			fail("expected ServiceUnavailableException");
+		} catch (ServiceUnavailableException e) {
+			// queue is full
+		}
+	}
+
+	@Test
+	public void testCancelQueuedJob() throws Exception {
+		blockWorkers();
+		AnalysisJobQueue queue = newQueue(workers, HOUR, 10);
+		AnalysisJob job = queue.submit("HIV", InputType.MUTATIONS, null, MUTATIONS);
+		assertEquals(Status.QUEUED, job.getStatus());
+		assertSame(job, queue.cancel(job.getId()));
+		assertEquals(Status.CANCELLED, job.getStatus());
+		assertNull(queue.cancel("no-such-job"));
+
+		blocker.countDown();
+		workers.shutdown();
+		workers.awaitTermination(1, TimeUnit.MINUTES);
+		assertEquals(Status.CANCELLED, job.getStatus());
+		assertEquals(0, job.getProcessed());
+		assertTrue(queue.readResults(job, 0, 10).isEmpty());
+	}
+
+	@Test
+	public void testRecover() throws Exception {
+		blockWorkers();
+		AnalysisJobQueue interrupted = newQueue(workers, HOUR, 10);
+		AnalysisJob pendingJob = interrupted.submit("HIV", InputType.MUTATIONS, null, MUTATIONS);
+
+		// a corrupt job is skipped instead of failing the startup
+		Path corruptDir = Files.createDirectories(jobsDir.resolve("corrupt"));
+		Files.write(corruptDir.resolve("job.json"), "{not json".getBytes(StandardCharsets.UTF_8));
+
+		ExecutorService newWorkers = Executors.newSingleThreadExecutor();
+		try {
+			AnalysisJobQueue restarted = newQueue(newWorkers, HOUR, 10);
+			AnalysisJob job = restarted.getJob(pendingJob.getId());
+			assertNotNull(job);
+			assertNotSame(pendingJob, job);
+			waitFor(restarted, job.getId());
+			assertEquals(Status.DONE, job.getStatus());
+			assertEquals(5, restarted.readResults(job, 0, 10).size());
+			assertNull(restarted.getJob("corrupt"));
+		} finally {
+			newWorkers.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testPurgeExpired() throws Exception {
+		AnalysisJobQueue queue = newQueue(workers, 0, 10);
+		AnalysisJob job = queue.submit("HIV", InputType.MUTATIONS, null, MUTATIONS);
+		waitFor(queue, job.getId());
+		Thread.sleep(10);
+		queue.purgeExpired();
+		assertNull(queue.getJob(job.getId()));
+		assertFalse(Files.exists(jobsDir.resolve(job.getId())));
+	}
+
+}
@@ -0,0 +1,319 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.google.common.hash.Hashing;
+
+import edu.stanford.hivdb.graphql.SierraSchema;
+import edu.stanford.hivdb.utilities.Json;
+
+public class GraphQLServiceTest {
+
+	private static final String DYNAMIC_QUERY = "{ __schema { queryType { name } } }";
+	private static final String STATIC_QUERY = "{ currentVersion { text publishDate } }";
+
+	private final GraphQLService service = new GraphQLService();
+
+	private static AsyncResponse mockAsyncResponse() {
+		AsyncResponse asyncResponse = mock(AsyncResponse.class);
+		when(asyncResponse.resume(any(Object.class))).thenReturn(true);
+		return asyncResponse;
+	}
+
+	private static Response getResponse(AsyncResponse asyncResponse) {
+		ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+		verify(asyncResponse).resume(response.capture());
+		return (Response) response.getValue();
+	}
+
+	private static byte[] readBytes(Response response) throws Exception {
+		Object entity = response.getEntity();
+		if (entity instanceof StreamingOutput) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			((StreamingOutput) entity).write(output);
+			return output.toByteArray();
+		}
+		if (entity instanceof byte[]) {
+			return (byte[]) entity;
+		}
+		return ((String) entity).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String readEntity(Response response) throws Exception {
+		return new String(readBytes(response), StandardCharsets.UTF_8);
+	}
+
+	private Response post(String query) {
+		return post(query, null);
+	}
+
+	private Response post(String query, Map<String, Object> extensions) {
+		return post(query, extensions, null);
+	}
+
+	private Response post(String query, Map<String, Object> extensions, String ifNoneMatch) {
+		Map<String, Object> request = new LinkedHashMap<>();
+		if (query != null) {
+			request.put("query", query);
+		}
+		if (extensions != null) {
+			request.put("extensions", extensions);
+		}
+		AsyncResponse asyncResponse = mockAsyncResponse();
+		service.execute(Json.dumps(request), null, ifNoneMatch, asyncResponse);
+		return getResponse(asyncResponse);
+	}
+
+	private Response get(String query, Map<String, Object> extensions) {
+		return get(query, extensions, null);
+	}
+
+	private Response get(String query, Map<String, Object> extensions, String ifNoneMatch) {
+		AsyncResponse asyncResponse = mockAsyncResponse();
+		service.executeGet(
+			query, null, extensions == null ? null : Json.dumps(extensions),
+			null, ifNoneMatch, asyncResponse);
+		return getResponse(asyncResponse);
+	}
+
+	private static String sha256(String query) {
+		return Hashing.sha256().hashString(query, StandardCharsets.UTF_8).toString();
+	}
+
+	private static Map<String, Object> persistedQuery(String hash) {
+		Map<String, Object> persistedQuery = new LinkedHashMap<>();
+		persistedQuery.put("version", 1);
+		persistedQuery.put("sha256Hash", hash);
+		return Collections.singletonMap("persistedQuery", persistedQuery);
+	}
+
+	@Test
+	public void testPermitIsHeldUntilSerialized() throws Exception {
+		int costInUse = AdmissionController.getCostInUse();
+		Response response = post(DYNAMIC_QUERY);
+		assertTrue(AdmissionController.getCostInUse() > costInUse);
+
+		String body = readEntity(response);
+		assertEquals(costInUse, AdmissionController.getCostInUse());
+		assertTrue(body.contains("\"queryType\""));
+	}
+
+	@Test
+	public void testNeverWrittenResponseDoesNotLeak() {
+		int costInUse = AdmissionController.getCostInUse();
+		AsyncResponse asyncResponse = mockAsyncResponse();
+		service.execute(
+			Json.dumps(Collections.singletonMap("query", DYNAMIC_QUERY)), null, null, asyncResponse);
+		assertTrue(AdmissionController.getCostInUse() > costInUse);
+
+		ArgumentCaptor<Object> callback = ArgumentCaptor.forClass(Object.class);
+		verify(asyncResponse).register(callback.capture());
+		((CompletionCallback) callback.getValue()).onComplete(new RuntimeException("aborted"));
+		assertEquals(costInUse, AdmissionController.getCostInUse());
+	}
+
+	@Test
+	public void testOnlyLeaderIsChargedTheExecutionCost() throws Exception {
+		SingleFlight<String> singleFlight = new SingleFlight<>("test");
+		AtomicReference<AdmissionController.Permit> leaderPermit = new AtomicReference<>();
+		AtomicReference<AdmissionController.Permit> followerPermit = new AtomicReference<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		int costInUse = AdmissionController.getCostInUse();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> leader = executor.submit(() -> GraphQLService.executeShared(
+				singleFlight, "key", null, 5, () -> {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					return "result";
+				}, leaderPermit));
+			started.await();
+			assertEquals(costInUse + 5, AdmissionController.getCostInUse());
+
+			Future<String> follower = executor.submit(() -> GraphQLService.executeShared(
+				singleFlight, "key", null, 5, () -> "other", followerPermit));
+			while (AdmissionController.getCostInUse() == costInUse + 5) {
+				Thread.sleep(1);
+			}
+			assertEquals(costInUse + 6, AdmissionController.getCostInUse());
+			assertEquals(1, singleFlight.getNumCoalesced());
+
+			release.countDown();
+			assertEquals("result", leader.get());
+			assertEquals("result", follower.get());
+			leaderPermit.get().close();
+			followerPermit.get().close();
+			assertEquals(costInUse, AdmissionController.getCostInUse());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testStoreThenHashOnlyPersistedQuery() throws Exception {
+		Map<String, Object> extensions = persistedQuery(sha256(DYNAMIC_QUERY));
+		Response stored = post(DYNAMIC_QUERY, extensions);
+		assertEquals(200, stored.getStatus());
+		String expected = readEntity(stored);
+		assertTrue(expected.contains("\"queryType\""));
+
+		Response hashOnly = post(null, extensions);
+		assertEquals(200, hashOnly.getStatus());
+		assertEquals(expected, readEntity(hashOnly));
+	}
+
+	@Test
+	public void testUnknownPersistedQuery() throws Exception {
+		Response response = post(null, persistedQuery(sha256("{ unknown }")));
+		assertEquals(200, response.getStatus());
+		String body = readEntity(response);
+		assertTrue(body.contains("PersistedQueryNotFound"));
+		assertTrue(body.contains("PERSISTED_QUERY_NOT_FOUND"));
+	}
+
+	@Test
+	public void testPersistedQueryHashMismatch() throws Exception {
+		int costInUse = AdmissionController.getCostInUse();
+		Response response = post(DYNAMIC_QUERY, persistedQuery(sha256("{ other }")));
+		assertEquals(400, response.getStatus());
+		assertTrue(readEntity(response).contains("BAD_REQUEST"));
+		// the query is neither stored nor executed
+		assertEquals(costInUse, AdmissionController.getCostInUse());
+		assertTrue(readEntity(post(null, persistedQuery(sha256("{ other }")))).contains(
+			"PERSISTED_QUERY_NOT_FOUND"));
+	}
+
+	@Test
+	public void testGetWithExtensions() throws Exception {
+		String hash = sha256(DYNAMIC_QUERY);
+		assertTrue(readEntity(get(null, persistedQuery(hash))).contains(
+			"PERSISTED_QUERY_NOT_FOUND"));
+
+		Response stored = get(DYNAMIC_QUERY, persistedQuery(hash));
+		assertEquals(200, stored.getStatus());
+		String expected = readEntity(stored);
+
+		Response hashOnly = get(null, persistedQuery(hash.toUpperCase()));
+		assertEquals(200, hashOnly.getStatus());
+		assertEquals(expected, readEntity(hashOnly));
+	}
+
+	@Test
+	public void testStaticResponseETag() throws Exception {
+		Response response = post(STATIC_QUERY);
+		assertEquals(200, response.getStatus());
+		String eTag = response.getHeaderString(HttpHeaders.ETAG);
+		assertNotNull(eTag);
+		assertEquals("no-cache", response.getHeaderString(HttpHeaders.CACHE_CONTROL));
+		String body = readEntity(response);
+		assertTrue(body.contains("\"currentVersion\""));
+
+		// equivalent query text shares the cached response
+		Response reformatted = get("{\n  currentVersion {\n    text\n    publishDate\n  }\n}", null);
+		assertEquals(200, reformatted.getStatus());
+		assertEquals(eTag, reformatted.getHeaderString(HttpHeaders.ETAG));
+		assertEquals(body, readEntity(reformatted));
+	}
+
+	@Test
+	public void testStaticResponseNotModified() throws Exception {
+		String eTag = post(STATIC_QUERY).getHeaderString(HttpHeaders.ETAG);
+		int costInUse = AdmissionController.getCostInUse();
+
+		Response notModified = post(STATIC_QUERY, null, eTag);
+		assertEquals(304, notModified.getStatus());
+		assertEquals(eTag, notModified.getHeaderString(HttpHeaders.ETAG));
+		assertNull(notModified.getEntity());
+
+		notModified = get(STATIC_QUERY, null, "\"stale\", " + eTag);
+		assertEquals(304, notModified.getStatus());
+		assertEquals(304, get(STATIC_QUERY, null, "*").getStatus());
+
+		Response modified = post(STATIC_QUERY, null, "\"stale\"");
+		assertEquals(200, modified.getStatus());
+		assertEquals(eTag, modified.getHeaderString(HttpHeaders.ETAG));
+		assertTrue(readEntity(modified).contains("\"currentVersion\""));
+		// cached responses are served without a permit
+		assertEquals(costInUse, AdmissionController.getCostInUse());
+	}
+
+	@Test
+	public void testDynamicResponseHasNoETag() throws Exception {
+		Response response = post(DYNAMIC_QUERY, null, "*");
+		assertEquals(200, response.getStatus());
+		assertNull(response.getHeaderString(HttpHeaders.ETAG));
+		readEntity(response);
+	}
+
+	@Test
+	public void testPrecomputedEqualsNormalExecution() throws Exception {
+		service.precomputeStaticResponses();
+		String rootName = SierraSchema.schema.getQueryType().getName();
+		List<String> queries = new StaticResponseCache(SierraSchema.schema).getPrecomputeQueries();
+		assertFalse(queries.isEmpty());
+		for (String query : queries) {
+			int costInUse = AdmissionController.getCostInUse();
+			Response precomputed = post(query);
+			assertEquals(query, 200, precomputed.getStatus());
+			assertNotNull(precomputed.getHeaderString(HttpHeaders.ETAG));
+			// served from the cache without executing
+			assertEquals(costInUse, AdmissionController.getCostInUse());
+
+			// a fragment spread selects the same fields but is never static
+			String selection = query.substring("query { ".length(), query.length() - " }".length());
+			Response executed = post(
+				"query { ...Precomputed } fragment Precomputed on " + rootName + " { " + selection + " }");
+			assertEquals(query, 200, executed.getStatus());
+			assertNull(executed.getHeaderString(HttpHeaders.ETAG));
+			assertArrayEquals(query, readBytes(executed), readBytes(precomputed));
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.utilities.Json;
+
+public class JsonStreamWriterTest {
+
+	private static String stream(Object value) {
+		return new String(JsonStreamWriter.toBytes(value), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testSameAsJsonDumps() {
+		Map<String, Object> inner = new LinkedHashMap<>();
+		inner.put("score", 15.0);
+		inner.put("level", 3);
+		inner.put("missing", null);
+		Map<String, Object> output = new LinkedHashMap<>();
+		output.put("text", "<M184V> & \"K65R\"\né中😀");
+		output.put("list", Arrays.asList(1, true, null, inner, Collections.emptyList()));
+		output.put("empty", Collections.emptyMap());
+		output.put("data", null);
+		assertEquals(Json.dumps(output), stream(output));
+	}
+
+	@Test
+	public void testLongStringAcrossBuffers() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100000; i ++) {
+			text.append("aé😀");
+		}
+		Map<String, Object> output = Collections.singletonMap("text", text.toString());
+		assertEquals(Json.dumps(output), stream(output));
+	}
+
+}
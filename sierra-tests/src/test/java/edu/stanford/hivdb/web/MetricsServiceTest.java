@@ -0,0 +1,110 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.StageMetrics;
+import edu.stanford.hivdb.graphql.StageMetrics.Stage;
+
+public class MetricsServiceTest {
+
+	private static final Pattern HELP = Pattern.compile("^# HELP ([a-z_]+) \\S.*$");
+	private static final Pattern TYPE = Pattern.compile("^# TYPE ([a-z_]+) (counter|gauge|histogram)$");
+	private static final Pattern SAMPLE = Pattern.compile(
+		"^([a-z_]+)(\\{[a-z_]+=\"[^\"]*\"(,[a-z_]+=\"[^\"]*\")*\\})? (\\S+)$");
+
+	private static String getMetrics() {
+		return (String) new MetricsService().getMetrics().getEntity();
+	}
+
+	@Test
+	public void testPrometheusTextFormat() {
+		AdmissionController.acquire(null, 1).close();
+		StageMetrics.time(Stage.ALIGNMENT, "HIV", null, 3, () -> null);
+		String text = getMetrics();
+		assertTrue(text.endsWith("\n"));
+
+		Set<String> declared = new HashSet<>();
+		String helpName = null;
+		String typeName = null;
+		String type = null;
+		for (String line : text.split("\n")) {
+			Matcher help = HELP.matcher(line);
+			Matcher typeLine = TYPE.matcher(line);
+			Matcher sample = SAMPLE.matcher(line);
+			if (help.matches()) {
+				helpName = help.group(1);
+				typeName = null;
+			}
+			else if (typeLine.matches()) {
+				// every metric is declared once, right after its help
+				assertEquals(line, helpName, typeLine.group(1));
+				assertTrue(line, declared.add(typeLine.group(1)));
+				typeName = typeLine.group(1);
+				type = typeLine.group(2);
+			}
+			else if (sample.matches()) {
+				assertNotNull(line, typeName);
+				String name = sample.group(1);
+				if (type.equals("histogram")) {
+					assertTrue(line, name.matches(
+						Pattern.quote(typeName) + "_(bucket|sum|count)"));
+				}
+				else {
+					assertEquals(line, typeName, name);
+				}
+				String value = sample.group(4);
+				Double.parseDouble(value);
+			}
+			else {
+				fail("unexpected line: " + line);
+			}
+		}
+		assertTrue(declared.contains("sierra_request_duration_seconds"));
+		assertTrue(declared.contains("sierra_stage_duration_seconds"));
+		assertTrue(declared.contains("sierra_admission_admitted_total"));
+	}
+
+	@Test
+	public void testRecordedSamples() {
+		StageMetrics.Series series = StageMetrics.getSeries(Stage.GENOTYPE, "HIV2", "metrics-test");
+		long numItems = series.getNumItems();
+		long count = series.getLatencies().getCount();
+		StageMetrics.time(Stage.GENOTYPE, "HIV2", "metrics-test", 4, () -> null);
+		String labels = "stage=\"genotype\",virus=\"HIV2\",algorithm=\"metrics-test\"";
+		String text = getMetrics();
+		assertTrue(text.contains(
+			"sierra_stage_items_total{" + labels + "} " + (numItems + 4) + "\n"));
+		assertTrue(text.contains(
+			"sierra_stage_duration_seconds_count{" + labels + "} " + (count + 1) + "\n"));
+		assertTrue(text.contains(
+			"sierra_stage_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} " + (count + 1) + "\n"));
+		assertTrue(text.contains(
+			"sierra_admission_cost_capacity " + AdmissionController.getMaxCost() + "\n"));
+	}
+
+}
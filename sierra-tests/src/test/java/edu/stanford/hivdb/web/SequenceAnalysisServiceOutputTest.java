@@ -0,0 +1,122 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.testutils.TestSequencesFiles;
+import edu.stanford.hivdb.testutils.TestSequencesFiles.TestSequencesProperties;
+import edu.stanford.hivdb.utilities.FastaUtils;
+
+public class SequenceAnalysisServiceOutputTest {
+
+	private final static HIV hiv = HIV.getInstance();
+
+	private final static String[] OUTPUT_OPTIONS = {
+		"alignment.tsv", "alignments.tsv",
+		"pretty-alignment.tsv", "pretty-alignments.tsv",
+		"drug-resistance.tsv", "drug-resistances.tsv",
+		"drug-resistance.xml", "drug-resistances.xml",
+		"alg-comparison.tsv", "alg-comparisons.tsv"
+	};
+
+	private final static ExecutorService PARALLEL = Executors.newFixedThreadPool(4);
+
+	@AfterClass
+	public static void shutdown() {
+		PARALLEL.shutdown();
+	}
+
+	private static Sequence[] getSequences() {
+		List<Sequence> sequences = new ArrayList<>(FastaUtils.readStream(
+			TestSequencesFiles.getTestSequenceInputStream(TestSequencesProperties.SMALL)));
+		// repeated sequences share one resistance result
+		sequences.addAll(sequences.subList(0, Math.min(2, sequences.size())));
+		return sequences.toArray(new Sequence[0]);
+	}
+
+	private static HIV1SequenceAnalysisService newService() {
+		HIV1SequenceAnalysisService service = new HIV1SequenceAnalysisService();
+		service.drAlgorithm = hiv.getLatestDrugResistAlgorithm("HIVDB").getName();
+		service.algorithmsCSV = String.join(
+			",", hiv.getLatestDrugResistAlgorithm("HIVDB").getName(), "HIVDB_8.9");
+		service.customAlgorithmsStr = "[]";
+		return service;
+	}
+
+	private static void assertParallelEqualsSequential(Sequence[] sequences, String... outputOptions) {
+		HIV1SequenceAnalysisService service = newService();
+		String sequential = new SequenceAnalysisServiceOutput<>(
+			hiv, service, sequences, outputOptions,
+			MoreExecutors.newDirectExecutorService()).toString();
+		String parallel = new SequenceAnalysisServiceOutput<>(
+			hiv, service, sequences, outputOptions, PARALLEL).toString();
+		assertEquals(Arrays.toString(outputOptions), sequential, parallel);
+	}
+
+	@Test
+	public void testEachOutputOption() {
+		Sequence[] sequences = getSequences();
+		for (String outputOption : OUTPUT_OPTIONS) {
+			assertParallelEqualsSequential(sequences, outputOption);
+		}
+	}
+
+	@Test
+	public void testAllOutputOptions() {
+		assertParallelEqualsSequential(getSequences(), OUTPUT_OPTIONS);
+	}
+
+	@Test
+	public void testRepeatedRuns() {
+		Sequence[] sequences = getSequences();
+		String[] options = {"drug-resistance.tsv", "drug-resistance.xml", "alignment.tsv"};
+		String expected = new SequenceAnalysisServiceOutput<>(
+			hiv, newService(), sequences, options,
+			MoreExecutors.newDirectExecutorService()).toString();
+		for (int i = 0; i < 5; i ++) {
+			assertEquals(expected, new SequenceAnalysisServiceOutput<>(
+				hiv, newService(), sequences, options, PARALLEL).toString());
+		}
+	}
+
+	@Test
+	public void testUnknownOutputOption() {
+		assertParallelEqualsSequential(getSequences(), "unknown", "alignment.tsv");
+		String output = new SequenceAnalysisServiceOutput<>(
+			hiv, newService(), getSequences(), new String[] {"unknown", "alignment.tsv"},
+			PARALLEL).toString();
+		assertFalse(output.contains("\"unknown\""));
+		assertTrue(output.contains("\"alignment.tsv\""));
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.google.gson.reflect.TypeToken;
+
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.testutils.TestSequencesFiles;
+import edu.stanford.hivdb.testutils.TestSequencesFiles.TestSequencesProperties;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.utilities.Json;
+
+public class SequenceAnalysisServiceTest {
+
+	// no HIV gene can be aligned from this sequence
+	private static final String UNALIGNABLE = (
+		">unalignable\n" +
+		"TTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTT\n");
+
+	/**
+	 * Records the bytes written up to every flush.
+	 */
+	private static class FlushRecordingOutputStream extends ByteArrayOutputStream {
+		private final List<Integer> flushedSizes = new ArrayList<>();
+
+		@Override
+		public void flush() {
+			if (flushedSizes.isEmpty() || flushedSizes.get(flushedSizes.size() - 1) != size()) {
+				flushedSizes.add(size());
+			}
+		}
+	}
+
+	private static String getTestSequences() throws Exception {
+		try (InputStream input = TestSequencesFiles.getTestSequenceInputStream(TestSequencesProperties.SMALL)) {
+			return IOUtils.toString(input, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static AsyncResponse mockAsyncResponse() {
+		AsyncResponse asyncResponse = mock(AsyncResponse.class);
+		when(asyncResponse.resume(any(Object.class))).thenReturn(true);
+		return asyncResponse;
+	}
+
+	private static CompletionCallback getCompletionCallback(AsyncResponse asyncResponse) {
+		ArgumentCaptor<Object> callback = ArgumentCaptor.forClass(Object.class);
+		verify(asyncResponse).register(callback.capture());
+		return (CompletionCallback) callback.getValue();
+	}
+
+	private static StreamingOutput getStreamingOutput(AsyncResponse asyncResponse) {
+		ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+		verify(asyncResponse).resume(response.capture());
+		return (StreamingOutput) ((Response) response.getValue()).getEntity();
+	}
+
+	@Test
+	public void testNeverWrittenStreamDoesNotLeak() throws Exception {
+		int costInUse = AdmissionController.getCostInUse();
+		AsyncResponse asyncResponse = mockAsyncResponse();
+		new HIV1SequenceAnalysisService().getAllAsNdjson(getTestSequences(), null, asyncResponse);
+		assertTrue(AdmissionController.getCostInUse() > costInUse);
+
+		// e.g. the client disconnected before the entity was written
+		getCompletionCallback(asyncResponse).onComplete(new RuntimeException("aborted"));
+		assertEquals(costInUse, AdmissionController.getCostInUse());
+	}
+
+	@Test
+	public void testWrittenStreamReleasesOnce() throws Exception {
+		int costInUse = AdmissionController.getCostInUse();
+		AsyncResponse asyncResponse = mockAsyncResponse();
+		new HIV1SequenceAnalysisService().getAllAsNdjson(getTestSequences(), null, asyncResponse);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		getStreamingOutput(asyncResponse).write(output);
+		assertEquals(costInUse, AdmissionController.getCostInUse());
+		assertTrue(output.size() > 0);
+
+		getCompletionCallback(asyncResponse).onComplete(null);
+		assertEquals(costInUse, AdmissionController.getCostInUse());
+	}
+
+	@Test
+	public void testNdjsonRecords() throws Exception {
+		String testSequences = getTestSequences();
+		// an unalignable sequence between others
+		String sequences = UNALIGNABLE + testSequences + UNALIGNABLE.replace(">unalignable", ">unalignable2");
+		List<String> headers = FastaUtils.readString(sequences)
+			.stream().map(Sequence::getHeader).collect(Collectors.toList());
+		assertTrue(headers.size() > 3);
+
+		AsyncResponse asyncResponse = mockAsyncResponse();
+		new HIV1SequenceAnalysisService().getAllAsNdjson(sequences, null, asyncResponse);
+		FlushRecordingOutputStream output = new FlushRecordingOutputStream();
+		getStreamingOutput(asyncResponse).write(output);
+		byte[] bytes = output.toByteArray();
+		String text = new String(bytes, StandardCharsets.UTF_8);
+
+		// one record per line, in the order of the input
+		assertTrue(text.endsWith("\n"));
+		String[] lines = text.substring(0, text.length() - 1).split("\n", -1);
+		assertEquals(headers.size(), lines.length);
+		for (int i = 0; i < lines.length; i ++) {
+			Map<String, Object> record = Json.loads(lines[i], new TypeToken<Map<String, Object>>() {}.getType());
+			assertEquals(headers.get(i), record.get("header"));
+			if (headers.get(i).startsWith("unalignable")) {
+				assertEquals(false, record.get("success"));
+				assertNotNull(record.get("errorMessage"));
+				assertFalse(record.containsKey("drugResistance"));
+			}
+			else {
+				assertEquals(true, record.get("success"));
+				assertNotNull(record.get("drugResistance"));
+			}
+		}
+
+		// every record is flushed as soon as it is written
+		assertEquals(lines.length, output.flushedSizes.size());
+		for (int size : output.flushedSizes) {
+			assertEquals('\n', bytes[size - 1]);
+		}
+		assertEquals(bytes.length, (int) output.flushedSizes.get(lines.length - 1));
+	}
+
+	@Test
+	public void testNdjsonEmptyInput() throws Exception {
+		AsyncResponse asyncResponse = mockAsyncResponse();
+		new HIV1SequenceAnalysisService().getAllAsNdjson("", null, asyncResponse);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		getStreamingOutput(asyncResponse).write(output);
+		assertEquals(0, output.size());
+	}
+
+}
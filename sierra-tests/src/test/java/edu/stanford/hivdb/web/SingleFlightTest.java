@@ -0,0 +1,127 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	@Test
+	public void testCoalesceConcurrentCalls() throws Exception {
+		SingleFlight<String> singleFlight = new SingleFlight<>("test");
+		AtomicInteger numCalls = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+				numCalls.incrementAndGet();
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return "result";
+			}));
+			started.await();
+			Future<String> follower = executor.submit(() -> singleFlight.execute("key", () -> {
+				numCalls.incrementAndGet();
+				return "other";
+			}));
+			while (singleFlight.getNumCoalesced() == 0) {
+				Thread.sleep(1);
+			}
+			release.countDown();
+			assertEquals("result", leader.get());
+			assertEquals("result", follower.get());
+			assertEquals(1, numCalls.get());
+			assertEquals(1, singleFlight.getNumExecuted());
+			assertEquals(0, singleFlight.getNumInFlight());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testNoCachingAfterCompletion() {
+		SingleFlight<Integer> singleFlight = new SingleFlight<>("test");
+		assertEquals(Integer.valueOf(1), singleFlight.execute("key", () -> 1));
+		assertEquals(Integer.valueOf(2), singleFlight.execute("key", () -> 2));
+		assertEquals(0, singleFlight.getNumCoalesced());
+	}
+
+	@Test
+	public void testNormalizeQuery() {
+		assertEquals(
+			"query { a(s: \"x  y\") { b } }",
+			SingleFlight.normalizeQuery("  query {\n\ta(s: \"x  y\")  {\n  b }\n}\n"));
+		assertEquals(
+			"{ a(s: \"q\\\"  \") }",
+			SingleFlight.normalizeQuery("{ a(s: \"q\\\"  \")  }"));
+	}
+
+	@Test
+	public void testNormalizeQueryComments() {
+		// a comment must not swallow the fields on the following lines
+		assertEquals(
+			"{ a b }",
+			SingleFlight.normalizeQuery("{ a # skip c\n  b }"));
+		assertEquals(
+			SingleFlight.normalizeQuery("{\n  a\n  b\n}"),
+			SingleFlight.normalizeQuery("# header\n{\n  a # first\r\n  b\n}\n# end"));
+		assertNotEquals(
+			SingleFlight.normalizeQuery("{ a # b\n}"),
+			SingleFlight.normalizeQuery("{ a b }"));
+		// '#' inside strings and block strings is not a comment
+		assertEquals(
+			"{ a(s: \"x # y\") }",
+			SingleFlight.normalizeQuery("{ a(s: \"x # y\") }"));
+		assertEquals(
+			"{ a(s: \"\"\"x  # \\\"\"\"\n  y\"\"\") b }",
+			SingleFlight.normalizeQuery("{ a(s: \"\"\"x  # \\\"\"\"\n  y\"\"\")\n b }"));
+	}
+
+	@Test
+	public void testOnlyRegisteredInstancesAreExported() {
+		SingleFlight<String> unregistered = new SingleFlight<>("test");
+		assertFalse(SingleFlight.getAll().contains(unregistered));
+		SingleFlight<String> registered = SingleFlight.register("test-registered");
+		assertTrue(SingleFlight.getAll().contains(registered));
+	}
+
+	@Test
+	public void testHashKeySeparatesParts() {
+		assertNotEquals(
+			SingleFlight.hashKey("ab", "c"),
+			SingleFlight.hashKey("a", "bc"));
+		assertEquals(
+			SingleFlight.hashKey("a", null),
+			SingleFlight.hashKey("a", null));
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.SierraSchema;
+import edu.stanford.hivdb.web.StaticResponseCache.StaticResponse;
+
+public class StaticResponseCacheTest {
+
+	private final StaticResponseCache cache = new StaticResponseCache(SierraSchema.schema);
+
+	private boolean isStatic(String query) {
+		return cache.isStatic(SingleFlight.normalizeQuery(query));
+	}
+
+	@Test
+	public void testStaticQueries() {
+		assertTrue(isStatic("{ currentVersion { text publishDate } }"));
+		assertTrue(isStatic("query Versions { currentVersion { text } currentProgramVersion { text } }"));
+		assertTrue(isStatic("{ genes(names: [PR]) { name } mutationPrevalenceSubtypes { name } }"));
+		assertTrue(isStatic("{ viewer { currentVersion { text } genes { name } } }"));
+		assertTrue(isStatic("{ __typename }"));
+	}
+
+	@Test
+	public void testDynamicQueries() {
+		assertFalse(isStatic("{ sequenceAnalysis(sequences: []) { inputSequence { header } } }"));
+		assertFalse(isStatic("{ currentVersion { text } patternAnalysis(patterns: []) { name } }"));
+		// a non-static sibling under viewer
+		assertFalse(isStatic(
+			"{ viewer { currentVersion { text } mutationsAnalysis(mutations: []) { validationResults { level } } } }"));
+		// viewer is only allowed at the root
+		assertFalse(isStatic("{ viewer { viewer { currentVersion { text } } } }"));
+		assertFalse(isStatic("{ viewer }"));
+		assertFalse(isStatic("{ __schema { queryType { name } } }"));
+	}
+
+	@Test
+	public void testFragments() {
+		assertFalse(isStatic(
+			"{ ...Version } fragment Version on Root { currentVersion { text } }"));
+		assertFalse(isStatic("{ ... on Root { currentVersion { text } } }"));
+		assertFalse(isStatic(
+			"{ viewer { ...Version } } fragment Version on Viewer { currentVersion { text } }"));
+	}
+
+	@Test
+	public void testOperations() {
+		assertFalse(isStatic("mutation { currentVersion { text } }"));
+		assertFalse(isStatic("subscription { currentVersion { text } }"));
+		assertFalse(isStatic("query A { currentVersion { text } } query B { genes { name } }"));
+		assertFalse(isStatic("fragment Version on Root { currentVersion { text } }"));
+		assertFalse(isStatic(""));
+		assertFalse(isStatic("{ currentVersion { text }"));
+	}
+
+	@Test
+	public void testETag() {
+		StaticResponse response = cache.put("key", "{\"data\":{}}".getBytes(StandardCharsets.UTF_8));
+		String eTag = response.getETag();
+		assertTrue(eTag.startsWith("\"") && eTag.endsWith("\""));
+		assertSame(response, cache.getIfPresent("key"));
+		assertNull(cache.getIfPresent("other"));
+
+		StaticResponse same = cache.put("other", "{\"data\":{}}".getBytes(StandardCharsets.UTF_8));
+		assertEquals(eTag, same.getETag());
+		StaticResponse different = cache.put("different", "{\"data\":null}".getBytes(StandardCharsets.UTF_8));
+		assertNotEquals(eTag, different.getETag());
+	}
+
+	@Test
+	public void testIfNoneMatch() {
+		StaticResponse response = cache.put("key", "{\"data\":{}}".getBytes(StandardCharsets.UTF_8));
+		String eTag = response.getETag();
+		assertTrue(response.matches(eTag));
+		assertTrue(response.matches("*"));
+		assertTrue(response.matches("\"stale\", " + eTag));
+		assertTrue(response.matches(" " + eTag + " "));
+		assertFalse(response.matches(null));
+		assertFalse(response.matches(""));
+		assertFalse(response.matches("\"stale\""));
+		assertFalse(response.matches(eTag.substring(1, eTag.length() - 1)));
+		assertFalse(response.matches("W/" + eTag));
+	}
+
+	@Test
+	public void testPrecomputeQueriesAreStatic() {
+		List<String> queries = cache.getPrecomputeQueries();
+		assertFalse(queries.isEmpty());
+		for (String query : queries) {
+			assertTrue(query, isStatic(query));
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.reports.ResistanceSummaryTSV;
+import edu.stanford.hivdb.reports.SequenceSummaryTSV;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.testutils.TestSequencesFiles;
+import edu.stanford.hivdb.testutils.TestSequencesFiles.TestSequencesProperties;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.web.TsvReportWriter.Report;
+
+public class TsvReportWriterTest {
+
+	private final static HIV hiv = HIV.getInstance();
+
+	private static SequenceAnalysisPipeline<HIV> newPipeline() {
+		InputStream input = TestSequencesFiles.getTestSequenceInputStream(TestSequencesProperties.SMALL);
+		List<Sequence> sequences = FastaUtils.readStream(input);
+		return new SequenceAnalysisPipeline<>(hiv, sequences, null);
+	}
+
+	private static String stream(
+		SequenceAnalysisPipeline<HIV> pipeline, Report report
+	) throws IOException {
+		StringWriter writer = new StringWriter();
+		TsvReportWriter<HIV> tsv = new TsvReportWriter<>(hiv, report, pipeline.getAlgorithm(), writer);
+		pipeline.forEachResult(
+			result -> tsv.writeRow(result.getAlignedSequence(), result.getDrugResistance()));
+		tsv.finish();
+		return writer.toString();
+	}
+
+	@Test
+	public void testStreamedEqualsBatchReport() throws IOException {
+		SequenceAnalysisPipeline<HIV> pipeline = newPipeline();
+		List<AlignedSequence<HIV>> alignedSeqs = new ArrayList<>();
+		List<Map<Gene<HIV>, GeneDR<HIV>>> allGeneDRs = new ArrayList<>();
+		pipeline.forEachResult(result -> {
+			alignedSeqs.add(result.getAlignedSequence());
+			allGeneDRs.add(result.getDrugResistance());
+		});
+		assertTrue(alignedSeqs.size() > 1);
+
+		assertEquals(
+			SequenceSummaryTSV.getInstance(hiv).getReport(alignedSeqs),
+			stream(pipeline, Report.SEQUENCE_SUMMARY));
+		assertEquals(
+			ResistanceSummaryTSV.getInstance(hiv).getReport(
+				alignedSeqs, allGeneDRs, pipeline.getAlgorithm()
+			).toString(),
+			stream(pipeline, Report.RESISTANCE_SUMMARY));
+	}
+
+	@Test
+	public void testEmptyInputWritesHeaderOnly() throws IOException {
+		SequenceAnalysisPipeline<HIV> pipeline = new SequenceAnalysisPipeline<>(
+			hiv, Collections.emptyList(), null);
+		assertEquals(
+			SequenceSummaryTSV.getInstance(hiv).getReport(Collections.emptyList()),
+			stream(pipeline, Report.SEQUENCE_SUMMARY));
+	}
+
+}
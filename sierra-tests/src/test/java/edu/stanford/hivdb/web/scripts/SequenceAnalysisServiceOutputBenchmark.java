@@ -0,0 +1,90 @@
+/*
+
+    Copyright (C) 2020 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.web.scripts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.testutils.TestSequencesFiles;
+import edu.stanford.hivdb.testutils.TestSequencesFiles.TestSequencesProperties;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.web.HIV1SequenceAnalysisService;
+import edu.stanford.hivdb.web.SequenceAnalysisServiceOutput;
+
+/**
+ * Measures the wall-clock time of SequenceAnalysisServiceOutput with
+ * 1, 2, 4, ... threads up to the number of available processors.
+ *
+ * Alignments are served from AlignedSequenceCache after the warm-up round,
+ * so the numbers cover drug resistance and rendering only.
+ */
+public class SequenceAnalysisServiceOutputBenchmark {
+
+	private static final String[] OUTPUT_OPTIONS = {
+		"alignment.tsv", "pretty-alignment.tsv",
+		"drug-resistance.tsv", "drug-resistance.xml"
+	};
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		HIV hiv = HIV.getInstance();
+		List<Sequence> sequences = new ArrayList<>();
+		for (TestSequencesProperties property : TestSequencesProperties.values()) {
+			if (property.forRoutineTesting) {
+				sequences.addAll(FastaUtils.readStream(
+					TestSequencesFiles.getTestSequenceInputStream(property)));
+			}
+		}
+		Sequence[] seqArray = sequences.toArray(new Sequence[0]);
+		HIV1SequenceAnalysisService service = new HIV1SequenceAnalysisService() {
+			{
+				drAlgorithm = hiv.getLatestDrugResistAlgorithm("HIVDB").getName();
+			}
+		};
+
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		System.out.println(String.format(
+			"%d sequences, %d rounds per setting", seqArray.length, ROUNDS));
+		double baseline = 0;
+		for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+			// warm up
+			new SequenceAnalysisServiceOutput<>(
+				hiv, service, seqArray, OUTPUT_OPTIONS, executor).toString();
+			long startTime = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i ++) {
+				new SequenceAnalysisServiceOutput<>(
+					hiv, service, seqArray, OUTPUT_OPTIONS, executor).toString();
+			}
+			double millis = (System.nanoTime() - startTime) / 1e6 / ROUNDS;
+			if (numThreads == 1) {
+				baseline = millis;
+			}
+			System.out.println(String.format(
+				"threads=%d\t%.1f ms/round\tspeedup=%.2fx",
+				numThreads, millis, baseline / millis));
+			executor.shutdown();
+		}
+	}
+
+}